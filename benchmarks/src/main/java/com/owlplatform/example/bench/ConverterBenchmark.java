@@ -0,0 +1,158 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.owlplatform.example.worldmodel.AttributeDecoder;
+import com.owlplatform.worldmodel.types.DataConverter;
+import com.owlplatform.worldmodel.types.DoubleConverter;
+
+/**
+ * Measures attribute decoding as done by the world model watchers:
+ * {@code DataConverter.asString} per attribute in {@code IdWatcher} and
+ * {@code DoubleConverter.decode} per attribute in {@code RSSIWatcher}, compared
+ * with the cached {@link AttributeDecoder} paths that replaced them.
+ *
+ * @author Robert Moore
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConverterBenchmark {
+
+  /**
+   * Number of encoded values in the stream.
+   */
+  private static final int STREAM_LENGTH = 4096;
+
+  /**
+   * Attribute name the values are decoded as.
+   */
+  @Param({ "link average" })
+  public String attributeName;
+
+  /**
+   * Encoded double values.
+   */
+  private byte[][] encoded;
+
+  /**
+   * Cached decoder, resolved during setup.
+   */
+  private AttributeDecoder decoder;
+
+  /**
+   * Reused text buffer.
+   */
+  private final StringBuilder buffer = new StringBuilder(64);
+
+  /**
+   * Encodes a stream of plausible RSSI averages.
+   */
+  @Setup
+  public void setUp() {
+    final Random rand = new Random(1L);
+    this.encoded = new byte[STREAM_LENGTH][];
+    for (int i = 0; i < STREAM_LENGTH; ++i) {
+      this.encoded[i] = DoubleConverter.get().encode(
+          Double.valueOf(-40 - rand.nextDouble() * 60));
+    }
+    // DataConverter does not know this name, so register it as RSSIWatcher does
+    this.decoder = new AttributeDecoder();
+    this.decoder.register(this.attributeName, AttributeDecoder.Kind.DOUBLE);
+  }
+
+  /**
+   * Decoding to a String by attribute name, as {@code IdWatcher} does.
+   *
+   * @param bh
+   *          consumes the results.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void dataConverterAsString(final Blackhole bh) {
+    for (byte[] data : this.encoded) {
+      bh.consume(DataConverter.asString(this.attributeName, data));
+    }
+  }
+
+  /**
+   * Decoding to a boxed Double, as {@code RSSIWatcher} does.
+   *
+   * @param bh
+   *          consumes the results.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void doubleConverterDecode(final Blackhole bh) {
+    for (byte[] data : this.encoded) {
+      bh.consume(DoubleConverter.get().decode(data));
+    }
+  }
+
+  /**
+   * Appending text through the cached decoder, as {@code IdWatcher} now does.
+   *
+   * @param bh
+   *          consumes the results.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void cachedAppendTo(final Blackhole bh) {
+    for (byte[] data : this.encoded) {
+      this.buffer.setLength(0);
+      bh.consume(this.decoder.appendTo(this.attributeName, data, this.buffer)
+          .length());
+    }
+  }
+
+  /**
+   * Decoding to a primitive through the cached decoder, as {@code RSSIWatcher}
+   * now does.
+   *
+   * @param bh
+   *          consumes the results.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void cachedAsDouble(final Blackhole bh) {
+    for (byte[] data : this.encoded) {
+      bh.consume(this.decoder.asDouble(this.attributeName, data));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.sensor.DevicePopulation;
+
+/**
+ * Compares building a new {@link SampleMessage} for every sample, as the
+ * original fake sensors did, with refilling a pooled message as
+ * {@code BatchingSampleSender} does.
+ *
+ * @author Robert Moore
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleConstructionBenchmark {
+
+  /**
+   * Number of distinct transmitters.
+   */
+  @Param({ "100", "10000" })
+  public int transmitters;
+
+  /**
+   * Number of distinct receivers.
+   */
+  @Param({ "50" })
+  public int receivers;
+
+  /**
+   * Source of simulated sample contents.
+   */
+  private DevicePopulation population;
+
+  /**
+   * The pooled message.
+   */
+  private final SampleMessage pooled = new SampleMessage();
+
+  /**
+   * The pooled sensed data array.
+   */
+  private final byte[] pooledData = new byte[DevicePopulation.DATA_LENGTH];
+
+  /**
+   * Builds the simulated population.
+   */
+  @Setup
+  public void setUp() {
+    this.population = new DevicePopulation(this.transmitters, this.receivers,
+        4, 1L);
+  }
+
+  /**
+   * A new message and sensed data array per sample.
+   *
+   * @return the message, so it isn't optimized away.
+   */
+  @Benchmark
+  public SampleMessage newMessage() {
+    final SampleMessage msg = new SampleMessage();
+    this.population.fill(msg, new byte[DevicePopulation.DATA_LENGTH]);
+    return msg;
+  }
+
+  /**
+   * Refilling one pooled message per sample.
+   *
+   * @return the message, so it isn't optimized away.
+   */
+  @Benchmark
+  public SampleMessage pooledMessage() {
+    this.population.fill(this.pooled, this.pooledData);
+    return this.pooled;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.bench;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.sensor.DevicePopulation;
+
+/**
+ * Builds a fixed stream of realistic Pipsqueak samples for benchmarks. The
+ * stream is generated once, up front, from a seeded {@link DevicePopulation},
+ * so every benchmark iteration sees exactly the same samples and the cost of
+ * generating them is not measured.
+ *
+ * @author Robert Moore
+ */
+public final class SyntheticSamples {
+
+  /**
+   * Seed for every generated stream, so runs are comparable.
+   */
+  private static final long SEED = 0x0E1L;
+
+  /**
+   * Number of receivers that hear each transmitter.
+   */
+  private static final int HEARERS = 4;
+
+  private SyntheticSamples() {
+    // Static methods only
+  }
+
+  /**
+   * Generates a stream of samples.
+   *
+   * @param length
+   *          the number of samples in the stream.
+   * @param transmitters
+   *          the number of distinct transmitters.
+   * @param receivers
+   *          the number of distinct receivers.
+   * @return the samples.
+   */
+  public static SampleMessage[] generate(final int length,
+      final int transmitters, final int receivers) {
+    final DevicePopulation population = new DevicePopulation(transmitters,
+        receivers, HEARERS, SEED);
+    final SampleMessage[] samples = new SampleMessage[length];
+    for (int i = 0; i < length; ++i) {
+      samples[i] = new SampleMessage();
+      population.fill(samples[i], new byte[DevicePopulation.DATA_LENGTH]);
+    }
+    return samples;
+  }
+}
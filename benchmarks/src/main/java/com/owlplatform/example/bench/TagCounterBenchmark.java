@@ -0,0 +1,310 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.solver.PipsqueakPayloadDecoder;
+import com.owlplatform.example.solver.TagTally;
+import com.owlplatform.example.util.DeviceId;
+import com.owlplatform.example.util.DeviceIdInterner;
+
+/**
+ * Measures the per-sample work done by {@code TagCounter} (ID interning,
+ * tally updates and temperature decoding) and its periodic report step,
+ * including ordering the report by full device ID.
+ * {@link #extractIds(Blackhole)} keeps the old 32-bit Pipsqueak ID extraction
+ * as a baseline for {@link #internIds(Blackhole)}.
+ *
+ * @author Robert Moore
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TagCounterBenchmark {
+
+  /**
+   * Number of samples in the synthetic stream.
+   */
+  private static final int STREAM_LENGTH = 65536;
+
+  /**
+   * Number of reports timed together in one single-shot batch. Each needs its
+   * own full tally, filled before the batch starts.
+   */
+  private static final int REPORT_BATCH = 16;
+
+  /**
+   * Number of distinct transmitters in the stream.
+   */
+  @Param({ "100", "10000", "100000" })
+  public int transmitters;
+
+  /**
+   * Number of distinct receivers in the stream.
+   */
+  @Param({ "50", "1000" })
+  public int receivers;
+
+  /**
+   * The synthetic sample stream.
+   */
+  private SampleMessage[] samples;
+
+  /**
+   * Tally updated by the per-sample benchmarks.
+   */
+  private TagTally tally;
+
+  /**
+   * Reused report.
+   */
+  private final TagTally.Report report = new TagTally.Report();
+
+  /**
+   * Transmitter ordinals, as used by {@code TagCounter}.
+   */
+  private DeviceIdInterner transmitterIds;
+
+  /**
+   * Receiver ordinals, as used by {@code TagCounter}.
+   */
+  private DeviceIdInterner receiverIds;
+
+  /**
+   * Transmitter ordinal of each sample in the stream.
+   */
+  private int[] transmitterOrdinals;
+
+  /**
+   * Receiver ordinal of each sample in the stream.
+   */
+  private int[] receiverOrdinals;
+
+  /**
+   * Reused decoding result.
+   */
+  private final PipsqueakPayloadDecoder.Reading reading = new PipsqueakPayloadDecoder.Reading();
+
+  /**
+   * Generates the sample stream and warms the tally so that every device is
+   * already known.
+   */
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.samples = SyntheticSamples.generate(STREAM_LENGTH, this.transmitters,
+        this.receivers);
+    this.tally = new TagTally(this.transmitters, this.receivers);
+    this.transmitterIds = new DeviceIdInterner(this.transmitters);
+    this.receiverIds = new DeviceIdInterner(this.receivers);
+    this.transmitterOrdinals = new int[STREAM_LENGTH];
+    this.receiverOrdinals = new int[STREAM_LENGTH];
+    for (int i = 0; i < STREAM_LENGTH; ++i) {
+      this.transmitterOrdinals[i] = this.transmitterIds.intern(this.samples[i]
+          .getDeviceId());
+      this.receiverOrdinals[i] = this.receiverIds.intern(this.samples[i]
+          .getReceiverId());
+      this.tally.recordSample(this.transmitterOrdinals[i],
+          this.receiverOrdinals[i]);
+    }
+  }
+
+  /**
+   * Extracting transmitter and receiver IDs from each sample.
+   *
+   * @param bh
+   *          consumes the results.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void extractIds(final Blackhole bh) {
+    for (SampleMessage msg : this.samples) {
+      bh.consume(pipsqueakId(msg.getDeviceId()));
+      bh.consume(pipsqueakId(msg.getReceiverId()));
+    }
+  }
+
+  /**
+   * Mapping full 128-bit transmitter and receiver IDs to ordinals.
+   *
+   * @param bh
+   *          consumes the results.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void internIds(final Blackhole bh) {
+    for (SampleMessage msg : this.samples) {
+      bh.consume(this.transmitterIds.intern(msg.getDeviceId()));
+      bh.consume(this.receiverIds.intern(msg.getReceiverId()));
+    }
+  }
+
+  /**
+   * Decoding the temperature and state of each sample.
+   *
+   * @param bh
+   *          consumes the results.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void decodeTemperature(final Blackhole bh) {
+    for (SampleMessage msg : this.samples) {
+      PipsqueakPayloadDecoder.decode(msg.getSensedData(), this.reading);
+      bh.consume(this.reading.getTemperature());
+    }
+  }
+
+  /**
+   * Updating the transmitter and receiver tables for each sample, by the
+   * interned ordinals {@code TagCounter} records.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void updateTally() {
+    for (int i = 0; i < STREAM_LENGTH; ++i) {
+      this.tally.recordSample(this.transmitterOrdinals[i],
+          this.receiverOrdinals[i]);
+    }
+  }
+
+  /**
+   * The tally part of {@code TagCounter}'s per-sample path without
+   * coalescing: interning both IDs, counting the sample and decoding the
+   * payload. Probe tracking, rolling statistics and metrics are left out.
+   */
+  @Benchmark
+  @OperationsPerInvocation(STREAM_LENGTH)
+  public void perSample() {
+    for (SampleMessage msg : this.samples) {
+      final int id = this.transmitterIds.intern(msg.getDeviceId());
+      this.tally.recordSample(id, this.receiverIds.intern(msg.getReceiverId()));
+      if (PipsqueakPayloadDecoder.decode(msg.getSensedData(), this.reading)) {
+        this.tally.recordReading(id, this.reading.getTemperature(),
+            this.reading.isOn());
+      }
+    }
+  }
+
+  /**
+   * Building a report from a full window and ordering its receivers and
+   * transmitters by device ID, as {@code TagCounter} prints them. Each report
+   * drains its tally, so this runs as timed batches of {@value #REPORT_BATCH}
+   * reports over tallies filled before each batch. Scores are for the whole
+   * batch, so divide by {@value #REPORT_BATCH} for one report.
+   *
+   * @param tallies
+   *          the filled tallies of the current batch.
+   * @param bh
+   *          consumes the orderings.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Warmup(iterations = 10, batchSize = REPORT_BATCH)
+  @Measurement(iterations = 20, batchSize = REPORT_BATCH)
+  public void report(final ReportTallies tallies, final Blackhole bh) {
+    tallies.next().drainTo(this.report);
+    final DeviceId[] rx = new DeviceId[this.report.getNumReceivers()];
+    for (int i = 0; i < rx.length; ++i) {
+      rx[i] = this.receiverIds.get(this.report.getReceiverId(i));
+    }
+    bh.consume(DeviceId.sortedOrder(rx));
+    final DeviceId[] tx = new DeviceId[this.report.getNumTransmitters()];
+    for (int i = 0; i < tx.length; ++i) {
+      tx[i] = this.transmitterIds.get(this.report.getTransmitterId(i));
+    }
+    bh.consume(DeviceId.sortedOrder(tx));
+  }
+
+  /**
+   * The old 32-bit ID extraction {@code TagCounter} used before interning full
+   * IDs: the low 32 bits of a 16-byte device ID.
+   *
+   * @param deviceId
+   *          the device ID.
+   * @return the Pipsqueak ID.
+   */
+  private static int pipsqueakId(final byte[] deviceId) {
+    return (deviceId[15] & 0xFF) | ((deviceId[14] << 8) & 0xFF00)
+        | ((deviceId[13] << 16) & 0xFF0000)
+        | ((deviceId[12] << 24) & 0xFF000000);
+  }
+
+  /**
+   * Full tallies for one batch of {@link TagCounterBenchmark#report}, refilled
+   * before every batch since each report drains one.
+   */
+  @State(Scope.Thread)
+  public static class ReportTallies {
+
+    /**
+     * The tallies of the batch.
+     */
+    private final TagTally[] tallies = new TagTally[REPORT_BATCH];
+
+    /**
+     * Index of the next tally to report.
+     */
+    private int next = 0;
+
+    /**
+     * Fills every tally with the whole stream.
+     *
+     * @param bench
+     *          the benchmark state holding the stream's ordinals.
+     */
+    @Setup(Level.Iteration)
+    public void fill(final TagCounterBenchmark bench) {
+      for (int t = 0; t < REPORT_BATCH; ++t) {
+        this.tallies[t] = new TagTally(bench.transmitters, bench.receivers);
+        for (int i = 0; i < STREAM_LENGTH; ++i) {
+          this.tallies[t].recordSample(bench.transmitterOrdinals[i],
+              bench.receiverOrdinals[i]);
+        }
+      }
+      this.next = 0;
+    }
+
+    /**
+     * @return the next full tally of the batch.
+     */
+    TagTally next() {
+      return this.tallies[this.next++];
+    }
+  }
+}
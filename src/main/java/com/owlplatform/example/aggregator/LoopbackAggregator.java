@@ -0,0 +1,675 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.aggregator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.solver.SampleHandoffQueue;
+import com.owlplatform.example.util.OverflowPolicy;
+
+/**
+ * <p>
+ * A minimal, embeddable aggregator for testing sensors and solvers on one
+ * machine without a real Owl Platform deployment. It accepts sensor
+ * connections (as made by {@code SensorAggregatorInterface}) and solver
+ * connections (as made by {@code SolverAggregatorConnection} and
+ * {@code SolverAggregatorInterface}), and forwards every sample from every
+ * sensor to every solver whose subscription matches it.
+ * </p>
+ *
+ * <p>
+ * Only what the example programs need is implemented: the handshakes, sensor
+ * samples, subscription requests and responses, and server samples. Rules are
+ * matched on physical layer and transmitter ID/mask; update intervals are
+ * ignored, so solvers receive every matching sample. Each solver has its own
+ * bounded queue and writer thread, so one slow solver cannot stall sensors or
+ * other solvers beyond the queue's {@link OverflowPolicy}.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class LoopbackAggregator {
+
+  /**
+   * Protocol string sent in the sensor handshake.
+   */
+  static final String SENSOR_PROTOCOL = "GRAIL sensor protocol";
+
+  /**
+   * Protocol string sent in the solver handshake.
+   */
+  static final String SOLVER_PROTOCOL = "GRAIL solver protocol";
+
+  /**
+   * Solver message type: keep-alive.
+   */
+  static final byte TYPE_KEEP_ALIVE = 0;
+
+  /**
+   * Solver message type: subscription request.
+   */
+  static final byte TYPE_SUBSCRIPTION_REQUEST = 3;
+
+  /**
+   * Solver message type: subscription response.
+   */
+  static final byte TYPE_SUBSCRIPTION_RESPONSE = 4;
+
+  /**
+   * Size of a transmitter ID or mask.
+   */
+  private static final int ID_SIZE = SampleMessage.DEVICE_ID_SIZE;
+
+  /**
+   * Bytes in a sensor sample before the sensed data (physical layer, device
+   * ID, receiver ID, timestamp, RSSI).
+   */
+  private static final int SAMPLE_HEADER_SIZE = 1 + ID_SIZE + ID_SIZE + 8 + 4;
+
+  /**
+   * Largest frame accepted from a peer, to guard against garbage input.
+   */
+  private static final int MAX_FRAME = 1 << 20;
+
+  /**
+   * Starts a loopback aggregator on the given ports and runs until killed.
+   *
+   * @param args
+   *          sensor port and solver port.
+   * @throws IOException
+   *           if the ports cannot be opened.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Invalid number of arguments.");
+      System.err.println("Usage: <Sensor Port> <Solver Port>");
+      return;
+    }
+    final LoopbackAggregator agg = new LoopbackAggregator(
+        Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+    agg.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        agg.stop();
+      }
+    });
+    System.out.println("Loopback aggregator listening for sensors on "
+        + agg.getSensorPort() + " and solvers on " + agg.getSolverPort());
+    while (true) {
+      try {
+        Thread.sleep(10000);
+      } catch (InterruptedException ie) {
+        break;
+      }
+      System.out.printf("Samples in: %,d | out: %,d | dropped: %,d\n",
+          Long.valueOf(agg.getSamplesIn()), Long.valueOf(agg.getSamplesOut()),
+          Long.valueOf(agg.getSamplesDropped()));
+    }
+  }
+
+  /**
+   * Accepts sensor connections.
+   */
+  private final ServerSocket sensorServer;
+
+  /**
+   * Accepts solver connections.
+   */
+  private final ServerSocket solverServer;
+
+  /**
+   * Connected solvers.
+   */
+  private final List<SolverSession> solvers = new CopyOnWriteArrayList<SolverSession>();
+
+  /**
+   * Every open socket, so they can be closed on {@link #stop()}.
+   */
+  private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+
+  /**
+   * Capacity of each solver's queue.
+   */
+  private int solverQueueCapacity = SampleHandoffQueue.DEFAULT_CAPACITY;
+
+  /**
+   * Overflow policy of each solver's queue.
+   */
+  private OverflowPolicy solverQueuePolicy = OverflowPolicy.BLOCK;
+
+  /**
+   * Samples received from sensors.
+   */
+  private final AtomicLong samplesIn = new AtomicLong(0);
+
+  /**
+   * Samples written to solvers.
+   */
+  private final AtomicLong samplesOut = new AtomicLong(0);
+
+  /**
+   * Set by {@link #stop()}.
+   */
+  private volatile boolean stopped = false;
+
+  /**
+   * Creates a new aggregator listening on the loopback interface. Pass 0 for
+   * either port to have one chosen automatically.
+   *
+   * @param sensorPort
+   *          the port for sensor connections.
+   * @param solverPort
+   *          the port for solver connections.
+   * @throws IOException
+   *           if either port cannot be opened.
+   */
+  public LoopbackAggregator(final int sensorPort, final int solverPort)
+      throws IOException {
+    final InetAddress loopback = InetAddress.getByName(null);
+    this.sensorServer = new ServerSocket();
+    this.sensorServer.setReuseAddress(true);
+    this.sensorServer.bind(new InetSocketAddress(loopback, sensorPort));
+    this.solverServer = new ServerSocket();
+    this.solverServer.setReuseAddress(true);
+    this.solverServer.bind(new InetSocketAddress(loopback, solverPort));
+  }
+
+  /**
+   * Sets the queue used for solvers that connect after this call.
+   *
+   * @param capacity
+   *          samples queued per solver.
+   * @param policy
+   *          what to do when a solver's queue is full.
+   */
+  public void setSolverQueue(final int capacity, final OverflowPolicy policy) {
+    this.solverQueueCapacity = capacity;
+    this.solverQueuePolicy = policy;
+  }
+
+  /**
+   * Starts accepting connections.
+   */
+  public void start() {
+    startDaemon(new Runnable() {
+      @Override
+      public void run() {
+        LoopbackAggregator.this.acceptSensors();
+      }
+    }, "Loopback sensor acceptor");
+    startDaemon(new Runnable() {
+      @Override
+      public void run() {
+        LoopbackAggregator.this.acceptSolvers();
+      }
+    }, "Loopback solver acceptor");
+  }
+
+  /**
+   * Closes every connection and stops accepting new ones.
+   */
+  public void stop() {
+    this.stopped = true;
+    closeQuietly(this.sensorServer);
+    closeQuietly(this.solverServer);
+    for (Socket s : this.sockets) {
+      closeQuietly(s);
+    }
+    for (SolverSession session : this.solvers) {
+      session.end();
+    }
+  }
+
+  /**
+   * @return the port accepting sensor connections.
+   */
+  public int getSensorPort() {
+    return this.sensorServer.getLocalPort();
+  }
+
+  /**
+   * @return the port accepting solver connections.
+   */
+  public int getSolverPort() {
+    return this.solverServer.getLocalPort();
+  }
+
+  /**
+   * @return the number of samples received from sensors.
+   */
+  public long getSamplesIn() {
+    return this.samplesIn.get();
+  }
+
+  /**
+   * @return the number of samples written to solvers.
+   */
+  public long getSamplesOut() {
+    return this.samplesOut.get();
+  }
+
+  /**
+   * @return the number of samples dropped from full solver queues.
+   */
+  public long getSamplesDropped() {
+    long dropped = 0;
+    for (SolverSession session : this.solvers) {
+      dropped += session.queue.getDropped();
+    }
+    return dropped;
+  }
+
+  private static Thread startDaemon(final Runnable r, final String name) {
+    final Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+  private static void closeQuietly(final ServerSocket s) {
+    try {
+      s.close();
+    } catch (IOException ioe) {
+      // Ignored
+    }
+  }
+
+  private static void closeQuietly(final Socket s) {
+    try {
+      s.close();
+    } catch (IOException ioe) {
+      // Ignored
+    }
+  }
+
+  private void acceptSensors() {
+    while (!this.stopped) {
+      try {
+        final Socket s = this.sensorServer.accept();
+        this.sockets.add(s);
+        startDaemon(new Runnable() {
+          @Override
+          public void run() {
+            LoopbackAggregator.this.serveSensor(s);
+          }
+        }, "Loopback sensor " + s.getRemoteSocketAddress());
+      } catch (IOException ioe) {
+        if (!this.stopped) {
+          System.err.println("Unable to accept sensor: " + ioe);
+        }
+      }
+    }
+  }
+
+  private void acceptSolvers() {
+    while (!this.stopped) {
+      try {
+        final Socket s = this.solverServer.accept();
+        this.sockets.add(s);
+        startDaemon(new Runnable() {
+          @Override
+          public void run() {
+            LoopbackAggregator.this.serveSolver(s);
+          }
+        }, "Loopback solver " + s.getRemoteSocketAddress());
+      } catch (IOException ioe) {
+        if (!this.stopped) {
+          System.err.println("Unable to accept solver: " + ioe);
+        }
+      }
+    }
+  }
+
+  /**
+   * Exchanges handshakes, then reads samples until the sensor disconnects.
+   */
+  void serveSensor(final Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(
+          socket.getInputStream(), 65536));
+      final DataOutputStream out = new DataOutputStream(
+          socket.getOutputStream());
+      writeHandshake(out, SENSOR_PROTOCOL);
+      readHandshake(in, SENSOR_PROTOCOL);
+
+      while (!this.stopped) {
+        final int length = in.readInt();
+        if (length < SAMPLE_HEADER_SIZE || length > MAX_FRAME) {
+          throw new IOException("Invalid sample length: " + length);
+        }
+        final SampleMessage sample = readSample(in, length);
+        if (sample == null) {
+          continue;
+        }
+        this.samplesIn.incrementAndGet();
+        for (SolverSession session : this.solvers) {
+          if (session.matches(sample)) {
+            session.queue.offer(sample);
+          }
+        }
+      }
+    } catch (IOException ioe) {
+      // Disconnected
+    } finally {
+      this.sockets.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Reads the body of one sensor sample.
+   *
+   * @return the sample, or {@code null} if it was invalid.
+   */
+  private static SampleMessage readSample(final DataInputStream in,
+      final int length) throws IOException {
+    final byte phy = in.readByte();
+    final byte[] deviceId = new byte[ID_SIZE];
+    in.readFully(deviceId);
+    final byte[] receiverId = new byte[ID_SIZE];
+    in.readFully(receiverId);
+    final long timestamp = in.readLong();
+    final float rssi = in.readFloat();
+    byte[] data = null;
+    if (length > SAMPLE_HEADER_SIZE) {
+      data = new byte[length - SAMPLE_HEADER_SIZE];
+      in.readFully(data);
+    }
+    if (phy == SampleMessage.PHYSICAL_LAYER_ALL) {
+      // Reserved for filtering, never valid in a sample
+      return null;
+    }
+    final SampleMessage sample = new SampleMessage();
+    sample.setPhysicalLayer(phy);
+    sample.setDeviceId(deviceId);
+    sample.setReceiverId(receiverId);
+    sample.setReceiverTimeStamp(timestamp);
+    sample.setRssi(rssi);
+    sample.setSensedData(data);
+    return sample;
+  }
+
+  /**
+   * Exchanges handshakes, answers the subscription request, then reads (and
+   * ignores) keep-alives until the solver disconnects.
+   */
+  void serveSolver(final Socket socket) {
+    SolverSession session = null;
+    try {
+      socket.setTcpNoDelay(true);
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(
+          socket.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream(), 65536));
+      writeHandshake(out, SOLVER_PROTOCOL);
+      out.flush();
+      readHandshake(in, SOLVER_PROTOCOL);
+
+      while (!this.stopped) {
+        final int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME) {
+          throw new IOException("Invalid message length: " + length);
+        }
+        final byte type = in.readByte();
+        final byte[] body = new byte[length - 1];
+        in.readFully(body);
+        if (type == TYPE_SUBSCRIPTION_REQUEST && session == null) {
+          session = new SolverSession(out, parseRules(body),
+              new SampleHandoffQueue(this.solverQueueCapacity,
+                  this.solverQueuePolicy));
+          synchronized (out) {
+            out.writeInt(length);
+            out.writeByte(TYPE_SUBSCRIPTION_RESPONSE);
+            out.write(body);
+            out.flush();
+          }
+          this.solvers.add(session);
+          startDaemon(session, "Loopback solver writer "
+              + socket.getRemoteSocketAddress());
+        }
+        // Keep-alives and anything else are ignored
+      }
+    } catch (IOException ioe) {
+      // Disconnected
+    } finally {
+      if (session != null) {
+        this.solvers.remove(session);
+        session.end();
+      }
+      this.sockets.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Parses the rules of a subscription request.
+   */
+  static List<Rule> parseRules(final byte[] body) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+        body));
+    final int numRules = in.readInt();
+    final List<Rule> rules = new ArrayList<Rule>(numRules);
+    for (int r = 0; r < numRules; ++r) {
+      final byte phy = in.readByte();
+      final int numTxers = in.readInt();
+      final byte[][] ids = new byte[numTxers][ID_SIZE];
+      final byte[][] masks = new byte[numTxers][ID_SIZE];
+      for (int t = 0; t < numTxers; ++t) {
+        in.readFully(ids[t]);
+        in.readFully(masks[t]);
+      }
+      // Update interval, ignored
+      in.readLong();
+      rules.add(new Rule(phy, ids, masks));
+    }
+    return rules;
+  }
+
+  static void writeHandshake(final DataOutputStream out, final String protocol)
+      throws IOException {
+    final byte[] proto = protocol.getBytes("US-ASCII");
+    out.writeInt(proto.length);
+    out.write(proto);
+    // Version, extension
+    out.writeByte(0);
+    out.writeByte(0);
+    out.flush();
+  }
+
+  static void readHandshake(final DataInputStream in, final String protocol)
+      throws IOException {
+    final int length = in.readInt();
+    if (length < 0 || length > 1024) {
+      throw new IOException("Invalid handshake length: " + length);
+    }
+    final byte[] proto = new byte[length];
+    in.readFully(proto);
+    // Version, extension
+    in.readByte();
+    in.readByte();
+    if (!protocol.equals(asAscii(proto))) {
+      throw new IOException("Unexpected protocol: " + asAscii(proto));
+    }
+  }
+
+  private static String asAscii(final byte[] bytes) {
+    try {
+      return new String(bytes, "US-ASCII");
+    } catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * One rule from a subscription request.
+   */
+  static final class Rule {
+    /**
+     * Physical layer, or {@link SampleMessage#PHYSICAL_LAYER_ALL}.
+     */
+    final byte physicalLayer;
+
+    /**
+     * Transmitter base IDs; empty to match all.
+     */
+    final byte[][] ids;
+
+    /**
+     * Masks for {@link #ids}.
+     */
+    final byte[][] masks;
+
+    Rule(final byte physicalLayer, final byte[][] ids, final byte[][] masks) {
+      this.physicalLayer = physicalLayer;
+      this.ids = ids;
+      this.masks = masks;
+    }
+
+    boolean matches(final SampleMessage sample) {
+      if (this.physicalLayer != SampleMessage.PHYSICAL_LAYER_ALL
+          && this.physicalLayer != sample.getPhysicalLayer()) {
+        return false;
+      }
+      if (this.ids.length == 0) {
+        return true;
+      }
+      final byte[] deviceId = sample.getDeviceId();
+      for (int t = 0; t < this.ids.length; ++t) {
+        boolean match = true;
+        for (int i = 0; i < ID_SIZE && match; ++i) {
+          final int mask = this.masks[t][i];
+          match = (deviceId[i] & mask) == (this.ids[t][i] & mask);
+        }
+        if (match) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A subscribed solver and the thread writing samples to it.
+   */
+  final class SolverSession implements Runnable {
+
+    /**
+     * The solver's output stream. Writes are synchronized on it.
+     */
+    final DataOutputStream out;
+
+    /**
+     * The solver's subscription rules.
+     */
+    final List<Rule> rules;
+
+    /**
+     * Samples waiting to be written.
+     */
+    final SampleHandoffQueue queue;
+
+    /**
+     * Cleared when the solver disconnects.
+     */
+    volatile boolean running = true;
+
+    SolverSession(final DataOutputStream out, final List<Rule> rules,
+        final SampleHandoffQueue queue) {
+      this.out = out;
+      this.rules = rules;
+      this.queue = queue;
+    }
+
+    /**
+     * Stops the writer and releases any sensor thread waiting for room in the
+     * queue.
+     */
+    void end() {
+      this.running = false;
+      this.queue.close();
+    }
+
+    boolean matches(final SampleMessage sample) {
+      for (Rule r : this.rules) {
+        if (r.matches(sample)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (this.running) {
+          SampleMessage sample = this.queue.poll(100, TimeUnit.MILLISECONDS);
+          if (sample == null) {
+            continue;
+          }
+          synchronized (this.out) {
+            // Write everything available, then flush once
+            do {
+              writeSample(sample);
+              sample = this.queue.poll(0, TimeUnit.MILLISECONDS);
+            } while (sample != null);
+            this.out.flush();
+          }
+        }
+      } catch (InterruptedException ie) {
+        // Exit
+      } catch (IOException ioe) {
+        // Disconnected
+      } finally {
+        this.end();
+      }
+    }
+
+    private void writeSample(final SampleMessage sample) throws IOException {
+      this.out.writeInt(sample.getLengthPrefixSolver());
+      this.out.writeByte(SampleMessage.MESSAGE_TYPE);
+      this.out.writeByte(sample.getPhysicalLayer());
+      this.out.write(sample.getDeviceId());
+      this.out.write(sample.getReceiverId());
+      this.out.writeLong(sample.getReceiverTimeStamp());
+      this.out.writeFloat(sample.getRssi());
+      if (sample.getSensedData() != null) {
+        this.out.write(sample.getSensedData());
+      }
+      LoopbackAggregator.this.samplesOut.incrementAndGet();
+    }
+  }
+}
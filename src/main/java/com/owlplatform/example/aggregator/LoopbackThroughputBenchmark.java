@@ -0,0 +1,187 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.aggregator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.sensor.DevicePopulation;
+import com.owlplatform.example.sensor.LoadGeneratingSensor;
+import com.owlplatform.example.sensor.ReadinessListener;
+import com.owlplatform.example.solver.ReconnectingSampleSource;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+/**
+ * <p>
+ * Measures end-to-end throughput and latency from a sensor, through a
+ * {@link LoopbackAggregator}, to a solver, all in one JVM and without any
+ * external services.
+ * </p>
+ *
+ * <p>
+ * A {@link LoadGeneratingSensor} sends samples through the real sensor library
+ * and a solver receives them through the real solver library. Samples are
+ * stamped with {@link System#nanoTime()} when generated, so the solver can
+ * compute the exact one-way latency of each one. Throughput is measured up to
+ * the arrival of the last sample, so the wait for stragglers after the sensor
+ * stops does not dilute it.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class LoopbackThroughputBenchmark {
+
+  /**
+   * Runs one benchmark and prints the results.
+   *
+   * <p>
+   * Options:
+   * <ul>
+   * <li>-t N: number of transmitters (default 5000)</li>
+   * <li>-r N: number of receivers (default 100)</li>
+   * <li>-s N: samples per second (default 100000)</li>
+   * <li>-d N: seconds to run (default 30)</li>
+   * </ul>
+   * </p>
+   *
+   * @param args
+   *          options.
+   * @throws Exception
+   *           if an exception is thrown by any of the code
+   */
+  public static void main(String[] args) throws Exception {
+    int numTransmitters = LoadGeneratingSensor.DEFAULT_TRANSMITTERS;
+    int numReceivers = LoadGeneratingSensor.DEFAULT_RECEIVERS;
+    int rate = LoadGeneratingSensor.DEFAULT_RATE;
+    int duration = 30;
+    for (int argc = 0; argc < args.length; ++argc) {
+      String arg = args[argc];
+      if ("-t".equals(arg)) {
+        numTransmitters = Integer.parseInt(args[++argc]);
+      } else if ("-r".equals(arg)) {
+        numReceivers = Integer.parseInt(args[++argc]);
+      } else if ("-s".equals(arg)) {
+        rate = Integer.parseInt(args[++argc]);
+      } else if ("-d".equals(arg)) {
+        duration = Integer.parseInt(args[++argc]);
+      } else {
+        System.err.println("Unknown option: " + arg);
+        System.err
+            .println("Usage: [-t Transmitters] [-r Receivers] [-s Samples/s] [-d Seconds]");
+        return;
+      }
+    }
+
+    final LoopbackAggregator aggregator = new LoopbackAggregator(0, 0);
+    aggregator.start();
+
+    // Solver side
+    SubscriptionRequestRule rule = SubscriptionRequestRule
+        .generateGenericRule();
+    rule.setUpdateInterval(0l);
+    final ReconnectingSampleSource solverConn = new ReconnectingSampleSource(
+        "localhost", aggregator.getSolverPort(), rule);
+
+    // Sensor side
+    final SensorAggregatorInterface sensorAgg = new SensorAggregatorInterface();
+    sensorAgg.setDisconnectOnException(true);
+    sensorAgg.setStayConnected(false);
+    sensorAgg.setHost("localhost");
+    sensorAgg.setPort(aggregator.getSensorPort());
+    final ReadinessListener sensorReady = ReadinessListener
+        .register(sensorAgg);
+
+    try {
+      if (!solverConn.connect()) {
+        System.err.println("Solver unable to subscribe to " + solverConn);
+        return;
+      }
+
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong received = new AtomicLong(0);
+      // When the latest sample arrived, so waiting for stragglers is not timed
+      final AtomicLong lastReceiveNanos = new AtomicLong(0);
+      final Thread solverThread = new Thread("Loopback solver") {
+        @Override
+        public void run() {
+          while (solverConn.isConnected()) {
+            SampleMessage msg = solverConn.getNextSample();
+            if (msg == null) {
+              continue;
+            }
+            final long now = System.nanoTime();
+            latency.record(now - msg.getReceiverTimeStamp());
+            lastReceiveNanos.lazySet(now);
+            received.lazySet(received.get() + 1);
+          }
+        }
+      };
+      solverThread.setDaemon(true);
+      solverThread.start();
+
+      if (!sensorAgg.connect(10000L)) {
+        System.err.println("Sensor unable to connect to " + sensorAgg);
+        return;
+      }
+      if (!sensorReady.awaitReady(1000L)) {
+        System.err.println("Aggregator didn't become ready for samples.");
+        return;
+      }
+
+      DevicePopulation population = new DevicePopulation(numTransmitters,
+          numReceivers, 4, System.nanoTime());
+      population.setNanoTimestamps(true);
+      LoadGeneratingSensor sensor = new LoadGeneratingSensor(population, rate);
+
+      System.out.printf(
+          "Loopback benchmark: %,d transmitters, %,d receivers, %,d samples/s for %d seconds.\n",
+          Integer.valueOf(numTransmitters), Integer.valueOf(numReceivers),
+          Integer.valueOf(rate), Integer.valueOf(duration));
+      final long start = System.nanoTime();
+      sensor.run(sensorAgg, duration * 1000L, 5000L);
+
+      // Give in-flight samples a moment to arrive
+      long lastReceived = -1;
+      while (received.get() != lastReceived) {
+        lastReceived = received.get();
+        Thread.sleep(500);
+      }
+      final long delivered = received.get();
+      final double seconds = delivered == 0 ? 0
+          : (lastReceiveNanos.get() - start) / 1e9;
+
+      System.out.println("=========== Loopback results ===========");
+      System.out.printf("Sent:      %,d\n", Long.valueOf(sensor.getSent()));
+      System.out.printf("Aggregated: %,d\n",
+          Long.valueOf(aggregator.getSamplesIn()));
+      System.out.printf("Delivered: %,d (%,.0f samples/s)\n",
+          Long.valueOf(delivered),
+          Double.valueOf(seconds > 0 ? delivered / seconds : 0));
+      System.out.printf("Dropped:   %,d\n",
+          Long.valueOf(aggregator.getSamplesDropped()));
+      System.out.println("Latency:   " + latency.toMicrosString());
+    } finally {
+      sensorAgg.disconnect();
+      solverConn.disconnect();
+      aggregator.stop();
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.solver.SampleSource;
+
+/**
+ * <p>
+ * Replays a capture file written by {@link SampleCaptureWriter} as a
+ * {@link SampleSource}, so a solver can process recorded traffic exactly as
+ * if it came from an aggregator.
+ * </p>
+ *
+ * <p>
+ * The file is memory-mapped a chunk at a time, so captures of any size are
+ * read through the page cache without being copied onto the heap; only the
+ * returned {@link SampleMessage} objects are allocated. Samples are released
+ * at their original pace scaled by a speed factor, or as fast as the caller
+ * consumes them when the speed is 0.
+ * </p>
+ *
+ * <p>
+ * This class is not thread-safe; it is meant to be read by one solver loop.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class MappedSampleReplay implements SampleSource {
+
+  /**
+   * Number of records mapped at once (80 MiB).
+   */
+  public static final int CHUNK_RECORDS = 1 << 20;
+
+  /**
+   * Don't park for less than this long; short waits are absorbed into the
+   * next sample.
+   */
+  private static final long MIN_PARK_NANOS = 100000;
+
+  /**
+   * The capture file.
+   */
+  private final File file;
+
+  /**
+   * Open file.
+   */
+  private final RandomAccessFile raf;
+
+  /**
+   * Channel the chunks are mapped from.
+   */
+  private final FileChannel channel;
+
+  /**
+   * Size of each record, which depends on the file's format version.
+   */
+  private final int recordSize;
+
+  /**
+   * Number of whole records in the file.
+   */
+  private final long numRecords;
+
+  /**
+   * Replay speed multiplier, or 0 for unpaced.
+   */
+  private final double speed;
+
+  /**
+   * Currently mapped chunk.
+   */
+  private MappedByteBuffer chunk = null;
+
+  /**
+   * Index of the first record in {@link #chunk}.
+   */
+  private long chunkStart = 0;
+
+  /**
+   * Number of records in {@link #chunk}.
+   */
+  private int chunkRecords = 0;
+
+  /**
+   * Index of the next record to return.
+   */
+  private long next = 0;
+
+  /**
+   * Capture time of the first record.
+   */
+  private long firstCaptureTime = 0;
+
+  /**
+   * {@link System#nanoTime()} when the first record was returned.
+   */
+  private long replayStartNanos = 0;
+
+  /**
+   * Set by {@link #disconnect()}.
+   */
+  private volatile boolean closed = false;
+
+  /**
+   * Opens a capture file for replay.
+   *
+   * @param file
+   *          the capture file.
+   * @param speed
+   *          replay speed relative to the original capture, for example 1 for
+   *          real time or 10 for ten times faster. 0 replays as fast as
+   *          possible.
+   * @throws IOException
+   *           if the file cannot be opened or is not a capture file.
+   */
+  public MappedSampleReplay(final File file, final double speed)
+      throws IOException {
+    if (speed < 0) {
+      throw new IllegalArgumentException("Replay speed cannot be negative.");
+    }
+    this.file = file;
+    this.speed = speed;
+    this.raf = new RandomAccessFile(file, "r");
+    this.channel = this.raf.getChannel();
+    try {
+      final long size = this.channel.size();
+      this.recordSize = SampleRecordFormat.readHeader(this.channel.map(
+          FileChannel.MapMode.READ_ONLY, 0,
+          Math.min(size, SampleRecordFormat.HEADER_SIZE)));
+      this.numRecords = (size - SampleRecordFormat.HEADER_SIZE)
+          / this.recordSize;
+      if ((size - SampleRecordFormat.HEADER_SIZE) % this.recordSize != 0) {
+        System.err.println(file
+            + " ends with a partial record, which will be ignored.");
+      }
+    } catch (IOException ioe) {
+      this.raf.close();
+      throw ioe;
+    }
+  }
+
+  /**
+   * @return the number of samples in the capture.
+   */
+  public long getNumRecords() {
+    return this.numRecords;
+  }
+
+  /**
+   * @return the number of samples returned so far.
+   */
+  public long getPosition() {
+    return this.next;
+  }
+
+  /**
+   * Returns the next sample, waiting first if it is not yet due at the
+   * configured speed.
+   *
+   * @return the next sample, or {@code null} at the end of the capture or if
+   *         the file cannot be read.
+   */
+  @Override
+  public SampleMessage getNextSample() {
+    if (this.closed || this.next >= this.numRecords) {
+      return null;
+    }
+    try {
+      if (this.next >= this.chunkStart + this.chunkRecords) {
+        this.mapChunk(this.next);
+      }
+    } catch (IOException ioe) {
+      System.err.println("Unable to map " + this.file + ": " + ioe);
+      this.disconnect();
+      return null;
+    }
+
+    final int offset = (int) (this.next - this.chunkStart) * this.recordSize;
+    if (this.speed > 0) {
+      this.pace(SampleRecordFormat.captureTime(this.chunk, offset));
+    }
+    ++this.next;
+    return SampleRecordFormat.decode(this.chunk, offset);
+  }
+
+  private void mapChunk(final long first) throws IOException {
+    this.chunkStart = first;
+    this.chunkRecords = (int) Math.min(CHUNK_RECORDS, this.numRecords - first);
+    // The previous chunk is unmapped when it is garbage collected
+    this.chunk = this.channel.map(FileChannel.MapMode.READ_ONLY,
+        SampleRecordFormat.HEADER_SIZE + first * this.recordSize,
+        (long) this.chunkRecords * this.recordSize);
+  }
+
+  /**
+   * Waits until a record captured at {@code captureTime} is due.
+   */
+  private void pace(final long captureTime) {
+    final long now = System.nanoTime();
+    if (this.next == 0) {
+      this.firstCaptureTime = captureTime;
+      this.replayStartNanos = now;
+      return;
+    }
+    final long due = this.replayStartNanos
+        + (long) ((captureTime - this.firstCaptureTime) * 1000000d / this.speed);
+    long wait = due - now;
+    while (wait >= MIN_PARK_NANOS && !this.closed) {
+      LockSupport.parkNanos(wait);
+      wait = due - System.nanoTime();
+    }
+  }
+
+  /**
+   * @return {@code true} until every sample has been returned or the replay
+   *         is closed.
+   */
+  @Override
+  public boolean isConnected() {
+    return !this.closed && this.next < this.numRecords;
+  }
+
+  /**
+   * Closes the capture file.
+   */
+  @Override
+  public void disconnect() {
+    this.closed = true;
+    try {
+      this.raf.close();
+    } catch (IOException ioe) {
+      System.err.println("Unable to close " + this.file + ": " + ioe);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedSampleReplay(" + this.file + ", " + this.speed + "x)";
+  }
+}
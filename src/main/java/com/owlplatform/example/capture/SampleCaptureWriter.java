@@ -0,0 +1,229 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.capture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * <p>
+ * Appends samples to a capture file in {@link SampleRecordFormat}. Records are
+ * encoded into a direct buffer and written to the file channel a batch at a
+ * time, so capturing costs one small copy per sample.
+ * </p>
+ *
+ * <p>
+ * An existing capture file is appended to after its header is checked; a
+ * missing or empty file gets a new header. Only whole records are ever
+ * written. This class is not thread-safe.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class SampleCaptureWriter {
+
+  /**
+   * Number of records buffered between writes.
+   */
+  public static final int DEFAULT_BATCH_RECORDS = 1024;
+
+  /**
+   * The file being written.
+   */
+  private final File file;
+
+  /**
+   * Channel opened for appending.
+   */
+  private final FileChannel channel;
+
+  /**
+   * Records waiting to be written.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * Number of records written, including those still buffered.
+   */
+  private long records = 0;
+
+  /**
+   * Number of samples whose sensed data was truncated.
+   */
+  private long truncated = 0;
+
+  /**
+   * Opens a capture file for appending.
+   *
+   * @param file
+   *          the capture file.
+   * @throws IOException
+   *           if the file cannot be opened or is not a capture file.
+   */
+  public SampleCaptureWriter(final File file) throws IOException {
+    this(file, DEFAULT_BATCH_RECORDS);
+  }
+
+  /**
+   * Opens a capture file for appending.
+   *
+   * @param file
+   *          the capture file.
+   * @param batchRecords
+   *          number of records buffered between writes.
+   * @throws IOException
+   *           if the file cannot be opened or is not a capture file.
+   */
+  public SampleCaptureWriter(final File file, final int batchRecords)
+      throws IOException {
+    this.file = file;
+    this.buffer = ByteBuffer.allocateDirect(SampleRecordFormat.RECORD_SIZE
+        * Math.max(1, batchRecords));
+    this.channel = new FileOutputStream(file, true).getChannel();
+    try {
+      final long size = this.channel.size();
+      if (size == 0) {
+        SampleRecordFormat.writeHeader(this.buffer);
+        this.buffer.flip();
+        this.writeBuffer();
+      } else {
+        this.checkExisting(size);
+      }
+    } catch (IOException ioe) {
+      this.channel.close();
+      throw ioe;
+    }
+  }
+
+  private void checkExisting(final long size) throws IOException {
+    final ByteBuffer header = ByteBuffer
+        .allocate(SampleRecordFormat.HEADER_SIZE);
+    final FileChannel in = new RandomAccessFile(this.file, "r")
+        .getChannel();
+    try {
+      while (header.hasRemaining() && in.read(header) >= 0) {
+        // Keep reading
+      }
+    } finally {
+      in.close();
+    }
+    header.flip();
+    final int recordSize = SampleRecordFormat.readHeader(header);
+    if (recordSize != SampleRecordFormat.RECORD_SIZE) {
+      throw new IOException(this.file
+          + " uses an older capture format and cannot be appended to.");
+    }
+    if ((size - SampleRecordFormat.HEADER_SIZE)
+        % SampleRecordFormat.RECORD_SIZE != 0) {
+      throw new IOException(this.file
+          + " ends with a partial record and cannot be appended to.");
+    }
+  }
+
+  /**
+   * Appends a sample, stamped with the current time.
+   *
+   * @param sample
+   *          the sample to capture.
+   * @throws IOException
+   *           if buffered records cannot be written.
+   */
+  public void write(final SampleMessage sample) throws IOException {
+    this.write(sample, System.currentTimeMillis());
+  }
+
+  /**
+   * Appends a sample.
+   *
+   * @param sample
+   *          the sample to capture.
+   * @param captureTime
+   *          the time the sample was received, used to pace replay.
+   * @throws IOException
+   *           if buffered records cannot be written.
+   */
+  public void write(final SampleMessage sample, final long captureTime)
+      throws IOException {
+    if (this.buffer.remaining() < SampleRecordFormat.RECORD_SIZE) {
+      this.flush();
+    }
+    if (SampleRecordFormat.encode(this.buffer, captureTime, sample)) {
+      ++this.truncated;
+    }
+    ++this.records;
+  }
+
+  /**
+   * Writes any buffered records to the file.
+   *
+   * @throws IOException
+   *           if the records cannot be written.
+   */
+  public void flush() throws IOException {
+    this.buffer.flip();
+    this.writeBuffer();
+  }
+
+  private void writeBuffer() throws IOException {
+    while (this.buffer.hasRemaining()) {
+      this.channel.write(this.buffer);
+    }
+    this.buffer.clear();
+  }
+
+  /**
+   * Flushes buffered records and closes the file.
+   *
+   * @throws IOException
+   *           if the records cannot be written.
+   */
+  public void close() throws IOException {
+    try {
+      this.flush();
+    } finally {
+      this.channel.close();
+    }
+  }
+
+  /**
+   * @return the number of samples written by this writer.
+   */
+  public long getRecords() {
+    return this.records;
+  }
+
+  /**
+   * @return the number of samples whose sensed data was longer than
+   *         {@link SampleRecordFormat#MAX_DATA_LENGTH} and was truncated.
+   */
+  public long getTruncated() {
+    return this.truncated;
+  }
+
+  @Override
+  public String toString() {
+    return "SampleCaptureWriter(" + this.file + ")";
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * <p>
+ * Layout of a sample capture file. The file starts with a {@value #HEADER_SIZE}
+ * byte header (the magic bytes "OWLSAMPL", a format version and the record
+ * size) followed by fixed-size records of {@value #RECORD_SIZE} bytes, so the
+ * Nth sample is always at a known offset. All values are big-endian.
+ * </p>
+ *
+ * <pre>
+ * offset  size  field
+ *      0     8  capture time (ms since the epoch, local clock)
+ *      8     8  receiver timestamp
+ *     16     4  RSSI (float)
+ *     20     1  physical layer
+ *     21     1  sensed data length
+ *     22    16  device ID
+ *     38    16  receiver ID
+ *     54    26  sensed data, zero-padded
+ * </pre>
+ *
+ * <p>
+ * Sensed data longer than {@value #MAX_DATA_LENGTH} bytes is truncated.
+ * Pipsqueak payloads are at most 4 bytes and latency probes 14. Version 1
+ * files, with 64-byte records and at most 10 bytes of sensed data, can still
+ * be read but not appended to.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public final class SampleRecordFormat {
+
+  /**
+   * Magic bytes at the start of every capture file.
+   */
+  static final byte[] MAGIC = { 'O', 'W', 'L', 'S', 'A', 'M', 'P', 'L' };
+
+  /**
+   * Current format version.
+   */
+  static final int VERSION = 2;
+
+  /**
+   * Size of each record in version 1 files.
+   */
+  static final int VERSION_1_RECORD_SIZE = 64;
+
+  /**
+   * Size of the file header in bytes.
+   */
+  public static final int HEADER_SIZE = 16;
+
+  /**
+   * Size of each record in bytes.
+   */
+  public static final int RECORD_SIZE = 80;
+
+  /**
+   * Maximum sensed data length that is stored.
+   */
+  public static final int MAX_DATA_LENGTH = 26;
+
+  private static final int OFF_RECEIVER_TIME = 8;
+
+  private static final int OFF_RSSI = 16;
+
+  private static final int OFF_PHY = 20;
+
+  private static final int OFF_DATA_LENGTH = 21;
+
+  private static final int OFF_DEVICE_ID = 22;
+
+  private static final int OFF_RECEIVER_ID = 38;
+
+  private static final int OFF_DATA = 54;
+
+  private static final int ID_SIZE = SampleMessage.DEVICE_ID_SIZE;
+
+  private SampleRecordFormat() {
+    // Static methods only
+  }
+
+  /**
+   * Writes a file header at the current position of {@code buff}.
+   *
+   * @param buff
+   *          the buffer to write to.
+   */
+  static void writeHeader(final ByteBuffer buff) {
+    buff.put(MAGIC);
+    buff.putInt(VERSION);
+    buff.putInt(RECORD_SIZE);
+  }
+
+  /**
+   * Checks the file header at the current position of {@code buff}.
+   *
+   * @param buff
+   *          the buffer to read from.
+   * @return the record size of the file, {@value #RECORD_SIZE} unless it is
+   *         an older version.
+   * @throws IOException
+   *           if the header is not a supported capture file header.
+   */
+  static int readHeader(final ByteBuffer buff) throws IOException {
+    if (buff.remaining() < HEADER_SIZE) {
+      throw new IOException("Capture file is too short.");
+    }
+    for (int i = 0; i < MAGIC.length; ++i) {
+      if (buff.get() != MAGIC[i]) {
+        throw new IOException("Not a sample capture file.");
+      }
+    }
+    final int version = buff.getInt();
+    final int recordSize = buff.getInt();
+    if (!(version == VERSION && recordSize == RECORD_SIZE)
+        && !(version == 1 && recordSize == VERSION_1_RECORD_SIZE)) {
+      throw new IOException("Unsupported capture format version " + version
+          + " with " + recordSize + "-byte records.");
+    }
+    return recordSize;
+  }
+
+  /**
+   * Encodes a sample as one record at the current position of {@code buff}.
+   *
+   * @param buff
+   *          the buffer to write to, with at least {@value #RECORD_SIZE}
+   *          bytes remaining.
+   * @param captureTime
+   *          the time the sample was captured.
+   * @param sample
+   *          the sample.
+   * @return {@code true} if the sensed data was truncated.
+   */
+  static boolean encode(final ByteBuffer buff, final long captureTime,
+      final SampleMessage sample) {
+    final int start = buff.position();
+    final byte[] data = sample.getSensedData();
+    final int dataLength = data == null ? 0 : Math.min(data.length,
+        MAX_DATA_LENGTH);
+
+    buff.putLong(captureTime);
+    buff.putLong(sample.getReceiverTimeStamp());
+    buff.putFloat(sample.getRssi());
+    buff.put(sample.getPhysicalLayer());
+    buff.put((byte) dataLength);
+    putId(buff, sample.getDeviceId());
+    putId(buff, sample.getReceiverId());
+    if (dataLength > 0) {
+      buff.put(data, 0, dataLength);
+    }
+    for (int i = OFF_DATA + dataLength; i < RECORD_SIZE; ++i) {
+      buff.put((byte) 0);
+    }
+    buff.position(start + RECORD_SIZE);
+    return data != null && data.length > dataLength;
+  }
+
+  private static void putId(final ByteBuffer buff, final byte[] id) {
+    final int length = id == null ? 0 : Math.min(id.length, ID_SIZE);
+    // Right-aligned, like a 128-bit big-endian number
+    for (int i = length; i < ID_SIZE; ++i) {
+      buff.put((byte) 0);
+    }
+    if (length > 0) {
+      buff.put(id, id.length - length, length);
+    }
+  }
+
+  /**
+   * Returns the capture time of the record at absolute position
+   * {@code offset} of {@code buff}.
+   *
+   * @param buff
+   *          the buffer holding the record.
+   * @param offset
+   *          the start of the record.
+   * @return the capture time.
+   */
+  static long captureTime(final ByteBuffer buff, final int offset) {
+    return buff.getLong(offset);
+  }
+
+  /**
+   * Decodes the record at absolute position {@code offset} of {@code buff}.
+   * The buffer's position is not changed. Records of every supported version
+   * share this layout, differing only in how much sensed data fits.
+   *
+   * @param buff
+   *          the buffer holding the record.
+   * @param offset
+   *          the start of the record.
+   * @return a new sample.
+   */
+  static SampleMessage decode(final ByteBuffer buff, final int offset) {
+    final SampleMessage sample = new SampleMessage();
+    sample.setReceiverTimeStamp(buff.getLong(offset + OFF_RECEIVER_TIME));
+    sample.setRssi(buff.getFloat(offset + OFF_RSSI));
+    sample.setPhysicalLayer(buff.get(offset + OFF_PHY));
+
+    final byte[] deviceId = new byte[ID_SIZE];
+    final byte[] receiverId = new byte[ID_SIZE];
+    for (int i = 0; i < ID_SIZE; ++i) {
+      deviceId[i] = buff.get(offset + OFF_DEVICE_ID + i);
+      receiverId[i] = buff.get(offset + OFF_RECEIVER_ID + i);
+    }
+    sample.setDeviceId(deviceId);
+    sample.setReceiverId(receiverId);
+
+    final int dataLength = Math.min(MAX_DATA_LENGTH,
+        buff.get(offset + OFF_DATA_LENGTH) & 0xFF);
+    final byte[] data = new byte[dataLength];
+    for (int i = 0; i < dataLength; ++i) {
+      data[i] = buff.get(offset + OFF_DATA + i);
+    }
+    sample.setSensedData(data);
+    return sample;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count of events, such as samples received. The
+ * {@link MetricsRegistry} that owns it also tracks its recent rate. Counting
+ * is a single atomic add and may be done from any thread.
+ *
+ * @author Robert Moore
+ */
+public class Counter {
+
+  /**
+   * Total number of events counted.
+   */
+  private final AtomicLong count = new AtomicLong(0);
+
+  /**
+   * Events per second over the last registry interval.
+   */
+  private volatile double rate = 0;
+
+  /**
+   * Count at the last registry interval.
+   */
+  private long lastCount = 0;
+
+  /**
+   * Counts one event.
+   */
+  public void increment() {
+    this.count.incrementAndGet();
+  }
+
+  /**
+   * Counts several events.
+   *
+   * @param events
+   *          the number of events.
+   */
+  public void add(final long events) {
+    this.count.addAndGet(events);
+  }
+
+  /**
+   * @return the total number of events counted.
+   */
+  public long getCount() {
+    return this.count.get();
+  }
+
+  /**
+   * @return events per second over the last registry interval.
+   */
+  public double getRate() {
+    return this.rate;
+  }
+
+  /**
+   * Updates the rate at the end of an interval. Called only by the registry
+   * timer.
+   *
+   * @param elapsedNanos
+   *          the length of the interval.
+   */
+  void tick(final long elapsedNanos) {
+    final long current = this.count.get();
+    this.rate = elapsedNanos <= 0 ? 0 : (current - this.lastCount) * 1e9
+        / elapsedNanos;
+    this.lastCount = current;
+  }
+}
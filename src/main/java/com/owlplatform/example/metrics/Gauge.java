@@ -0,0 +1,34 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.metrics;
+
+/**
+ * A value read on demand when metrics are reported, such as a queue depth.
+ * Implementations are called from reporting threads, so they must be cheap
+ * and safe to call concurrently with the code being measured.
+ *
+ * @author Robert Moore
+ */
+public interface Gauge {
+
+  /**
+   * @return the current value.
+   */
+  public long getValue();
+}
@@ -0,0 +1,167 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves the values of a {@link MetricsRegistry} as plain "name value" lines
+ * at {@code http://127.0.0.1:<port>/metrics}, for watching with {@code curl}
+ * or scraping by a monitoring agent. Only the loopback interface is bound, and
+ * requests are answered one at a time by a single daemon thread, so the
+ * endpoint never keeps a program running.
+ *
+ * @author Robert Moore
+ */
+public class MetricsHttpServer {
+
+  /**
+   * Path of the metrics page.
+   */
+  public static final String PATH = "/metrics";
+
+  /**
+   * How long to wait for a client to send its request, in milliseconds.
+   */
+  private static final int READ_TIMEOUT_MILLIS = 2000;
+
+  /**
+   * The served registry.
+   */
+  private final MetricsRegistry registry;
+
+  /**
+   * The listening socket.
+   */
+  private final ServerSocket serverSocket;
+
+  /**
+   * Accepts and answers requests.
+   */
+  private final Thread acceptor;
+
+  /**
+   * Starts serving a registry.
+   *
+   * @param registry
+   *          the registry to serve.
+   * @param port
+   *          the local port to listen on, or 0 for any free port.
+   * @throws IOException
+   *           if the port cannot be bound.
+   */
+  public MetricsHttpServer(final MetricsRegistry registry, final int port)
+      throws IOException {
+    this.registry = registry;
+    this.serverSocket = new ServerSocket(port, 8,
+        InetAddress.getByName("127.0.0.1"));
+    this.acceptor = new Thread("Metrics HTTP") {
+      @Override
+      public void run() {
+        MetricsHttpServer.this.acceptLoop();
+      }
+    };
+    this.acceptor.setDaemon(true);
+    this.acceptor.start();
+  }
+
+  /**
+   * @return the URL of the metrics page.
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + this.serverSocket.getLocalPort() + PATH;
+  }
+
+  /**
+   * Stops serving.
+   */
+  public void stop() {
+    try {
+      this.serverSocket.close();
+    } catch (IOException ioe) {
+      // Closing anyway
+    }
+  }
+
+  private void acceptLoop() {
+    while (!this.serverSocket.isClosed()) {
+      Socket client;
+      try {
+        client = this.serverSocket.accept();
+      } catch (IOException ioe) {
+        // Closed by stop()
+        break;
+      }
+      try {
+        client.setSoTimeout(READ_TIMEOUT_MILLIS);
+        this.answer(client);
+      } catch (IOException ioe) {
+        // Client went away; nothing to do
+      } finally {
+        try {
+          client.close();
+        } catch (IOException ioe) {
+          // Ignored
+        }
+      }
+    }
+  }
+
+  private void answer(final Socket client) throws IOException {
+    final BufferedReader in = new BufferedReader(new InputStreamReader(
+        client.getInputStream(), "US-ASCII"));
+    final String requestLine = in.readLine();
+    if (requestLine == null) {
+      return;
+    }
+    // Skip the headers
+    String header;
+    while ((header = in.readLine()) != null && header.length() > 0) {
+      // Nothing needed from them
+    }
+
+    final String[] parts = requestLine.split(" ");
+    final String path = parts.length > 1 ? parts[1] : "";
+    final String status;
+    final byte[] body;
+    if (path.equals(PATH) || path.startsWith(PATH + "?")) {
+      status = "200 OK";
+      body = this.registry.appendText(new StringBuilder(4096)).toString()
+          .getBytes("UTF-8");
+    } else {
+      status = "404 Not Found";
+      body = ("Metrics are at " + PATH + "\n").getBytes("UTF-8");
+    }
+
+    final OutputStream out = client.getOutputStream();
+    out.write(("HTTP/1.0 " + status
+        + "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+        + body.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+    if (!"HEAD".equals(parts[0])) {
+      out.write(body);
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes the values of a {@link MetricsRegistry} as read-only JMX
+ * attributes, one per value, named as in {@link MetricsRegistry#values()}.
+ * Metrics registered after the MBean are picked up the next time a JMX client
+ * reads the MBean's description.
+ *
+ * @author Robert Moore
+ */
+public class MetricsMBean implements DynamicMBean {
+
+  /**
+   * The published registry.
+   */
+  private final MetricsRegistry registry;
+
+  /**
+   * Creates an MBean for a registry.
+   *
+   * @param registry
+   *          the registry to publish.
+   */
+  public MetricsMBean(final MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public Object getAttribute(final String attribute)
+      throws AttributeNotFoundException, MBeanException, ReflectionException {
+    final Number value = this.registry.values().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(final String[] attributes) {
+    final SortedMap<String, Number> values = this.registry.values();
+    final AttributeList list = new AttributeList();
+    for (String name : attributes) {
+      final Number value = values.get(name);
+      if (value != null) {
+        list.add(new Attribute(name, value));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(final Attribute attribute)
+      throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only: "
+        + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(final AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(final String actionName, final Object[] params,
+      final String[] signature) throws MBeanException, ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    final SortedMap<String, Number> values = this.registry.values();
+    final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values
+        .size()];
+    int i = 0;
+    for (Map.Entry<String, Number> e : values.entrySet()) {
+      attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue()
+          .getClass().getName(), e.getKey(), true, false, false);
+    }
+    return new MBeanInfo(this.getClass().getName(),
+        "Owl Platform example metrics", attributes, null,
+        new MBeanOperationInfo[0], null);
+  }
+}
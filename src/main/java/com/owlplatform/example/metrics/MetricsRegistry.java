@@ -0,0 +1,418 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.metrics;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.owlplatform.example.util.LatencyHistogram;
+
+/**
+ * <p>
+ * A named set of counters, gauges and latency histograms shared by the
+ * example programs. Code on the hot path looks its metrics up once and then
+ * only performs atomic adds; everything else (rates, percentiles, GC
+ * statistics) is computed on a daemon timer every
+ * {@value #INTERVAL_MILLIS} milliseconds.
+ * </p>
+ *
+ * <p>
+ * Histograms report the percentiles of the last completed interval and the
+ * total number of values recorded. Garbage collection is sampled once a
+ * second from the platform {@link GarbageCollectorMXBean}s; when several
+ * collections happen within a second, each is recorded with their average
+ * pause.
+ * </p>
+ *
+ * <p>
+ * {@link #expose(String)} publishes the metrics as a JMX MBean and, if the
+ * {@value #PORT_PROPERTY} system property is set, as plain text over HTTP on
+ * that local port.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class MetricsRegistry {
+
+  /**
+   * System property holding the local port for the text endpoint.
+   */
+  public static final String PORT_PROPERTY = "owl.metrics.port";
+
+  /**
+   * Time between rate and percentile updates, in milliseconds.
+   */
+  public static final long INTERVAL_MILLIS = 5000;
+
+  /**
+   * Time between garbage collection samples, in milliseconds.
+   */
+  private static final long GC_POLL_MILLIS = 1000;
+
+  /**
+   * Registry shared by the example programs.
+   */
+  private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+  /**
+   * Counters by name.
+   */
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+  /**
+   * Gauges by name.
+   */
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+  /**
+   * Histograms by name.
+   */
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+  /**
+   * Runs interval updates and GC sampling, created by {@link #start()}.
+   */
+  private Timer timer = null;
+
+  /**
+   * Serves the text endpoint, if started.
+   */
+  private MetricsHttpServer httpServer = null;
+
+  /**
+   * @return the registry shared by the example programs.
+   */
+  public static MetricsRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns the counter with the given name, creating it if needed.
+   *
+   * @param name
+   *          the metric name, such as "solver.samples.in".
+   * @return the counter.
+   */
+  public Counter counter(final String name) {
+    Counter counter = this.counters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      final Counter existing = this.counters.putIfAbsent(name, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Returns the latency histogram with the given name, creating it if needed.
+   * Values are recorded in nanoseconds.
+   *
+   * @param name
+   *          the metric name, such as "solver.dispatch".
+   * @return the histogram to record into.
+   */
+  public LatencyHistogram histogram(final String name) {
+    Histogram histogram = this.histograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram();
+      final Histogram existing = this.histograms.putIfAbsent(name, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram.live;
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge with the same name.
+   *
+   * @param name
+   *          the metric name, such as "solver.queue.0".
+   * @param gauge
+   *          reads the current value.
+   */
+  public void gauge(final String name, final Gauge gauge) {
+    this.gauges.put(name, gauge);
+  }
+
+  /**
+   * Starts updating rates, percentiles and GC statistics. Does nothing if
+   * already started.
+   */
+  public synchronized void start() {
+    if (this.timer != null) {
+      return;
+    }
+    this.timer = new Timer("Metrics", true);
+    this.timer.schedule(new TimerTask() {
+      private long last = System.nanoTime();
+
+      @Override
+      public void run() {
+        final long now = System.nanoTime();
+        MetricsRegistry.this.endInterval(now - this.last);
+        this.last = now;
+      }
+    }, INTERVAL_MILLIS, INTERVAL_MILLIS);
+    this.timer.schedule(new GcPoller(), GC_POLL_MILLIS, GC_POLL_MILLIS);
+  }
+
+  /**
+   * Stops updating metrics and stops the text endpoint, if any.
+   */
+  public synchronized void stop() {
+    if (this.timer != null) {
+      this.timer.cancel();
+      this.timer = null;
+    }
+    if (this.httpServer != null) {
+      this.httpServer.stop();
+      this.httpServer = null;
+    }
+  }
+
+  /**
+   * Starts the registry, registers it as the MBean
+   * {@code com.owlplatform.example:type=Metrics,name=<program>}, and starts
+   * the text endpoint if {@value #PORT_PROPERTY} is set. Failures are
+   * reported to standard error and otherwise ignored, so that metrics never
+   * stop a program from running.
+   *
+   * @param program
+   *          the name of the program, used in the MBean name.
+   */
+  public synchronized void expose(final String program) {
+    this.start();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new MetricsMBean(this),
+          new ObjectName("com.owlplatform.example:type=Metrics,name="
+              + program));
+    } catch (JMException jme) {
+      System.err.println("Unable to register metrics MBean: " + jme);
+    }
+
+    final String port = System.getProperty(PORT_PROPERTY);
+    if (port == null || this.httpServer != null) {
+      return;
+    }
+    try {
+      this.httpServer = new MetricsHttpServer(this, Integer.parseInt(port));
+      System.out.println("Serving metrics at " + this.httpServer.getUrl());
+    } catch (NumberFormatException nfe) {
+      System.err.println("Invalid " + PORT_PROPERTY + ": " + port);
+    } catch (IOException ioe) {
+      System.err.println("Unable to serve metrics on port " + port + ": "
+          + ioe.getMessage());
+    }
+  }
+
+  /**
+   * Returns the current value of every metric, sorted by name. Counters
+   * report {@code .count} and {@code .rate}; histograms report
+   * {@code .count} and the mean, percentiles and maximum of the last interval
+   * in microseconds; gauges report their value.
+   *
+   * @return metric values by name.
+   */
+  public SortedMap<String, Number> values() {
+    final SortedMap<String, Number> values = new TreeMap<String, Number>();
+    for (Map.Entry<String, Counter> e : this.counters.entrySet()) {
+      values.put(e.getKey() + ".count", Long.valueOf(e.getValue().getCount()));
+      values.put(e.getKey() + ".rate", Double.valueOf(e.getValue().getRate()));
+    }
+    for (Map.Entry<String, Gauge> e : this.gauges.entrySet()) {
+      long value;
+      try {
+        value = e.getValue().getValue();
+      } catch (RuntimeException re) {
+        value = -1;
+      }
+      values.put(e.getKey(), Long.valueOf(value));
+    }
+    for (Map.Entry<String, Histogram> e : this.histograms.entrySet()) {
+      final String name = e.getKey();
+      final Histogram h = e.getValue();
+      final LatencyHistogram last = h.interval;
+      values.put(name + ".count", Long.valueOf(h.total
+          + h.live.getTotalCount()));
+      values.put(name + ".mean_us", Double.valueOf(last.getMean() / 1000d));
+      values.put(name + ".p50_us",
+          Double.valueOf(last.getValueAtPercentile(50) / 1000d));
+      values.put(name + ".p99_us",
+          Double.valueOf(last.getValueAtPercentile(99) / 1000d));
+      values.put(name + ".p999_us",
+          Double.valueOf(last.getValueAtPercentile(99.9) / 1000d));
+      values.put(name + ".max_us", Double.valueOf(last.getMax() / 1000d));
+    }
+    return values;
+  }
+
+  /**
+   * Appends every metric as a "name value" line, sorted by name.
+   *
+   * @param out
+   *          the buffer to append to.
+   * @return {@code out}.
+   */
+  public StringBuilder appendText(final StringBuilder out) {
+    for (Map.Entry<String, Number> e : this.values().entrySet()) {
+      out.append(e.getKey()).append(' ');
+      final Number value = e.getValue();
+      if (value instanceof Double) {
+        out.append(String.format("%.3f", value));
+      } else {
+        out.append(value);
+      }
+      out.append('\n');
+    }
+    return out;
+  }
+
+  /**
+   * Closes an interval: updates counter rates and moves histogram values
+   * into their interval snapshots.
+   */
+  void endInterval(final long elapsedNanos) {
+    for (Counter counter : this.counters.values()) {
+      counter.tick(elapsedNanos);
+    }
+    for (Histogram h : this.histograms.values()) {
+      final LatencyHistogram next = new LatencyHistogram();
+      h.live.drainTo(next);
+      h.total += next.getTotalCount();
+      h.interval = next;
+    }
+  }
+
+  /**
+   * A histogram being recorded and its last completed interval.
+   */
+  private static final class Histogram {
+
+    /**
+     * Recorded into by the measured code.
+     */
+    final LatencyHistogram live = new LatencyHistogram();
+
+    /**
+     * Values from the last completed interval, replaced each interval.
+     */
+    volatile LatencyHistogram interval = new LatencyHistogram();
+
+    /**
+     * Values recorded before the current interval. Only written by the
+     * registry timer.
+     */
+    volatile long total = 0;
+
+    Histogram() {
+      super();
+    }
+  }
+
+  /**
+   * Samples the garbage collectors and records new collections.
+   */
+  private final class GcPoller extends TimerTask {
+
+    /**
+     * The platform collectors.
+     */
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory
+        .getGarbageCollectorMXBeans();
+
+    /**
+     * Collection count of each collector at the last poll.
+     */
+    private final long[] lastCounts = new long[this.collectors.size()];
+
+    /**
+     * Total collection time of each collector at the last poll, in
+     * milliseconds.
+     */
+    private final long[] lastTimes = new long[this.collectors.size()];
+
+    /**
+     * Number of collections.
+     */
+    private final Counter collections = MetricsRegistry.this
+        .counter("gc.collections");
+
+    /**
+     * Time spent collecting, in milliseconds.
+     */
+    private final Counter millis = MetricsRegistry.this.counter("gc.millis");
+
+    /**
+     * Pause per collection.
+     */
+    private final LatencyHistogram pauses = MetricsRegistry.this
+        .histogram("gc.pause");
+
+    GcPoller() {
+      for (int i = 0; i < this.lastCounts.length; ++i) {
+        this.lastCounts[i] = Math.max(0, this.collectors.get(i)
+            .getCollectionCount());
+        this.lastTimes[i] = Math.max(0, this.collectors.get(i)
+            .getCollectionTime());
+      }
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < this.lastCounts.length; ++i) {
+        final GarbageCollectorMXBean gc = this.collectors.get(i);
+        final long count = gc.getCollectionCount();
+        final long time = gc.getCollectionTime();
+        if (count < 0 || time < 0) {
+          // Not supported by this collector
+          continue;
+        }
+        final long newCollections = count - this.lastCounts[i];
+        final long newMillis = time - this.lastTimes[i];
+        this.lastCounts[i] = count;
+        this.lastTimes[i] = time;
+        if (newCollections <= 0) {
+          continue;
+        }
+        this.collections.add(newCollections);
+        this.millis.add(newMillis);
+        final long pauseNanos = newMillis * 1000000L / newCollections;
+        for (long c = 0; c < newCollections; ++c) {
+          this.pauses.record(pauseNanos);
+        }
+      }
+    }
+  }
+}
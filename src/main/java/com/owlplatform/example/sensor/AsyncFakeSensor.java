@@ -22,6 +22,10 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.example.util.RateReporter;
 import com.owlplatform.sensor.SensorAggregatorInterface;
 import com.owlplatform.sensor.listeners.ConnectionListener;
 
@@ -64,17 +68,15 @@ public class AsyncFakeSensor implements ConnectionListener {
       }
     });
 
-    /*
-     * No need to stay connected since this is an example, though in real life
-     * this would be handy.
-     */
-    agg.setStayConnected(false);
+    // Reconnect with backoff if the aggregator goes away
+    ReconnectSupervisor.supervise(agg);
     agg.setDisconnectOnException(true);
 
     agg.setHost(args[0]);
     int port = Integer.parseInt(args[1]);
     agg.setPort(port);
 
+    MetricsRegistry.getDefault().expose("AsyncFakeSensor");
     AsyncFakeSensor sensor = new AsyncFakeSensor();
     agg.addConnectionListener(sensor);
 
@@ -88,10 +90,34 @@ public class AsyncFakeSensor implements ConnectionListener {
    */
   final Timer timer = new Timer();
 
+  /**
+   * Counts sent samples and prints a summary every 10 seconds.
+   */
+  final RateReporter sentRate = new RateReporter("Sent samples");
+
+  /**
+   * Samples sent, for the metrics endpoints.
+   */
+  final Counter sent = MetricsRegistry.getDefault().counter(
+      "sensor.samples.out");
+
+  /**
+   * Time taken by each {@code sendSample} call.
+   */
+  final LatencyHistogram sendTime = MetricsRegistry.getDefault().histogram(
+      "sensor.send");
+
+  /**
+   * Set once the sending task has been scheduled.
+   */
+  private boolean started = false;
+
   @Override
   public void connectionEnded(SensorAggregatorInterface aggregator) {
-    System.err.println("Lost connection to " + aggregator);
-    System.exit(1);
+    // Only happens once the aggregator interface stops reconnecting
+    System.err.println("Connection to " + aggregator + " ended.");
+    this.timer.cancel();
+    this.sentRate.stop();
   }
 
   @Override
@@ -101,13 +127,19 @@ public class AsyncFakeSensor implements ConnectionListener {
 
   @Override
   public void connectionInterrupted(SensorAggregatorInterface aggregator) {
-    System.out
-        .println("Connection was temporarily lost. Library may try again.");
+    // ReconnectSupervisor schedules the next attempt
   }
 
   @Override
-  public void readyForSamples(final SensorAggregatorInterface aggregator) {
+  public synchronized void readyForSamples(
+      final SensorAggregatorInterface aggregator) {
     System.out.println("Handshakes exchanged. Sending samples.");
+    // After a reconnect the task is already running
+    if (this.started) {
+      return;
+    }
+    this.started = true;
+    this.sentRate.start(10000L);
     this.timer.schedule(new TimerTask() {
       private final byte[] DEV_ID = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
           11, 12, 13, 14, 15, 16 };
@@ -117,21 +149,30 @@ public class AsyncFakeSensor implements ConnectionListener {
       private final byte PHY = 1;
       private final byte[] DATA = new byte[] { (byte) 0xAB, (byte) 0xBA };
 
+      // The sample never changes, so build it once and re-send it every time.
+      private final SampleMessage msg = new SampleMessage();
+      {
+        this.msg.setPhysicalLayer(this.PHY);
+        this.msg.setRssi(this.RSSI);
+        this.msg.setDeviceId(this.DEV_ID);
+        this.msg.setReceiverId(this.RECV_ID);
+        this.msg.setSensedData(this.DATA);
+      }
+
       @Override
       public void run() {
-        // Create a generic sample message and send it.
-        SampleMessage msg = new SampleMessage();
-        msg.setPhysicalLayer(this.PHY);
-        msg.setRssi(this.RSSI);
-        msg.setDeviceId(this.DEV_ID);
-        msg.setReceiverId(this.RECV_ID);
-        msg.setSensedData(this.DATA);
-        if (!aggregator.sendSample(msg)) {
-          // If the send fails for any reason, exit.
+        // Skip samples while reconnecting
+        if (!aggregator.isCanSendSamples()) {
+          return;
+        }
+        final long start = System.nanoTime();
+        final boolean ok = aggregator.sendSample(this.msg);
+        AsyncFakeSensor.this.sendTime.record(System.nanoTime() - start);
+        if (!ok) {
           System.err.println("Unable to send a sample!");
-          AsyncFakeSensor.this.timer.cancel();
         } else {
-          System.out.println("Sent " + msg);
+          AsyncFakeSensor.this.sentRate.increment();
+          AsyncFakeSensor.this.sent.increment();
         }
 
       }
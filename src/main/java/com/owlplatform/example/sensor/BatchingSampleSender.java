@@ -0,0 +1,175 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.sensor;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+
+/**
+ * <p>
+ * Sends samples to an aggregator in batches, reusing a fixed pool of
+ * {@link SampleMessage} objects and sensed data arrays so that steady-state
+ * sending allocates nothing.
+ * </p>
+ *
+ * <p>
+ * Callers {@link #claim()} a message, fill in its fields (writing sensed data
+ * into the array returned by {@link SampleMessage#getSensedData()}), and
+ * repeat. When the batch is full, or when {@link #flush()} is called, every
+ * claimed message is passed to {@link SensorAggregatorInterface#sendSample(SampleMessage)}
+ * in one tight loop and the pool becomes available again. This relies on the
+ * sensor library encoding a sample on the calling thread before
+ * {@code sendSample} returns, so a message may be overwritten afterwards.
+ * </p>
+ *
+ * <p>
+ * This class is not thread-safe; use one sender per sending thread.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class BatchingSampleSender {
+
+  /**
+   * Default number of samples per batch.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 256;
+
+  /**
+   * The aggregator to send to.
+   */
+  private final SensorAggregatorInterface aggregator;
+
+  /**
+   * Pooled messages, each with its own sensed data array.
+   */
+  private final SampleMessage[] pool;
+
+  /**
+   * Number of messages claimed since the last flush.
+   */
+  private int claimed = 0;
+
+  /**
+   * Set once a send fails.
+   */
+  private boolean failed = false;
+
+  /**
+   * Optional histogram of time spent in each {@code sendSample} call.
+   */
+  private LatencyHistogram sendLatency = null;
+
+  /**
+   * Creates a new sender.
+   *
+   * @param aggregator
+   *          the aggregator to send samples to.
+   * @param batchSize
+   *          the number of samples to send per flush.
+   * @param dataLength
+   *          the length of each pooled message's sensed data array, or 0 for
+   *          messages without sensed data.
+   */
+  public BatchingSampleSender(final SensorAggregatorInterface aggregator,
+      final int batchSize, final int dataLength) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive: "
+          + batchSize);
+    }
+    this.aggregator = aggregator;
+    this.pool = new SampleMessage[batchSize];
+    for (int i = 0; i < batchSize; ++i) {
+      this.pool[i] = new SampleMessage();
+      if (dataLength > 0) {
+        this.pool[i].setSensedData(new byte[dataLength]);
+      }
+    }
+  }
+
+  /**
+   * Records the duration of every {@code sendSample} call, in nanoseconds,
+   * into {@code histogram}.
+   *
+   * @param histogram
+   *          the histogram to record into, or {@code null} to stop recording.
+   */
+  public void setSendLatency(final LatencyHistogram histogram) {
+    this.sendLatency = histogram;
+  }
+
+  /**
+   * Returns a pooled message to fill in. Its previous field values are left
+   * in place. Flushes the batch first if it is already full.
+   *
+   * @return a message that will be sent on the next flush.
+   */
+  public SampleMessage claim() {
+    if (this.claimed == this.pool.length) {
+      this.flush();
+    }
+    return this.pool[this.claimed++];
+  }
+
+  /**
+   * Sends every claimed message. Stops at the first message that cannot be
+   * sent; that message and the rest of the batch are discarded.
+   *
+   * @return {@code true} if every message was sent.
+   */
+  public boolean flush() {
+    final int toSend = this.claimed;
+    this.claimed = 0;
+    if (this.failed) {
+      return false;
+    }
+    int sent = 0;
+    final LatencyHistogram latency = this.sendLatency;
+    for (; sent < toSend; ++sent) {
+      final boolean ok;
+      if (latency != null) {
+        final long start = System.nanoTime();
+        ok = this.aggregator.sendSample(this.pool[sent]);
+        latency.record(System.nanoTime() - start);
+      } else {
+        ok = this.aggregator.sendSample(this.pool[sent]);
+      }
+      if (!ok) {
+        this.failed = true;
+        break;
+      }
+    }
+    return !this.failed;
+  }
+
+  /**
+   * @return {@code true} if any send has failed.
+   */
+  public boolean isFailed() {
+    return this.failed;
+  }
+
+  /**
+   * @return the number of samples sent per flush.
+   */
+  public int getBatchSize() {
+    return this.pool.length;
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.sensor;
+
+import java.util.Random;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * <p>
+ * A simulated deployment of Pipsqueak transmitters and receivers, used to
+ * generate realistic-looking samples for load testing.
+ * </p>
+ *
+ * <p>
+ * Receivers are placed on a square grid and transmitters are scattered
+ * uniformly over the same area. Each transmitter is heard by its nearest few
+ * receivers, with a mean RSSI given by a log-distance path loss model and
+ * Gaussian shadowing added to every sample. Each transmitter also has a
+ * temperature that slowly random-walks around room temperature and a binary
+ * state that occasionally flips; both are encoded in the Pipsqueak sensed
+ * data format understood by {@code TagCounter}.
+ * </p>
+ *
+ * <p>
+ * Device IDs are stored in the low 4 bytes of the 16-byte identifier, which is
+ * how Pipsqueak IDs appear on the wire. This class is not thread-safe.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class DevicePopulation {
+
+  /**
+   * Length of the sensed data generated for each sample.
+   */
+  public static final int DATA_LENGTH = 4;
+
+  /**
+   * Spacing between receivers on the grid, in meters.
+   */
+  private static final double RECEIVER_SPACING = 10.0;
+
+  /**
+   * RSSI at 1 meter, in dBm.
+   */
+  private static final double RSSI_AT_1M = -40.0;
+
+  /**
+   * Path loss exponent for an indoor environment.
+   */
+  private static final double PATH_LOSS_EXPONENT = 2.5;
+
+  /**
+   * Standard deviation of per-sample shadowing, in dB.
+   */
+  private static final double SHADOWING_STDDEV = 4.0;
+
+  /**
+   * Weakest RSSI a receiver will report.
+   */
+  private static final float MIN_RSSI = -105f;
+
+  /**
+   * Probability that a transmitter's binary state flips on any sample.
+   */
+  private static final double STATE_FLIP_PROBABILITY = 0.001;
+
+  /**
+   * Transmitter IDs.
+   */
+  private final byte[][] transmitterIds;
+
+  /**
+   * Receiver IDs.
+   */
+  private final byte[][] receiverIds;
+
+  /**
+   * For each transmitter, the indices of the receivers that can hear it.
+   */
+  private final int[][] hearers;
+
+  /**
+   * For each transmitter, the mean RSSI at each of its {@link #hearers}.
+   */
+  private final float[][] meanRssi;
+
+  /**
+   * Current temperature of each transmitter, in degrees Celsius.
+   */
+  private final float[] temperatures;
+
+  /**
+   * Current binary state of each transmitter.
+   */
+  private final boolean[] states;
+
+  /**
+   * Source of randomness.
+   */
+  private final Random random;
+
+  /**
+   * Whether receiver timestamps come from {@link System#nanoTime()} instead of
+   * the wall clock.
+   */
+  private boolean nanoTimestamps = false;
+
+  /**
+   * Creates a new population.
+   *
+   * @param numTransmitters
+   *          number of simulated transmitters.
+   * @param numReceivers
+   *          number of simulated receivers.
+   * @param hearersPerTransmitter
+   *          how many receivers hear each transmitter.
+   * @param seed
+   *          random seed, so that runs can be repeated.
+   */
+  public DevicePopulation(final int numTransmitters, final int numReceivers,
+      final int hearersPerTransmitter, final long seed) {
+    if (numTransmitters < 1 || numReceivers < 1) {
+      throw new IllegalArgumentException(
+          "Need at least one transmitter and one receiver.");
+    }
+    this.random = new Random(seed);
+    this.transmitterIds = new byte[numTransmitters][];
+    this.receiverIds = new byte[numReceivers][];
+    this.hearers = new int[numTransmitters][];
+    this.meanRssi = new float[numTransmitters][];
+    this.temperatures = new float[numTransmitters];
+    this.states = new boolean[numTransmitters];
+
+    final int gridWidth = (int) Math.ceil(Math.sqrt(numReceivers));
+    final double[] rxX = new double[numReceivers];
+    final double[] rxY = new double[numReceivers];
+    for (int r = 0; r < numReceivers; ++r) {
+      this.receiverIds[r] = toDeviceId(r + 1);
+      rxX[r] = (r % gridWidth) * RECEIVER_SPACING;
+      rxY[r] = (r / gridWidth) * RECEIVER_SPACING;
+    }
+
+    final double extent = gridWidth * RECEIVER_SPACING;
+    final int numHearers = Math.max(1,
+        Math.min(hearersPerTransmitter, numReceivers));
+    final double[] distances = new double[numReceivers];
+    for (int t = 0; t < numTransmitters; ++t) {
+      this.transmitterIds[t] = toDeviceId(t + 1);
+      final double x = this.random.nextDouble() * extent;
+      final double y = this.random.nextDouble() * extent;
+      for (int r = 0; r < numReceivers; ++r) {
+        final double dx = x - rxX[r];
+        final double dy = y - rxY[r];
+        distances[r] = Math.sqrt(dx * dx + dy * dy);
+      }
+      this.hearers[t] = nearest(distances, numHearers);
+      this.meanRssi[t] = new float[numHearers];
+      for (int h = 0; h < numHearers; ++h) {
+        final double d = Math.max(1.0, distances[this.hearers[t][h]]);
+        this.meanRssi[t][h] = (float) (RSSI_AT_1M - 10 * PATH_LOSS_EXPONENT
+            * Math.log10(d));
+      }
+      this.temperatures[t] = 18f + this.random.nextFloat() * 6f;
+      this.states[t] = this.random.nextBoolean();
+    }
+  }
+
+  /**
+   * Returns the indices of the {@code k} smallest distances.
+   */
+  private static int[] nearest(final double[] distances, final int k) {
+    final int[] best = new int[k];
+    final boolean[] taken = new boolean[distances.length];
+    for (int i = 0; i < k; ++i) {
+      int bestIdx = -1;
+      for (int r = 0; r < distances.length; ++r) {
+        if (!taken[r]
+            && (bestIdx < 0 || distances[r] < distances[bestIdx])) {
+          bestIdx = r;
+        }
+      }
+      taken[bestIdx] = true;
+      best[i] = bestIdx;
+    }
+    return best;
+  }
+
+  /**
+   * Builds a 16-byte device ID with {@code id} in the low 4 bytes.
+   *
+   * @param id
+   *          the numeric ID.
+   * @return the device ID.
+   */
+  public static byte[] toDeviceId(final int id) {
+    final byte[] deviceId = new byte[SampleMessage.DEVICE_ID_SIZE];
+    deviceId[12] = (byte) (id >> 24);
+    deviceId[13] = (byte) (id >> 16);
+    deviceId[14] = (byte) (id >> 8);
+    deviceId[15] = (byte) id;
+    return deviceId;
+  }
+
+  /**
+   * Stamps samples with {@link System#nanoTime()} instead of
+   * {@link System#currentTimeMillis()}. This gives precise one-way latency
+   * when the sender and receiver of the samples run in the same JVM, but the
+   * timestamps are meaningless anywhere else.
+   *
+   * @param nanoTimestamps
+   *          {@code true} to use {@code System.nanoTime()}.
+   */
+  public void setNanoTimestamps(final boolean nanoTimestamps) {
+    this.nanoTimestamps = nanoTimestamps;
+  }
+
+  /**
+   * @return the number of transmitters.
+   */
+  public int getNumTransmitters() {
+    return this.transmitterIds.length;
+  }
+
+  /**
+   * @return the number of receivers.
+   */
+  public int getNumReceivers() {
+    return this.receiverIds.length;
+  }
+
+  /**
+   * Fills {@code msg} with a sample from a random transmitter as heard by one
+   * of its receivers, using {@code data} as the sensed data array.
+   *
+   * @param msg
+   *          the message to fill.
+   * @param data
+   *          an array of at least {@link #DATA_LENGTH} bytes that becomes the
+   *          message's sensed data.
+   * @return the index of the receiver that heard the sample.
+   */
+  public int fill(final SampleMessage msg, final byte[] data) {
+    return this.fill(msg, data,
+        this.random.nextInt(this.transmitterIds.length));
+  }
+
+  /**
+   * Fills {@code msg} with a sample from transmitter {@code tx} as heard by
+   * one of its receivers, using {@code data} as the sensed data array.
+   *
+   * @param msg
+   *          the message to fill.
+   * @param data
+   *          an array of at least {@link #DATA_LENGTH} bytes that becomes the
+   *          message's sensed data.
+   * @param tx
+   *          the index of the transmitter.
+   * @return the index of the receiver that heard the sample.
+   */
+  public int fill(final SampleMessage msg, final byte[] data, final int tx) {
+    final int h = this.random.nextInt(this.hearers[tx].length);
+    final float rssi = (float) (this.meanRssi[tx][h] + this.random
+        .nextGaussian() * SHADOWING_STDDEV);
+
+    msg.setPhysicalLayer(SampleMessage.PHYSICAL_LAYER_PIPSQUEAK);
+    msg.setDeviceId(this.transmitterIds[tx]);
+    msg.setReceiverId(this.receiverIds[this.hearers[tx][h]]);
+    msg.setReceiverTimeStamp(this.nanoTimestamps ? System.nanoTime() : System
+        .currentTimeMillis());
+    msg.setRssi(Math.max(MIN_RSSI, rssi));
+
+    // Slow random walk, kept within a plausible indoor range
+    float temp = this.temperatures[tx]
+        + (float) (this.random.nextGaussian() * 0.05);
+    temp = Math.max(10f, Math.min(35f, temp));
+    this.temperatures[tx] = temp;
+    if (this.random.nextDouble() < STATE_FLIP_PROBABILITY) {
+      this.states[tx] = !this.states[tx];
+    }
+    encodeSensedData(data, temp, this.states[tx]);
+    msg.setSensedData(data);
+    return this.hearers[tx][h];
+  }
+
+  /**
+   * Encodes a Pipsqueak payload with both the 7-bit and 16-bit temperature
+   * fields and the binary state.
+   *
+   * @param data
+   *          an array of at least {@link #DATA_LENGTH} bytes.
+   * @param temperature
+   *          the temperature in degrees Celsius.
+   * @param on
+   *          the binary state.
+   */
+  static void encodeSensedData(final byte[] data, final float temperature,
+      final boolean on) {
+    final int coarse = Math.max(0, Math.min(0x7F, Math.round(temperature) + 40));
+    final int fine = Math.max(0,
+        Math.min(0xFFF, Math.round((temperature + 40f) * 16f)));
+    // 7-bit temperature present, 16-bit temperature present
+    data[0] = 0x03;
+    data[1] = (byte) ((coarse << 1) | (on ? 0x01 : 0x00));
+    data[2] = (byte) (fine >> 8);
+    data[3] = (byte) fine;
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.sensor;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.example.util.LatencyProbe;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+
+/**
+ * <p>
+ * A sensor for load-testing an aggregator. Instead of one fixed sample per
+ * second, it simulates a {@link DevicePopulation} of many transmitters and
+ * receivers and sends their samples at a target aggregate rate.
+ * </p>
+ *
+ * <p>
+ * Samples are paced against the wall clock: the sender keeps track of how
+ * many samples should have been sent so far and sends bursts to catch up, so
+ * short stalls are made up for rather than lowering the average rate. Each
+ * burst is sent through a {@link BatchingSampleSender}, so no objects are
+ * allocated per sample. The achieved rate and the time spent in each
+ * {@link SensorAggregatorInterface#sendSample(SampleMessage)} call are printed
+ * periodically.
+ * </p>
+ *
+ * <p>
+ * In probe mode every sample is a {@link LatencyProbe} stamped with its send
+ * time and a per-receiver sequence number, so that a solver such as
+ * {@code TagCounter} can report one-way latency, loss and reordering for each
+ * receiver.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class LoadGeneratingSensor {
+
+  /**
+   * Default number of simulated transmitters.
+   */
+  public static final int DEFAULT_TRANSMITTERS = 5000;
+
+  /**
+   * Default number of simulated receivers.
+   */
+  public static final int DEFAULT_RECEIVERS = 100;
+
+  /**
+   * Default number of samples to send per second.
+   */
+  public static final int DEFAULT_RATE = 100000;
+
+  /**
+   * Number of receivers that hear each transmitter.
+   */
+  private static final int HEARERS_PER_TRANSMITTER = 4;
+
+  /**
+   * Parses the command-line arguments, connects to the aggregator and sends
+   * samples until the duration elapses or the connection fails.
+   *
+   * <p>
+   * Options following the aggregator host and port:
+   * <ul>
+   * <li>-t N: number of transmitters (default 5000)</li>
+   * <li>-r N: number of receivers (default 100)</li>
+   * <li>-s N: samples per second (default 100000)</li>
+   * <li>-d N: seconds to run, 0 to run until stopped (default 0)</li>
+   * <li>-i N: seconds between statistics reports (default 5)</li>
+   * <li>-l: send latency probes instead of Pipsqueak samples</li>
+   * </ul>
+   * </p>
+   *
+   * @param args
+   *          aggregator host, port and options.
+   * @throws Exception
+   *           if an exception is thrown by any of the code
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Invalid number of arguments.");
+      System.err
+          .println("Usage: <Aggregator Host> <Aggregator Port> [-t Transmitters] [-r Receivers] [-s Samples/s] [-d Seconds] [-i Report Seconds] [-l]");
+      return;
+    }
+
+    int numTransmitters = DEFAULT_TRANSMITTERS;
+    int numReceivers = DEFAULT_RECEIVERS;
+    int rate = DEFAULT_RATE;
+    int duration = 0;
+    int reportInterval = 5;
+    boolean probes = false;
+    for (int argc = 2; argc < args.length; ++argc) {
+      String arg = args[argc];
+      if ("-t".equals(arg)) {
+        numTransmitters = Integer.parseInt(args[++argc]);
+      } else if ("-r".equals(arg)) {
+        numReceivers = Integer.parseInt(args[++argc]);
+      } else if ("-s".equals(arg)) {
+        rate = Integer.parseInt(args[++argc]);
+      } else if ("-d".equals(arg)) {
+        duration = Integer.parseInt(args[++argc]);
+      } else if ("-i".equals(arg)) {
+        reportInterval = Integer.parseInt(args[++argc]);
+      } else if ("-l".equals(arg)) {
+        probes = true;
+      } else {
+        System.err.println("Unknown option: " + arg);
+        return;
+      }
+    }
+    if (rate <= 0) {
+      System.err.println("Samples/s must be greater than 0: " + rate);
+      return;
+    }
+
+    final SensorAggregatorInterface agg = new SensorAggregatorInterface();
+    agg.setDisconnectOnException(true);
+    agg.setStayConnected(false);
+    agg.setHost(args[0]);
+    int port = Integer.parseInt(args[1]);
+    agg.setPort(port);
+    final ReadinessListener ready = ReadinessListener.register(agg);
+
+    final LoadGeneratingSensor sensor = new LoadGeneratingSensor(
+        new DevicePopulation(numTransmitters, numReceivers,
+            HEARERS_PER_TRANSMITTER, System.nanoTime()), rate);
+    sensor.setProbes(probes);
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        sensor.stop();
+        System.out.println("Disconnecting...");
+        agg.disconnect();
+        System.out.println("Disconnected.");
+      }
+    });
+
+    if (!agg.connect(10000L)) {
+      System.err.println("Unable to connect to aggregator at " + args[0] + ":"
+          + port);
+      return;
+    }
+
+    // Wait up to 1 second for the aggregator to be ready to accept data
+    if (!ready.awaitReady(1000L)) {
+      System.err
+          .println("Aggregator didn't become ready after 1 second. Giving-up!");
+      return;
+    }
+
+    System.out.printf(
+        "Simulating %,d transmitters and %,d receivers at %,d %s/s.\n",
+        Integer.valueOf(numTransmitters), Integer.valueOf(numReceivers),
+        Integer.valueOf(rate), probes ? "latency probes" : "samples");
+    sensor.run(agg, duration * 1000L, reportInterval * 1000L);
+    agg.disconnect();
+  }
+
+  /**
+   * The simulated devices.
+   */
+  private final DevicePopulation population;
+
+  /**
+   * Target number of samples per second.
+   */
+  private final int rate;
+
+  /**
+   * Time spent in each call to {@code sendSample}, in nanoseconds.
+   */
+  private final LatencyHistogram sendLatency = new LatencyHistogram();
+
+  /**
+   * Total number of samples sent.
+   */
+  private final AtomicLong sent = new AtomicLong(0);
+
+  /**
+   * Whether to send latency probes instead of Pipsqueak samples.
+   */
+  private boolean probes = false;
+
+  /**
+   * Cleared to stop sending.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * Creates a new load generator.
+   *
+   * @param population
+   *          the simulated devices.
+   * @param rate
+   *          the target number of samples per second.
+   * @throws IllegalArgumentException
+   *           if {@code rate} is not positive.
+   */
+  public LoadGeneratingSensor(final DevicePopulation population, final int rate) {
+    if (rate <= 0) {
+      throw new IllegalArgumentException("Rate must be positive: " + rate);
+    }
+    this.population = population;
+    this.rate = rate;
+  }
+
+  /**
+   * Sends {@link LatencyProbe} samples instead of Pipsqueak samples. Must be
+   * called before {@link #run(SensorAggregatorInterface, long, long)}.
+   *
+   * @param probes
+   *          {@code true} to send latency probes.
+   */
+  public void setProbes(final boolean probes) {
+    this.probes = probes;
+  }
+
+  /**
+   * Stops sending samples.
+   */
+  public void stop() {
+    this.running = false;
+  }
+
+  /**
+   * @return the total number of samples sent.
+   */
+  public long getSent() {
+    return this.sent.get();
+  }
+
+  /**
+   * Sends samples at the target rate on the calling thread until stopped, the
+   * duration elapses or a send fails.
+   *
+   * @param agg
+   *          a connected aggregator interface that is ready for samples.
+   * @param durationMillis
+   *          how long to run, or 0 to run until stopped.
+   * @param reportMillis
+   *          how often to print statistics.
+   */
+  public void run(final SensorAggregatorInterface agg,
+      final long durationMillis, final long reportMillis) {
+    final Timer reportTimer = new Timer("Load statistics", true);
+    reportTimer.schedule(new TimerTask() {
+      private final LatencyHistogram interval = new LatencyHistogram();
+      private long lastSent = 0;
+      private long lastTime = System.nanoTime();
+
+      @Override
+      public void run() {
+        final long now = System.nanoTime();
+        final long total = LoadGeneratingSensor.this.sent.get();
+        this.interval.reset();
+        LoadGeneratingSensor.this.sendLatency.drainTo(this.interval);
+        final double achieved = (total - this.lastSent) * 1e9
+            / (now - this.lastTime);
+        System.out.printf("Sent %,.0f samples/s (target %,d) | send %s\n",
+            Double.valueOf(achieved),
+            Integer.valueOf(LoadGeneratingSensor.this.rate),
+            this.interval.toMicrosString());
+        this.lastSent = total;
+        this.lastTime = now;
+      }
+    }, reportMillis, reportMillis);
+
+    final long start = System.nanoTime();
+    final long end = durationMillis > 0 ? start + durationMillis * 1000000L
+        : Long.MAX_VALUE;
+    final double samplesPerNano = this.rate / 1e9;
+    long count = 0;
+
+    // Next probe sequence number for each receiver
+    final int[] sequences = this.probes ? new int[this.population
+        .getNumReceivers()] : null;
+
+    final BatchingSampleSender sender = new BatchingSampleSender(agg,
+        BatchingSampleSender.DEFAULT_BATCH_SIZE, this.probes ? Math.max(
+            DevicePopulation.DATA_LENGTH, LatencyProbe.LENGTH)
+            : DevicePopulation.DATA_LENGTH);
+    sender.setSendLatency(this.sendLatency);
+
+    while (this.running) {
+      final long now = System.nanoTime();
+      if (now >= end) {
+        break;
+      }
+      final long due = (long) ((now - start) * samplesPerNano);
+      if (count >= due) {
+        // Ahead of schedule, wait roughly until the next sample is due
+        LockSupport.parkNanos((long) (1 / samplesPerNano));
+        continue;
+      }
+      final long burst = Math.min(due - count, sender.getBatchSize());
+      for (long i = 0; i < burst; ++i) {
+        SampleMessage msg = sender.claim();
+        final int receiver = this.population.fill(msg, msg.getSensedData());
+        if (sequences != null) {
+          msg.setPhysicalLayer(LatencyProbe.PHYSICAL_LAYER);
+          LatencyProbe.encode(msg.getSensedData(), sequences[receiver]++,
+              LatencyProbe.currentTimeNanos());
+        }
+      }
+      if (!sender.flush()) {
+        System.err.println("Unable to send a sample!");
+        this.running = false;
+        break;
+      }
+      count += burst;
+      this.sent.lazySet(count);
+    }
+
+    reportTimer.cancel();
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("Sent %,d samples in %.1f seconds (%,.0f samples/s).\n",
+        Long.valueOf(count), Double.valueOf(seconds),
+        Double.valueOf(count / seconds));
+  }
+}
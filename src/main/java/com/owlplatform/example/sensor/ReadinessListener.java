@@ -0,0 +1,89 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.sensor;
+
+import java.util.concurrent.TimeUnit;
+
+import com.owlplatform.example.util.ReadinessLatch;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+import com.owlplatform.sensor.listeners.ConnectionListener;
+
+/**
+ * Lets a sensor's main thread wait until the aggregator is ready for samples
+ * instead of polling {@link SensorAggregatorInterface#isCanSendSamples()}.
+ * Register it before connecting, then call {@link #awaitReady(long)}.
+ *
+ * @author Robert Moore
+ */
+public class ReadinessListener implements ConnectionListener {
+
+  /**
+   * Open while the aggregator is ready for samples.
+   */
+  private final ReadinessLatch ready = new ReadinessLatch();
+
+  /**
+   * Creates a listener and registers it with an aggregator interface.
+   *
+   * @param agg
+   *          the aggregator interface, not yet connected.
+   * @return the listener.
+   */
+  public static ReadinessListener register(
+      final SensorAggregatorInterface agg) {
+    final ReadinessListener listener = new ReadinessListener();
+    agg.addConnectionListener(listener);
+    return listener;
+  }
+
+  /**
+   * Waits until the aggregator is ready for samples.
+   *
+   * @param timeoutMillis
+   *          the longest time to wait, in milliseconds.
+   * @return {@code true} if the aggregator is ready, {@code false} if the
+   *         timeout passed or the connection ended first.
+   * @throws InterruptedException
+   *           if interrupted while waiting.
+   */
+  public boolean awaitReady(final long timeoutMillis)
+      throws InterruptedException {
+    return this.ready.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void connectionEnded(SensorAggregatorInterface aggregator) {
+    this.ready.abort();
+  }
+
+  @Override
+  public void connectionEstablished(SensorAggregatorInterface aggregator) {
+    // Not ready until the handshake is done
+  }
+
+  @Override
+  public void connectionInterrupted(SensorAggregatorInterface aggregator) {
+    this.ready.reset();
+  }
+
+  @Override
+  public void readyForSamples(SensorAggregatorInterface aggregator) {
+    this.ready.signal();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.sensor;
+
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.Backoff;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+import com.owlplatform.sensor.listeners.ConnectionListener;
+
+/**
+ * <p>
+ * Keeps a sensor connected to its aggregator. Registering a supervisor turns
+ * on the {@link SensorAggregatorInterface}'s own reconnecting, and after each
+ * lost connection sets the library's retry delay from a jittered exponential
+ * {@link Backoff}, so a restarted aggregator is not hit by every sensor at
+ * once. The backoff is reset once the aggregator is ready for samples again.
+ * </p>
+ *
+ * <p>
+ * Each outage is measured from the lost connection to the aggregator being
+ * ready again, and recorded in the {@code sensor.outage} histogram. Samples
+ * are not buffered during an outage; senders should skip them while
+ * {@link SensorAggregatorInterface#isCanSendSamples()} is {@code false}.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class ReconnectSupervisor implements ConnectionListener {
+
+  /**
+   * Delays between reconnect attempts.
+   */
+  private final Backoff backoff = new Backoff();
+
+  /**
+   * Times the connection was lost.
+   */
+  private final Counter reconnects = MetricsRegistry.getDefault().counter(
+      "sensor.reconnects");
+
+  /**
+   * Length of each outage, in nanoseconds.
+   */
+  private final LatencyHistogram outages = MetricsRegistry.getDefault()
+      .histogram("sensor.outage");
+
+  /**
+   * When the current outage started, from {@link System#nanoTime()}, or -1
+   * while connected.
+   */
+  private long lostNanos = -1;
+
+  /**
+   * Registers a new supervisor with an aggregator interface and enables
+   * reconnecting. Call before connecting.
+   *
+   * @param agg
+   *          the aggregator interface to keep connected.
+   * @return the supervisor.
+   */
+  public static ReconnectSupervisor supervise(
+      final SensorAggregatorInterface agg) {
+    final ReconnectSupervisor supervisor = new ReconnectSupervisor();
+    agg.setStayConnected(true);
+    agg.addConnectionListener(supervisor);
+    return supervisor;
+  }
+
+  @Override
+  public void connectionEnded(SensorAggregatorInterface aggregator) {
+    synchronized (this) {
+      this.lostNanos = -1;
+    }
+  }
+
+  @Override
+  public void connectionEstablished(SensorAggregatorInterface aggregator) {
+    // Not ready until the handshake is done
+  }
+
+  @Override
+  public void connectionInterrupted(SensorAggregatorInterface aggregator) {
+    final long delay;
+    synchronized (this) {
+      if (this.lostNanos < 0) {
+        this.lostNanos = System.nanoTime();
+        this.reconnects.increment();
+      }
+      delay = this.backoff.nextDelay();
+    }
+    aggregator.setConnectionRetryDelay(delay);
+    System.err.printf("Lost connection to %s. Retrying in %,d ms.\n",
+        aggregator, Long.valueOf(delay));
+  }
+
+  @Override
+  public void readyForSamples(SensorAggregatorInterface aggregator) {
+    final long gap;
+    synchronized (this) {
+      if (this.lostNanos < 0) {
+        // First connection
+        return;
+      }
+      gap = System.nanoTime() - this.lostNanos;
+      this.lostNanos = -1;
+      this.backoff.reset();
+    }
+    this.outages.record(gap);
+    System.out.printf("Reconnected to %s after %,.1f s.\n", aggregator,
+        Double.valueOf(gap / 1e9));
+  }
+}
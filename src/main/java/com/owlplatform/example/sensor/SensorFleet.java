@@ -0,0 +1,542 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.sensor;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.Gauge;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.Backoff;
+import com.owlplatform.example.util.DaemonThreadFactory;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+
+/**
+ * <p>
+ * Simulates a fleet of sensors, each with its own aggregator connection, from
+ * one JVM, for testing how an aggregator scales with the number of
+ * connections. Where {@link AsyncFakeSensor} owns a {@code Timer} thread per
+ * sensor, every sensor in the fleet is a periodic task on one small shared
+ * {@link ScheduledExecutorService}, so thousands of connections need only a
+ * handful of threads besides those of the aggregator library itself.
+ * </p>
+ *
+ * <p>
+ * Each sensor acts as one receiver and has its own sample schedule, started
+ * at a random point within the first period so that the fleet does not send
+ * in lockstep. Connecting is done by a separate pool, so handshakes that wait
+ * for the aggregator never delay the schedules of sensors already sending. A
+ * first connection that fails is retried after a jittered {@link Backoff};
+ * after that, sensors reconnect on their own through a
+ * {@link ReconnectSupervisor} and skip samples while not ready.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class SensorFleet {
+
+  /**
+   * Default number of sensor connections.
+   */
+  public static final int DEFAULT_SENSORS = 100;
+
+  /**
+   * Default number of samples per second sent by each sensor.
+   */
+  public static final double DEFAULT_RATE = 1;
+
+  /**
+   * Default number of scheduler threads.
+   */
+  public static final int DEFAULT_THREADS = 4;
+
+  /**
+   * Default number of simulated transmitters heard by the fleet.
+   */
+  public static final int DEFAULT_TRANSMITTERS = 1000;
+
+  /**
+   * How long each sensor waits to connect and become ready, in milliseconds.
+   */
+  private static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+  /**
+   * Number of threads making first connections.
+   */
+  private static final int CONNECT_THREADS = 16;
+
+  /**
+   * Receiver IDs of the fleet start here, clear of the transmitter IDs.
+   */
+  private static final int RECEIVER_ID_BASE = 0x10000000;
+
+  /**
+   * Fraction of the target rate below which a sensor is reported as slow.
+   */
+  private static final double SLOW_FRACTION = 0.9;
+
+  /**
+   * Parses the command-line arguments, connects the fleet and sends samples
+   * until the duration elapses, printing per-sensor and fleet throughput.
+   *
+   * <p>
+   * Options following the aggregator host and port:
+   * <ul>
+   * <li>-n N: number of sensor connections (default 100)</li>
+   * <li>-s N: samples per second per sensor (default 1)</li>
+   * <li>-t N: number of transmitters (default 1000)</li>
+   * <li>-j N: number of scheduler threads (default 4)</li>
+   * <li>-d N: seconds to run, 0 to run until stopped (default 0)</li>
+   * <li>-i N: seconds between reports (default 5)</li>
+   * <li>-v: report every sensor, not only the slow ones</li>
+   * </ul>
+   * </p>
+   *
+   * @param args
+   *          aggregator host, port and options.
+   * @throws Exception
+   *           if an exception is thrown by any of the code
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Invalid number of arguments.");
+      System.err
+          .println("Usage: <Aggregator Host> <Aggregator Port> [-n Sensors] [-s Samples/s] [-t Transmitters] [-j Threads] [-d Seconds] [-i Report Seconds] [-v]");
+      return;
+    }
+
+    final String host = args[0];
+    final int port = Integer.parseInt(args[1]);
+    int numSensors = DEFAULT_SENSORS;
+    double rate = DEFAULT_RATE;
+    int numTransmitters = DEFAULT_TRANSMITTERS;
+    int numThreads = DEFAULT_THREADS;
+    int duration = 0;
+    int reportInterval = 5;
+    boolean verbose = false;
+    for (int argc = 2; argc < args.length; ++argc) {
+      String arg = args[argc];
+      if ("-n".equals(arg)) {
+        numSensors = Integer.parseInt(args[++argc]);
+      } else if ("-s".equals(arg)) {
+        rate = Double.parseDouble(args[++argc]);
+      } else if ("-t".equals(arg)) {
+        numTransmitters = Integer.parseInt(args[++argc]);
+      } else if ("-j".equals(arg)) {
+        numThreads = Integer.parseInt(args[++argc]);
+      } else if ("-d".equals(arg)) {
+        duration = Integer.parseInt(args[++argc]);
+      } else if ("-i".equals(arg)) {
+        reportInterval = Integer.parseInt(args[++argc]);
+      } else if ("-v".equals(arg)) {
+        verbose = true;
+      } else {
+        System.err.println("Unknown option: " + arg);
+        return;
+      }
+    }
+
+    MetricsRegistry.getDefault().expose("SensorFleet");
+    final SensorFleet fleet = new SensorFleet(host, port, numSensors, rate,
+        numTransmitters, numThreads);
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        System.out.println("Disconnecting fleet...");
+        fleet.stop();
+        System.out.println("Disconnected.");
+      }
+    });
+
+    System.out.printf(
+        "Starting %,d sensors at %,.1f samples/s each on %d threads.\n",
+        Integer.valueOf(numSensors), Double.valueOf(rate),
+        Integer.valueOf(numThreads));
+    fleet.start();
+
+    // Reports are printed from the main thread, which keeps the JVM running
+    final long end = duration > 0 ? System.currentTimeMillis() + duration
+        * 1000L : Long.MAX_VALUE;
+    long lastReport = System.nanoTime();
+    while (System.currentTimeMillis() < end) {
+      Thread.sleep(Math.min(reportInterval * 1000L,
+          Math.max(1, end - System.currentTimeMillis())));
+      final long now = System.nanoTime();
+      fleet.printReport((now - lastReport) / 1e9, verbose);
+      lastReport = now;
+    }
+    fleet.stop();
+    System.out.printf("Sent %,d samples from %,d sensors.\n",
+        Long.valueOf(fleet.getSent()), Integer.valueOf(numSensors));
+  }
+
+  /**
+   * Aggregator host.
+   */
+  private final String host;
+
+  /**
+   * Aggregator sensor port.
+   */
+  private final int port;
+
+  /**
+   * Samples per second sent by each sensor.
+   */
+  private final double rate;
+
+  /**
+   * Runs every sensor's schedule.
+   */
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  /**
+   * Makes each sensor's first connection, and retries it after a failure.
+   */
+  private final ScheduledThreadPoolExecutor connector;
+
+  /**
+   * The simulated sensors.
+   */
+  private final Sensor[] sensors;
+
+  /**
+   * IDs of the simulated transmitters, shared by all sensors.
+   */
+  private final byte[][] transmitterIds;
+
+  /**
+   * Time spent in each {@code sendSample} call across the fleet.
+   */
+  private final LatencyHistogram sendTime = MetricsRegistry.getDefault()
+      .histogram("fleet.send");
+
+  /**
+   * Samples sent by the whole fleet.
+   */
+  private final Counter sent = MetricsRegistry.getDefault().counter(
+      "fleet.samples.out");
+
+  /**
+   * Number of sensors ready to send.
+   */
+  private final AtomicInteger ready = new AtomicInteger(0);
+
+  /**
+   * Reused by {@link #printReport(double, boolean)} to summarize rates.
+   */
+  private final double[] rates;
+
+  /**
+   * Creates a fleet. Nothing connects until {@link #start()}.
+   *
+   * @param host
+   *          the aggregator host.
+   * @param port
+   *          the aggregator sensor port.
+   * @param numSensors
+   *          the number of sensor connections.
+   * @param rate
+   *          samples per second sent by each sensor.
+   * @param numTransmitters
+   *          the number of simulated transmitters.
+   * @param numThreads
+   *          the number of scheduler threads.
+   */
+  public SensorFleet(final String host, final int port, final int numSensors,
+      final double rate, final int numTransmitters, final int numThreads) {
+    if (numSensors < 1 || rate <= 0 || numTransmitters < 1 || numThreads < 1) {
+      throw new IllegalArgumentException("Invalid fleet size or rate.");
+    }
+    this.host = host;
+    this.port = port;
+    this.rate = rate;
+    this.scheduler = new ScheduledThreadPoolExecutor(numThreads,
+        new DaemonThreadFactory("Fleet scheduler"));
+    this.connector = new ScheduledThreadPoolExecutor(CONNECT_THREADS,
+        new DaemonThreadFactory("Fleet connector"));
+    this.transmitterIds = new byte[numTransmitters][];
+    for (int i = 0; i < numTransmitters; ++i) {
+      this.transmitterIds[i] = DevicePopulation.toDeviceId(i);
+    }
+    this.sensors = new Sensor[numSensors];
+    final Random seeds = new Random();
+    for (int i = 0; i < numSensors; ++i) {
+      this.sensors[i] = new Sensor(i, seeds.nextLong());
+    }
+    this.rates = new double[numSensors];
+
+    MetricsRegistry.getDefault().gauge("fleet.ready", new Gauge() {
+      @Override
+      public long getValue() {
+        return SensorFleet.this.ready.get();
+      }
+    });
+  }
+
+  /**
+   * Connects every sensor in the background and starts each one's schedule
+   * once the aggregator is ready for its samples.
+   */
+  public void start() {
+    for (final Sensor sensor : this.sensors) {
+      this.connector.execute(new Runnable() {
+        @Override
+        public void run() {
+          sensor.connect();
+        }
+      });
+    }
+  }
+
+  /**
+   * Stops every schedule and disconnects every sensor.
+   */
+  public void stop() {
+    this.connector.shutdownNow();
+    this.scheduler.shutdownNow();
+    for (Sensor sensor : this.sensors) {
+      sensor.agg.disconnect();
+    }
+  }
+
+  /**
+   * @return the number of samples sent by the whole fleet.
+   */
+  public long getSent() {
+    return this.sent.getCount();
+  }
+
+  /**
+   * Prints the fleet's throughput since the last report, a summary of the
+   * sensors' individual rates, and each sensor below the target rate (or
+   * every sensor if {@code verbose}).
+   *
+   * @param seconds
+   *          time since the last report.
+   * @param verbose
+   *          {@code true} to print every sensor.
+   */
+  void printReport(final double seconds, final boolean verbose) {
+    long total = 0;
+    int slow = 0;
+    final double slowRate = this.rate * SLOW_FRACTION;
+    final StringBuilder details = new StringBuilder();
+    for (int i = 0; i < this.sensors.length; ++i) {
+      final Sensor sensor = this.sensors[i];
+      final long count = sensor.sent.get();
+      final long delta = count - sensor.lastReported;
+      sensor.lastReported = count;
+      total += delta;
+      this.rates[i] = delta / seconds;
+      final boolean isSlow = sensor.scheduled && this.rates[i] < slowRate;
+      if (isSlow) {
+        ++slow;
+      }
+      if (verbose || isSlow) {
+        details.append(String.format("  Sensor %5d: %,10.1f samples/s %s%s\n",
+            Integer.valueOf(i), Double.valueOf(this.rates[i]),
+            sensor.scheduled ? "" : "(not connected)",
+            sensor.skipped.get() > 0 ? "(" + sensor.skipped.get()
+                + " skipped)" : ""));
+      }
+    }
+    Arrays.sort(this.rates);
+    final int n = this.rates.length;
+    System.out.printf(
+        "Fleet: %,.0f samples/s from %,d/%,d ready sensors (target %,.0f) | per sensor min %,.1f median %,.1f max %,.1f | %,d slow | send %s\n",
+        Double.valueOf(total / seconds), Integer.valueOf(this.ready.get()),
+        Integer.valueOf(n), Double.valueOf(this.rate * n),
+        Double.valueOf(this.rates[0]), Double.valueOf(this.rates[n / 2]),
+        Double.valueOf(this.rates[n - 1]), Integer.valueOf(slow),
+        this.sendTime.toMicrosString());
+    System.out.print(details);
+  }
+
+  /**
+   * One simulated sensor: a connection, a receiver ID and a schedule.
+   */
+  private final class Sensor implements Runnable {
+
+    /**
+     * Index in the fleet.
+     */
+    final int index;
+
+    /**
+     * This sensor's own connection.
+     */
+    final SensorAggregatorInterface agg = new SensorAggregatorInterface();
+
+    /**
+     * Opened when the aggregator is ready for samples.
+     */
+    final ReadinessListener readiness;
+
+    /**
+     * The sample, refilled before each send.
+     */
+    final SampleMessage msg = new SampleMessage();
+
+    /**
+     * Picks transmitters and RSSI. Only used by this sensor's task, which
+     * never runs concurrently with itself.
+     */
+    final Random random;
+
+    /**
+     * Samples sent by this sensor.
+     */
+    final AtomicLong sent = new AtomicLong(0);
+
+    /**
+     * Samples skipped while the aggregator was not ready.
+     */
+    final AtomicLong skipped = new AtomicLong(0);
+
+    /**
+     * {@link #sent} as of the last report. Only used by the reporting thread.
+     */
+    long lastReported = 0;
+
+    /**
+     * Delays between failed first connections. Only used by
+     * {@link #connect()}, which never runs concurrently with itself.
+     */
+    final Backoff backoff = new Backoff();
+
+    /**
+     * Set once the schedule has started.
+     */
+    volatile boolean scheduled = false;
+
+    /**
+     * Whether the aggregator was ready on the last scheduled run.
+     */
+    private boolean wasReady = false;
+
+    Sensor(final int index, final long seed) {
+      this.index = index;
+      this.random = new Random(seed);
+      this.agg.setHost(SensorFleet.this.host);
+      this.agg.setPort(SensorFleet.this.port);
+      this.agg.setDisconnectOnException(true);
+      ReconnectSupervisor.supervise(this.agg);
+      this.readiness = ReadinessListener.register(this.agg);
+
+      final byte[] data = new byte[DevicePopulation.DATA_LENGTH];
+      DevicePopulation.encodeSensedData(data,
+          18f + this.random.nextFloat() * 6f, false);
+      this.msg.setPhysicalLayer(SampleMessage.PHYSICAL_LAYER_PIPSQUEAK);
+      this.msg.setReceiverId(DevicePopulation.toDeviceId(RECEIVER_ID_BASE
+          + index));
+      this.msg.setSensedData(data);
+    }
+
+    /**
+     * Connects, waits until ready and starts the schedule. Runs on the
+     * connector, and schedules itself again after a failure.
+     */
+    void connect() {
+      if (!this.agg.connect(CONNECT_TIMEOUT_MILLIS)) {
+        System.err.println("Sensor " + this.index + " unable to connect to "
+            + this.agg);
+        this.retry();
+        return;
+      }
+      try {
+        if (!this.readiness.awaitReady(CONNECT_TIMEOUT_MILLIS)) {
+          System.err.println("Sensor " + this.index
+              + ": aggregator didn't become ready.");
+          this.agg.disconnect();
+          this.retry();
+          return;
+        }
+      } catch (InterruptedException ie) {
+        // Fleet is stopping
+        return;
+      }
+      final long periodNanos = (long) (1e9 / SensorFleet.this.rate);
+      // Start somewhere in the first period so sensors don't send in lockstep
+      final long offset = (long) (this.random.nextDouble() * periodNanos);
+      SensorFleet.this.scheduler.scheduleAtFixedRate(this, offset,
+          periodNanos, TimeUnit.NANOSECONDS);
+      this.scheduled = true;
+    }
+
+    /**
+     * Tries {@link #connect()} again after the next backoff delay.
+     */
+    private void retry() {
+      try {
+        SensorFleet.this.connector.schedule(new Runnable() {
+          @Override
+          public void run() {
+            Sensor.this.connect();
+          }
+        }, this.backoff.nextDelay(), TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ree) {
+        // Fleet is stopping
+      }
+    }
+
+    @Override
+    public void run() {
+      final boolean isReady = this.agg.isCanSendSamples();
+      if (isReady != this.wasReady) {
+        SensorFleet.this.ready.addAndGet(isReady ? 1 : -1);
+        this.wasReady = isReady;
+      }
+      if (!isReady) {
+        this.skipped.incrementAndGet();
+        return;
+      }
+
+      final byte[][] txers = SensorFleet.this.transmitterIds;
+      this.msg.setDeviceId(txers[this.random.nextInt(txers.length)]);
+      this.msg.setRssi(-40f - this.random.nextFloat() * 50f);
+      this.msg.setReceiverTimeStamp(System.currentTimeMillis());
+
+      final long start = System.nanoTime();
+      final boolean ok = this.agg.sendSample(this.msg);
+      SensorFleet.this.sendTime.record(System.nanoTime() - start);
+      if (ok) {
+        this.sent.lazySet(this.sent.get() + 1);
+        SensorFleet.this.sent.increment();
+      } else {
+        this.skipped.incrementAndGet();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Sensor " + this.index + " (" + this.agg + ")";
+    }
+  }
+}
@@ -22,6 +22,10 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.example.util.RateReporter;
 import com.owlplatform.sensor.SensorAggregatorInterface;
 import com.owlplatform.sensor.listeners.ConnectionListener;
 
@@ -59,8 +63,10 @@ public class SimpleFakeSensor {
     // Any exception should cause a disconnect
     agg.setDisconnectOnException(true);
 
-    // Since this is an example, don't worry about reconnecting
-    agg.setStayConnected(false);
+    // Reconnect with backoff if the aggregator goes away
+    ReconnectSupervisor.supervise(agg);
+    // Wakes the main thread as soon as the handshake is done
+    final ReadinessListener ready = ReadinessListener.register(agg);
 
     // Add a shutdown hook to gracefully disconnect from the aggregator
     Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -84,24 +90,20 @@ public class SimpleFakeSensor {
       return;
     }
 
-    // Wait until the aggregator is ready to accept data
-    // Wait up to 1 second (100*10ms)
-    int attempts = 0;
-    while (!agg.isCanSendSamples()) {
-      ++attempts;
-      try {
-        Thread.sleep(10);
-      } catch (InterruptedException ie) {
-        // Ignored
-      }
-      if (attempts > 100) {
-        System.err
-            .println("Aggregator didn't become ready after 1 second. Giving-up!");
-        return;
-      }
+    // Wait up to 1 second for the aggregator to be ready to accept data
+    if (!ready.awaitReady(1000L)) {
+      System.err
+          .println("Aggregator didn't become ready after 1 second. Giving-up!");
+      return;
     }
 
-    // Ready to send samples!
+    // Ready to send samples! Print a summary every 10 seconds, not every sample.
+    final RateReporter sentRate = new RateReporter("Sent samples");
+    sentRate.start(10000L);
+    final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    metrics.expose("SimpleFakeSensor");
+    final Counter sent = metrics.counter("sensor.samples.out");
+    final LatencyHistogram sendTime = metrics.histogram("sensor.send");
     final Timer aTimer = new Timer();
     aTimer.schedule(new TimerTask() {
 
@@ -113,23 +115,32 @@ public class SimpleFakeSensor {
       private final byte PHY = 1;
       private final byte[] DATA = new byte[] { (byte) 0xAB, (byte) 0xBA };
 
+      // The sample never changes, so build it once and re-send it every time.
+      private final SampleMessage msg = new SampleMessage();
+      {
+        this.msg.setPhysicalLayer(this.PHY);
+        this.msg.setRssi(this.RSSI);
+        this.msg.setDeviceId(this.DEV_ID);
+        this.msg.setReceiverId(this.RECV_ID);
+        this.msg.setSensedData(this.DATA);
+      }
+
       @Override
       public void run() {
-        // Create a generic sample message and send it.
-        SampleMessage msg = new SampleMessage();
-        msg.setPhysicalLayer(this.PHY);
-        msg.setRssi(this.RSSI);
-        msg.setDeviceId(this.DEV_ID);
-        msg.setReceiverId(this.RECV_ID);
-        msg.setSensedData(this.DATA);
-        if (!agg.sendSample(msg)) {
-          // If the send fails for any reason, exit.
+        // Skip samples while reconnecting
+        if (!agg.isCanSendSamples()) {
+          return;
+        }
+        final long start = System.nanoTime();
+        final boolean ok = agg.sendSample(this.msg);
+        sendTime.record(System.nanoTime() - start);
+        if (!ok) {
           System.err.println("Unable to send a sample!");
-          aTimer.cancel();
-        }else{
-          System.out.println("Sent " + msg);
+        } else {
+          sentRate.increment();
+          sent.increment();
         }
-        
+
       }
     }, 10, 1000);
   }
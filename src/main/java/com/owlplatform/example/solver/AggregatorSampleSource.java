@@ -0,0 +1,65 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.SolverAggregatorConnection;
+
+/**
+ * A {@link SampleSource} that reads from a subscribed aggregator connection.
+ *
+ * @author Robert Moore
+ */
+public class AggregatorSampleSource implements SampleSource {
+
+  /**
+   * The connection to read from.
+   */
+  private final SolverAggregatorConnection agg;
+
+  /**
+   * Creates a source for an aggregator connection.
+   *
+   * @param agg
+   *          a connection that has already been connected and subscribed.
+   */
+  public AggregatorSampleSource(final SolverAggregatorConnection agg) {
+    this.agg = agg;
+  }
+
+  @Override
+  public SampleMessage getNextSample() {
+    return this.agg.getNextSample();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return this.agg.isConnected() && this.agg.isSubscriptionAcknowledged();
+  }
+
+  @Override
+  public void disconnect() {
+    this.agg.disconnect();
+  }
+
+  @Override
+  public String toString() {
+    return this.agg.toString();
+  }
+}
@@ -1,21 +1,44 @@
 package com.owlplatform.example.solver;
 
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
 import com.owlplatform.common.SampleMessage;
+import com.owlplatform.common.util.NumericUtils;
+import com.owlplatform.example.util.OverflowPolicy;
 import com.owlplatform.solver.SolverAggregatorInterface;
 import com.owlplatform.solver.listeners.ConnectionListener;
 import com.owlplatform.solver.listeners.SampleListener;
 import com.owlplatform.solver.protocol.messages.SubscriptionMessage;
+import com.owlplatform.solver.protocol.messages.Transmitter;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
 
 /**
  * A simple example of using the Owl Platform Solver library by printing
  * received samples to standard output (System.out). This is not an example of a
  * useful solver, which would produce some new type of information from various
  * data sources, but demonstrates how to interact with the aggregator.
- * 
+ *
+ * <p>
+ * Unlike {@link SimpleFakeSolver}, this solver never polls the aggregator.
+ * Samples arrive through {@link #sampleReceived(SolverAggregatorInterface, SampleMessage)}
+ * on the library's I/O thread, which only places them in a bounded
+ * {@link SampleHandoffQueue}. A separate thread takes samples from the queue
+ * and prints them, so slow output never stalls network I/O unless the
+ * {@link OverflowPolicy#BLOCK} policy is selected.
+ * </p>
+ *
  * @author Robert Moore
  */
 public class AsyncFakeSolver implements SampleListener, ConnectionListener {
 
+  /**
+   * How often queue statistics are printed, in milliseconds.
+   */
+  private static final long STATS_PERIOD = 10000l;
+
   /**
    * <p>
    * Expects two arguments: aggregator host and aggregator solver port.
@@ -30,56 +53,255 @@ public class AsyncFakeSolver implements SampleListener, ConnectionListener {
    * the aggregator. ID values are 32-bit signed integers by default, and
    * hexadecimal values may be provided by leading with the "-x" switch. For
    * example:
-   * 
+   *
    * <pre>
    * (java invocation) localhost 7008 1234 -x FFE 99
    * </pre>
-   * 
+   *
    * Specifies connecting to the aggregator at localhost:7008 and requesting
    * only the transmitters with ID value "1234" (0x04D2), "0x0FFE" (4094), or
    * "99" (0x63).
    * </p>
-   * 
+   * <p>
+   * The handoff queue is configured with "-q" followed by its capacity and
+   * "-o" followed by an overflow policy ("block", "drop-newest" or
+   * "drop-oldest"). For example:
+   *
+   * <pre>
+   * (java invocation) localhost 7008 -q 10000 -o drop-oldest
+   * </pre>
+   *
+   * </p>
+   *
    * @param args
-   *          aggregator host, port, and a list of optional transmitter ID
-   *          values
+   *          aggregator host, port, optional queue settings, and a list of
+   *          optional transmitter ID values
    */
   public static void main(String[] args) {
-    SolverAggregatorInterface agg = new SolverAggregatorInterface();
-    
-    AsyncFakeSolver solver = new AsyncFakeSolver();
+    if (args.length < 2) {
+      System.err.println("Invalid number of arguments.");
+      System.err
+          .println("Usage: <Aggregator Host> <Aggregator Port> [-q Capacity] [-o Policy] [Transmitter IDs]");
+      return;
+    }
+
+    String host = args[0];
+    int port = Integer.parseInt(args[1]);
+
+    int capacity = SampleHandoffQueue.DEFAULT_CAPACITY;
+    OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+
+    // Array of Transmitter filters
+    ArrayList<Transmitter> txers = new ArrayList<Transmitter>();
+    for (int argc = 2; argc < args.length; ++argc) {
+      String arg = args[argc];
+      // Flag to indicate queue capacity, next arg is actual value.
+      if ("-q".equalsIgnoreCase(arg)) {
+        capacity = Integer.parseInt(args[++argc]);
+        continue;
+      }
+      // Flag to indicate overflow policy, next arg is actual value.
+      if ("-o".equalsIgnoreCase(arg)) {
+        policy = OverflowPolicy.parse(args[++argc]);
+        continue;
+      }
+      byte[] value = null;
+      // Flag to indicate hex string, next arg is actual value.
+      if ("-x".equalsIgnoreCase(arg)) {
+        value = NumericUtils.fromHexString(args[++argc]);
+      }
+      // Parse an integer (32-bit, signed)
+      else {
+        value = new byte[4];
+        int valInt = Integer.parseInt(arg);
+        value[0] = (byte) (valInt >> 24);
+        value[1] = (byte) (valInt >> 16);
+        value[2] = (byte) (valInt >> 8);
+        value[3] = (byte) valInt;
+      }
+      txers.add(new Transmitter(value));
+    }
+
+    final SolverAggregatorInterface agg = new SolverAggregatorInterface();
+    agg.setHost(host);
+    agg.setPort(port);
+
+    SubscriptionRequestRule rule = SubscriptionRequestRule
+        .generateGenericRule();
+    rule.setUpdateInterval(1000l);
+    if (!txers.isEmpty()) {
+      rule.setTransmitters(txers);
+    }
+    agg.setRules(new SubscriptionRequestRule[] { rule });
+
+    final AsyncFakeSolver solver = new AsyncFakeSolver(new SampleHandoffQueue(
+        capacity, policy));
+    agg.addSampleListener(solver);
+    agg.addConnectionListener(solver);
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+
+      @Override
+      public void run() {
+        agg.disconnect();
+        solver.stop();
+        System.out.println("Shutdown complete.");
+      }
+    });
+
+    solver.start();
+
+    if (!agg.connect(10000l)) {
+      System.err.println("Unable to connect to " + agg);
+      solver.stop();
+    }
+  }
+
+  /**
+   * Samples waiting to be printed.
+   */
+  private final SampleHandoffQueue handoff;
+
+  /**
+   * Thread that takes samples from {@link #handoff} and prints them.
+   */
+  private final Thread consumer;
+
+  /**
+   * Timer for printing queue statistics.
+   */
+  private final Timer statsTimer = new Timer("Queue statistics", true);
+
+  /**
+   * Cleared to stop the consumer thread.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * Creates a new solver that queues samples in {@code handoff}.
+   *
+   * @param handoff
+   *          the queue between the I/O thread and the consumer thread.
+   */
+  public AsyncFakeSolver(final SampleHandoffQueue handoff) {
+    this.handoff = handoff;
+    this.consumer = new Thread("Sample consumer") {
+      @Override
+      public void run() {
+        AsyncFakeSolver.this.consumeSamples();
+      }
+    };
+  }
+
+  /**
+   * Starts the consumer thread and periodic statistics.
+   */
+  public void start() {
+    this.consumer.start();
+    this.statsTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        AsyncFakeSolver.this.printStats();
+      }
+    }, STATS_PERIOD, STATS_PERIOD);
+  }
+
+  /**
+   * Stops the consumer thread once the queue is empty, and stops printing
+   * statistics. Waits up to a second for the queue to drain, then closes it so
+   * that samples arriving afterwards are dropped instead of queued for a
+   * consumer that is gone.
+   */
+  public void stop() {
+    this.requestStop();
+    if (Thread.currentThread() != this.consumer) {
+      try {
+        this.consumer.join(1000l);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.handoff.close();
+  }
+
+  /**
+   * Tells the consumer thread to stop once the queue is empty, without
+   * waiting for it.
+   */
+  private void requestStop() {
+    this.running = false;
+    this.statsTimer.cancel();
+  }
+
+  /**
+   * Takes samples from the handoff queue and prints them until stopped, then
+   * closes the queue.
+   */
+  void consumeSamples() {
+    try {
+      while (this.running || this.handoff.size() > 0) {
+        try {
+          SampleMessage sample = this.handoff.poll(100, TimeUnit.MILLISECONDS);
+          if (sample != null) {
+            System.out.println(sample);
+          }
+        } catch (InterruptedException ie) {
+          break;
+        }
+      }
+    } finally {
+      this.handoff.close();
+    }
+  }
+
+  /**
+   * Prints the current queue depth and drop count.
+   */
+  void printStats() {
+    System.out.printf(
+        "Queue depth: %,d (max %,d) | Accepted: %,d | Dropped: %,d (%s)\n",
+        Integer.valueOf(this.handoff.size()),
+        Long.valueOf(this.handoff.getAndResetMaxDepth()),
+        Long.valueOf(this.handoff.getAccepted()),
+        Long.valueOf(this.handoff.getDropped()), this.handoff.getPolicy());
+  }
+
+  /**
+   * @return the queue between the I/O thread and the consumer thread.
+   */
+  public SampleHandoffQueue getHandoff() {
+    return this.handoff;
   }
 
   @Override
   public void connectionEnded(SolverAggregatorInterface aggregator) {
-    // TODO Auto-generated method stub
-
+    System.err.println("Connection to " + aggregator + " has ended.");
+    // Called on the I/O thread, which must not wait for the consumer
+    this.requestStop();
   }
 
   @Override
   public void connectionEstablished(SolverAggregatorInterface aggregator) {
-    // TODO Auto-generated method stub
-
+    System.out.println("Connected to " + aggregator);
   }
 
   @Override
   public void connectionInterrupted(SolverAggregatorInterface aggregator) {
-    // TODO Auto-generated method stub
-
+    System.out
+        .println("Connection was temporarily lost. Library may try again.");
   }
 
   @Override
   public void subscriptionReceived(SolverAggregatorInterface aggregator,
       SubscriptionMessage response) {
-    // TODO Auto-generated method stub
-
+    System.out.println("Subscription acknowledged by " + aggregator);
   }
 
   @Override
   public void sampleReceived(SolverAggregatorInterface aggregator,
       SampleMessage sample) {
-    // TODO Auto-generated method stub
-
+    // Never do real work on the I/O thread, just hand it off
+    this.handoff.offer(sample);
   }
 
 }
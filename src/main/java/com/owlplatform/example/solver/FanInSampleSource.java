@@ -0,0 +1,681 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.Gauge;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.AsyncOutputSink;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+/**
+ * <p>
+ * Merges the samples of several aggregators, such as one per floor, into one
+ * {@link SampleSource}. Each aggregator is read by its own thread through a
+ * {@link ReconnectingSampleSource}, and the merged stream is ordered by
+ * receiver timestamp.
+ * </p>
+ *
+ * <p>
+ * Samples from different aggregators arrive slightly out of order, so each
+ * sample is held in a bounded reorder window before it is released: until a
+ * sample at least {@code windowMillis} newer has arrived, or until it has been
+ * held for {@code windowMillis} of real time, whichever comes first. Samples
+ * that arrive older than the last released sample are counted as late and
+ * dropped, so the stream is always in timestamp order. When the window holds
+ * its maximum number of samples, the aggregator threads wait for the reader.
+ * </p>
+ *
+ * <p>
+ * A receiver connected to more than one aggregator reports each sample to all
+ * of them. Samples identical in receiver, transmitter, timestamp, physical
+ * layer and sensed data to one seen within the last two windows are counted
+ * as duplicates and dropped.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class FanInSampleSource implements SampleSource {
+
+  /**
+   * Default length of the reorder window, in milliseconds.
+   */
+  public static final long DEFAULT_WINDOW_MILLIS = 500;
+
+  /**
+   * Default number of samples held in the reorder window.
+   */
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  /**
+   * The aggregators, in the order given.
+   */
+  private final Upstream[] upstreams;
+
+  /**
+   * Length of the reorder window, in milliseconds of sample time.
+   */
+  private final long windowMillis;
+
+  /**
+   * Length of the reorder window, in nanoseconds of real time.
+   */
+  private final long windowNanos;
+
+  /**
+   * Most samples held in the window.
+   */
+  private final int capacity;
+
+  /**
+   * Guards the window and the duplicate filter.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled when a sample is added or the source is closed.
+   */
+  private final Condition added = this.lock.newCondition();
+
+  /**
+   * Signalled when a sample is released.
+   */
+  private final Condition released = this.lock.newCondition();
+
+  /**
+   * Samples waiting to be released, oldest timestamp first.
+   */
+  private final PriorityQueue<Held> window = new PriorityQueue<Held>();
+
+  /**
+   * Keys of samples held or recently released.
+   */
+  private final Set<SampleKey> recent = new HashSet<SampleKey>();
+
+  /**
+   * Keys of released samples still in {@link #recent}, in release order.
+   */
+  private final ArrayDeque<SampleKey> recentOrder = new ArrayDeque<SampleKey>();
+
+  /**
+   * Newest timestamp added to the window.
+   */
+  private long newest = Long.MIN_VALUE;
+
+  /**
+   * Timestamp of the last released sample.
+   */
+  private long watermark = Long.MIN_VALUE;
+
+  /**
+   * Arrival order, to keep samples with equal timestamps in arrival order.
+   */
+  private long arrivals = 0;
+
+  /**
+   * Samples released by the merge.
+   */
+  private final Counter merged;
+
+  /**
+   * Duplicate samples dropped.
+   */
+  private final Counter duplicates;
+
+  /**
+   * Samples dropped for arriving after newer samples were released.
+   */
+  private final Counter late;
+
+  /**
+   * Set by {@link #disconnect()}.
+   */
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a merged source. Call {@link #connect()} before reading.
+   *
+   * @param aggregators
+   *          "host:port" of each aggregator's solver port.
+   * @param rule
+   *          the subscription to request from every aggregator.
+   * @param windowMillis
+   *          the length of the reorder window, in milliseconds.
+   * @param capacity
+   *          the most samples held in the window.
+   */
+  public FanInSampleSource(final String[] aggregators,
+      final SubscriptionRequestRule rule, final long windowMillis,
+      final int capacity) {
+    if (aggregators.length == 0 || windowMillis < 0 || capacity < 1) {
+      throw new IllegalArgumentException(
+          "Invalid aggregators, window or capacity.");
+    }
+    this.windowMillis = windowMillis;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.capacity = capacity;
+
+    final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    this.merged = metrics.counter("fanin.samples.out");
+    this.duplicates = metrics.counter("fanin.duplicates");
+    this.late = metrics.counter("fanin.late");
+    metrics.gauge("fanin.window", new Gauge() {
+      @Override
+      public long getValue() {
+        return FanInSampleSource.this.getHeld();
+      }
+    });
+
+    this.upstreams = new Upstream[aggregators.length];
+    for (int i = 0; i < aggregators.length; ++i) {
+      final int colon = aggregators[i].lastIndexOf(':');
+      if (colon < 1) {
+        throw new IllegalArgumentException("Expected host:port, not "
+            + aggregators[i]);
+      }
+      this.upstreams[i] = new Upstream(i, new ReconnectingSampleSource(
+          aggregators[i].substring(0, colon),
+          Integer.parseInt(aggregators[i].substring(colon + 1)), rule),
+          metrics.counter("fanin.samples.in." + i));
+    }
+  }
+
+  /**
+   * Subscribes to every aggregator and starts reading from each one.
+   * Aggregators that could not be reached are retried in the background.
+   *
+   * @return {@code true} if at least one aggregator acknowledged the
+   *         subscription.
+   */
+  public boolean connect() {
+    boolean any = false;
+    for (Upstream up : this.upstreams) {
+      if (up.source.connect()) {
+        any = true;
+      } else {
+        System.err.println("Unable to subscribe to " + up.source
+            + "; will keep trying.");
+      }
+    }
+    if (!any) {
+      return false;
+    }
+    for (Upstream up : this.upstreams) {
+      up.reader.start();
+    }
+    return true;
+  }
+
+  @Override
+  public SampleMessage getNextSample() {
+    this.lock.lock();
+    try {
+      while (!this.closed) {
+        final Held head = this.window.peek();
+        if (head == null) {
+          this.added.await();
+          continue;
+        }
+        final long heldNanos = System.nanoTime() - head.arrivalNanos;
+        if (this.window.size() >= this.capacity
+            || head.timestamp <= this.newest - this.windowMillis
+            || heldNanos >= this.windowNanos) {
+          return this.release();
+        }
+        this.added.awaitNanos(this.windowNanos - heldNanos);
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      this.lock.unlock();
+    }
+    return null;
+  }
+
+  /**
+   * @return {@code true} until {@link #disconnect()} is called.
+   */
+  @Override
+  public boolean isConnected() {
+    return !this.closed;
+  }
+
+  @Override
+  public void disconnect() {
+    this.closed = true;
+    for (Upstream up : this.upstreams) {
+      up.source.disconnect();
+    }
+    this.lock.lock();
+    try {
+      this.added.signalAll();
+      this.released.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of aggregators.
+   */
+  public int getNumAggregators() {
+    return this.upstreams.length;
+  }
+
+  /**
+   * Returns one aggregator's source, for its reconnect and outage counts.
+   *
+   * @param index
+   *          the aggregator's position in the constructor's list.
+   * @return the aggregator's source.
+   */
+  public ReconnectingSampleSource getAggregator(final int index) {
+    return this.upstreams[index].source;
+  }
+
+  /**
+   * Returns the number of samples received from one aggregator, including
+   * duplicates and late samples.
+   *
+   * @param index
+   *          the aggregator's position in the constructor's list.
+   * @return the number of samples.
+   */
+  public long getReceived(final int index) {
+    return this.upstreams[index].received.getCount();
+  }
+
+  /**
+   * Returns one aggregator's recent throughput, as measured by the
+   * {@link MetricsRegistry}.
+   *
+   * @param index
+   *          the aggregator's position in the constructor's list.
+   * @return samples per second over the last registry interval.
+   */
+  public double getThroughput(final int index) {
+    return this.upstreams[index].received.getRate();
+  }
+
+  /**
+   * @return the number of samples released in order.
+   */
+  public long getMerged() {
+    return this.merged.getCount();
+  }
+
+  /**
+   * @return the number of duplicate samples dropped.
+   */
+  public long getDuplicates() {
+    return this.duplicates.getCount();
+  }
+
+  /**
+   * @return the number of samples dropped for arriving too late to be
+   *         ordered.
+   */
+  public long getLate() {
+    return this.late.getCount();
+  }
+
+  /**
+   * @return the number of samples currently held in the reorder window.
+   */
+  public int getHeld() {
+    this.lock.lock();
+    try {
+      return this.window.size();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a sample from an aggregator to the window, waiting while the window
+   * is full.
+   */
+  void add(final SampleMessage sample) throws InterruptedException {
+    final SampleKey key = new SampleKey(sample);
+    this.lock.lock();
+    try {
+      while (this.window.size() >= this.capacity && !this.closed) {
+        this.released.await();
+      }
+      if (key.timestamp < this.watermark) {
+        this.late.increment();
+        return;
+      }
+      if (!this.recent.add(key)) {
+        this.duplicates.increment();
+        return;
+      }
+      this.window.add(new Held(sample, key, System.nanoTime(),
+          this.arrivals++));
+      if (key.timestamp > this.newest) {
+        this.newest = key.timestamp;
+      }
+      this.added.signal();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the oldest sample from the window. Called with the lock held.
+   */
+  private SampleMessage release() {
+    final Held head = this.window.poll();
+    this.watermark = head.timestamp;
+    this.recentOrder.addLast(head.key);
+    // Forget samples too old to be duplicated by anything not yet late
+    final long forget = this.watermark - this.windowMillis;
+    while (!this.recentOrder.isEmpty()
+        && this.recentOrder.peekFirst().timestamp < forget) {
+      this.recent.remove(this.recentOrder.pollFirst());
+    }
+    this.released.signal();
+    this.merged.increment();
+    return head.sample;
+  }
+
+  /**
+   * One aggregator and the thread reading it.
+   */
+  private final class Upstream implements Runnable {
+
+    /**
+     * The aggregator's samples.
+     */
+    final ReconnectingSampleSource source;
+
+    /**
+     * Samples received from the aggregator.
+     */
+    final Counter received;
+
+    /**
+     * Reads {@link #source} into the window.
+     */
+    final Thread reader;
+
+    Upstream(final int index, final ReconnectingSampleSource source,
+        final Counter received) {
+      this.source = source;
+      this.received = received;
+      this.reader = new Thread(this, "Fan-in reader " + index + " ("
+          + source + ")");
+      this.reader.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (this.source.isConnected()) {
+        final SampleMessage sample = this.source.getNextSample();
+        if (sample == null) {
+          continue;
+        }
+        this.received.increment();
+        try {
+          FanInSampleSource.this.add(sample);
+        } catch (InterruptedException ie) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * A sample waiting in the reorder window.
+   */
+  private static final class Held implements Comparable<Held> {
+
+    /**
+     * The sample.
+     */
+    final SampleMessage sample;
+
+    /**
+     * Its duplicate-detection key.
+     */
+    final SampleKey key;
+
+    /**
+     * Its receiver timestamp.
+     */
+    final long timestamp;
+
+    /**
+     * When it entered the window, from {@link System#nanoTime()}.
+     */
+    final long arrivalNanos;
+
+    /**
+     * Its position in arrival order.
+     */
+    final long arrival;
+
+    Held(final SampleMessage sample, final SampleKey key,
+        final long arrivalNanos, final long arrival) {
+      this.sample = sample;
+      this.key = key;
+      this.timestamp = key.timestamp;
+      this.arrivalNanos = arrivalNanos;
+      this.arrival = arrival;
+    }
+
+    @Override
+    public int compareTo(final Held other) {
+      if (this.timestamp != other.timestamp) {
+        return this.timestamp < other.timestamp ? -1 : 1;
+      }
+      return this.arrival < other.arrival ? -1
+          : (this.arrival == other.arrival ? 0 : 1);
+    }
+  }
+
+  /**
+   * The fields that identify one report of one transmission by one receiver.
+   */
+  private static final class SampleKey {
+
+    /**
+     * Receiver timestamp.
+     */
+    final long timestamp;
+
+    /**
+     * Transmitter ID.
+     */
+    final byte[] deviceId;
+
+    /**
+     * Receiver ID.
+     */
+    final byte[] receiverId;
+
+    /**
+     * Physical layer.
+     */
+    final byte physicalLayer;
+
+    /**
+     * Sensed data, or {@code null}.
+     */
+    final byte[] data;
+
+    /**
+     * Cached hash code.
+     */
+    final int hash;
+
+    SampleKey(final SampleMessage sample) {
+      this.timestamp = sample.getReceiverTimeStamp();
+      this.deviceId = sample.getDeviceId();
+      this.receiverId = sample.getReceiverId();
+      this.physicalLayer = sample.getPhysicalLayer();
+      this.data = sample.getSensedData();
+      int h = (int) (this.timestamp ^ (this.timestamp >>> 32));
+      h = 31 * h + Arrays.hashCode(this.deviceId);
+      h = 31 * h + Arrays.hashCode(this.receiverId);
+      h = 31 * h + this.physicalLayer;
+      this.hash = 31 * h + Arrays.hashCode(this.data);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof SampleKey)) {
+        return false;
+      }
+      final SampleKey other = (SampleKey) o;
+      return this.hash == other.hash && this.timestamp == other.timestamp
+          && this.physicalLayer == other.physicalLayer
+          && Arrays.equals(this.deviceId, other.deviceId)
+          && Arrays.equals(this.receiverId, other.receiverId)
+          && Arrays.equals(this.data, other.data);
+    }
+  }
+
+  /**
+   * Subscribes to every sample from several aggregators, prints the merged
+   * stream and reports each aggregator's throughput.
+   *
+   * <p>
+   * Arguments are one or more aggregators as "host:port", followed by
+   * optional switches: "-w" and the reorder window in milliseconds (default
+   * 500), "-i" and the seconds between throughput reports (default 10), and
+   * "-q" to report throughput without printing samples.
+   * </p>
+   *
+   * @param args
+   *          aggregators and options.
+   */
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.err.println("Invalid number of arguments.");
+      System.err
+          .println("Usage: <Host:Port> [<Host:Port> ...] [-w Window ms] [-i Report Seconds] [-q]");
+      return;
+    }
+
+    final List<String> aggregators = new ArrayList<String>();
+    long windowMillis = DEFAULT_WINDOW_MILLIS;
+    long reportMillis = 10000;
+    boolean quiet = false;
+    for (int argc = 0; argc < args.length; ++argc) {
+      String arg = args[argc];
+      if ("-w".equals(arg)) {
+        windowMillis = Long.parseLong(args[++argc]);
+      } else if ("-i".equals(arg)) {
+        reportMillis = Long.parseLong(args[++argc]) * 1000;
+      } else if ("-q".equals(arg)) {
+        quiet = true;
+      } else {
+        aggregators.add(arg);
+      }
+    }
+
+    SubscriptionRequestRule rule = SubscriptionRequestRule
+        .generateGenericRule();
+    rule.setUpdateInterval(0l);
+
+    MetricsRegistry.getDefault().expose("FanInSampleSource");
+    final FanInSampleSource source = new FanInSampleSource(
+        aggregators.toArray(new String[aggregators.size()]), rule,
+        windowMillis, DEFAULT_CAPACITY);
+    if (!source.connect()) {
+      return;
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        source.disconnect();
+        System.out.println("Shutdown complete.");
+      }
+    });
+
+    final AsyncOutputSink<SampleMessage> output = new AsyncOutputSink<SampleMessage>(
+        new AsyncOutputSink.Formatter<SampleMessage>() {
+          @Override
+          public void format(SampleMessage sample, StringBuilder out) {
+            out.append(sample).append('\n');
+          }
+        });
+
+    // Throughput is reported even while no samples arrive
+    final Timer reportTimer = new Timer("Fan-in statistics", true);
+    reportTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        printReport(source);
+      }
+    }, reportMillis, reportMillis);
+
+    while (source.isConnected()) {
+      final SampleMessage msg = source.getNextSample();
+      if (msg != null && !quiet) {
+        output.print(msg);
+      }
+    }
+    reportTimer.cancel();
+    output.close();
+  }
+
+  /**
+   * Prints each aggregator's throughput and the merge counts.
+   *
+   * @param source
+   *          the merged source.
+   */
+  static void printReport(final FanInSampleSource source) {
+    for (int i = 0; i < source.getNumAggregators(); ++i) {
+      final ReconnectingSampleSource agg = source.getAggregator(i);
+      System.out.printf(
+          "Aggregator %s: %,.1f samples/s, %,d received, %,d reconnects\n",
+          agg, Double.valueOf(source.getThroughput(i)),
+          Long.valueOf(source.getReceived(i)),
+          Long.valueOf(agg.getReconnects()));
+    }
+    System.out.printf(
+        "Merged: %,d samples | %,d duplicates | %,d late | %,d held\n",
+        Long.valueOf(source.getMerged()),
+        Long.valueOf(source.getDuplicates()),
+        Long.valueOf(source.getLate()), Integer.valueOf(source.getHeld()));
+  }
+}
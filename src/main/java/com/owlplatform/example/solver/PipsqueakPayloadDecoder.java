@@ -0,0 +1,196 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+/**
+ * <p>
+ * Decodes the sensed data carried by Pipsqueak samples. Fields are read
+ * directly from the source array at an offset and written into a
+ * caller-supplied {@link Reading}, so decoding never copies the payload or
+ * allocates.
+ * </p>
+ *
+ * <p>
+ * The first byte of a Pipsqueak payload is a set of flags describing which
+ * fields follow:
+ * <ul>
+ * <li>{@code 0x01}: the next byte holds a 7-bit temperature (offset by 40
+ * degrees C) in its upper bits and the binary state in its lowest bit.</li>
+ * <li>{@code 0x02}: a 16-bit temperature follows the 7-bit field (or follows
+ * the flags if there is no 7-bit field), stored as whole degrees (offset by 40
+ * degrees C) in the upper 12 bits and sixteenths of a degree in the lower 4
+ * bits.</li>
+ * </ul>
+ * The byte after the flags always carries the binary state in its lowest bit.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public final class PipsqueakPayloadDecoder {
+
+  /**
+   * Temperature value used when no temperature is present.
+   */
+  public static final float NO_TEMPERATURE = -274f;
+
+  /**
+   * Flag indicating a 7-bit temperature field.
+   */
+  public static final int FLAG_TEMP_7BIT = 0x01;
+
+  /**
+   * Flag indicating a 16-bit temperature field.
+   */
+  public static final int FLAG_TEMP_16BIT = 0x02;
+
+  private PipsqueakPayloadDecoder() {
+    // Static methods only
+  }
+
+  /**
+   * Decodes a complete payload.
+   *
+   * @param data
+   *          the sensed data.
+   * @param reading
+   *          receives the decoded values.
+   * @return {@code true} if the payload was long enough to decode.
+   */
+  public static boolean decode(final byte[] data, final Reading reading) {
+    return data != null && decode(data, 0, data.length, reading);
+  }
+
+  /**
+   * Decodes a payload that starts at {@code offset} within {@code data}.
+   *
+   * @param data
+   *          the array containing the payload.
+   * @param offset
+   *          the index of the flags byte.
+   * @param length
+   *          the number of payload bytes.
+   * @param reading
+   *          receives the decoded values.
+   * @return {@code true} if the payload was long enough to decode.
+   */
+  public static boolean decode(final byte[] data, final int offset,
+      final int length, final Reading reading) {
+    reading.clear();
+    if (length < 2) {
+      return false;
+    }
+    final int flags = data[offset] & 0xFF;
+    reading.flags = flags;
+    reading.on = (data[offset + 1] & 0x01) == 0x01;
+
+    if ((flags & FLAG_TEMP_16BIT) == FLAG_TEMP_16BIT && length >= 3) {
+      final int tempOffset = (flags & FLAG_TEMP_7BIT) == FLAG_TEMP_7BIT ? 2 : 1;
+      if (tempOffset + 2 <= length) {
+        reading.temperature = temperature16(data, offset + tempOffset);
+      }
+    } else if ((flags & FLAG_TEMP_7BIT) == FLAG_TEMP_7BIT) {
+      reading.temperature = temperature7(data[offset + 1]);
+    }
+    return true;
+  }
+
+  /**
+   * Decodes a 16-bit temperature.
+   *
+   * @param data
+   *          the array containing the temperature.
+   * @param offset
+   *          the index of the high byte.
+   * @return the temperature in degrees Celsius.
+   */
+  public static float temperature16(final byte[] data, final int offset) {
+    final int wholeValue = (data[offset] * 16 + ((data[offset + 1] >> 4) & 0x0F)) - 40;
+    final int sixteenths = data[offset + 1] & 0x0F;
+    return wholeValue + (sixteenths / 16f);
+  }
+
+  /**
+   * Decodes a 7-bit temperature.
+   *
+   * @param value
+   *          the byte holding the temperature in its upper 7 bits.
+   * @return the temperature in degrees Celsius.
+   */
+  public static float temperature7(final byte value) {
+    return ((value >> 1) & 0x7F) - 40;
+  }
+
+  /**
+   * The mutable result of decoding one payload. Reuse one instance per thread.
+   *
+   * @author Robert Moore
+   */
+  public static final class Reading {
+
+    /**
+     * The raw flags byte.
+     */
+    int flags = 0;
+
+    /**
+     * The temperature in degrees Celsius, or {@link #NO_TEMPERATURE}.
+     */
+    float temperature = NO_TEMPERATURE;
+
+    /**
+     * The binary state.
+     */
+    boolean on = false;
+
+    void clear() {
+      this.flags = 0;
+      this.temperature = NO_TEMPERATURE;
+      this.on = false;
+    }
+
+    /**
+     * @return the raw flags byte.
+     */
+    public int getFlags() {
+      return this.flags;
+    }
+
+    /**
+     * @return {@code true} if a temperature was decoded.
+     */
+    public boolean hasTemperature() {
+      return this.temperature != NO_TEMPERATURE;
+    }
+
+    /**
+     * @return the temperature in degrees Celsius, or
+     *         {@link PipsqueakPayloadDecoder#NO_TEMPERATURE}.
+     */
+    public float getTemperature() {
+      return this.temperature;
+    }
+
+    /**
+     * @return the binary state.
+     */
+    public boolean isOn() {
+      return this.on;
+    }
+  }
+}
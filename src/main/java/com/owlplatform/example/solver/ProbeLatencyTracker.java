@@ -0,0 +1,251 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.Arrays;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.DeviceIdInterner;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.example.util.LatencyProbe;
+
+/**
+ * <p>
+ * Measures {@link LatencyProbe} samples as they reach a solver: one-way
+ * latency from the sensor's send time, and lost, reordered and duplicated
+ * probes from each receiver's sequence numbers. Statistics are kept
+ * separately per receiver, so a receiver whose samples are delayed or dropped
+ * inside the aggregator stands out.
+ * </p>
+ *
+ * <p>
+ * A gap in a receiver's sequence numbers counts as lost until the missing
+ * probes arrive, at which point they count as reordered instead. Probes whose
+ * send time is later than their arrival time indicate unsynchronized clocks;
+ * they are counted separately and recorded as zero latency.
+ * </p>
+ *
+ * <p>
+ * {@link #record(SampleMessage, int)} is called by the ingest thread and
+ * {@link #printReport(DeviceIdInterner)} by a reporting thread. The report
+ * only holds the lock long enough to copy the counters; latencies are drained
+ * from the concurrent histograms and formatted after it is released, so
+ * reporting never stalls ingest.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class ProbeLatencyTracker {
+
+  /**
+   * Statistics per receiver ordinal, grown as needed.
+   */
+  private ReceiverStats[] receivers = new ReceiverStats[16];
+
+  /**
+   * Latency of every probe, for the metrics endpoints.
+   */
+  private final LatencyHistogram allLatency = MetricsRegistry.getDefault()
+      .histogram("probe.latency");
+
+  /**
+   * Lost probes, for the metrics endpoints.
+   */
+  private final Counter lostCounter = MetricsRegistry.getDefault().counter(
+      "probe.lost");
+
+  /**
+   * Reordered probes, for the metrics endpoints.
+   */
+  private final Counter reorderedCounter = MetricsRegistry.getDefault()
+      .counter("probe.reordered");
+
+  /**
+   * Holds one receiver's latencies while they are formatted. Only used by
+   * {@link #printReport(DeviceIdInterner)}.
+   */
+  private final LatencyHistogram reportLatency = new LatencyHistogram();
+
+  /**
+   * Whether any probe has been seen.
+   */
+  private volatile boolean seenProbes = false;
+
+  /**
+   * Records a sample if it is a probe.
+   *
+   * @param sample
+   *          the sample, just received.
+   * @param receiver
+   *          the ordinal of the sample's receiver.
+   * @return {@code true} if the sample was a probe.
+   */
+  public boolean record(final SampleMessage sample, final int receiver) {
+    if (!LatencyProbe.isProbe(sample)) {
+      return false;
+    }
+    final long now = LatencyProbe.currentTimeNanos();
+    final byte[] data = sample.getSensedData();
+    this.record(receiver, LatencyProbe.sequence(data),
+        now - LatencyProbe.sendTime(data));
+    return true;
+  }
+
+  private synchronized void record(final int receiver, final int sequence,
+      final long latency) {
+    if (receiver >= this.receivers.length) {
+      this.receivers = Arrays.copyOf(this.receivers,
+          Math.max(receiver + 1, this.receivers.length * 2));
+    }
+    ReceiverStats stats = this.receivers[receiver];
+    if (stats == null) {
+      stats = new ReceiverStats();
+      this.receivers[receiver] = stats;
+    }
+
+    ++stats.received;
+    if (latency < 0) {
+      ++stats.skewed;
+    }
+    stats.latency.record(latency);
+    this.allLatency.record(latency);
+
+    if (stats.received == 1) {
+      stats.highest = sequence;
+    } else {
+      // Signed difference, so wrapping sequence numbers still compare
+      final int delta = sequence - stats.highest;
+      if (delta > 0) {
+        stats.lost += delta - 1;
+        this.lostCounter.add(delta - 1);
+        stats.highest = sequence;
+      } else if (delta < 0) {
+        ++stats.reordered;
+        this.reorderedCounter.increment();
+        if (stats.lost > 0) {
+          --stats.lost;
+          this.lostCounter.add(-1);
+        }
+      } else {
+        ++stats.duplicates;
+      }
+    }
+    this.seenProbes = true;
+  }
+
+  /**
+   * @return {@code true} if any probe has been recorded.
+   */
+  public boolean hasProbes() {
+    return this.seenProbes;
+  }
+
+  /**
+   * Prints one line per receiver to standard output: probe counts since the
+   * start, and latency percentiles since the previous report. Does nothing if
+   * no probes have been seen.
+   *
+   * @param receiverIds
+   *          maps receiver ordinals to IDs.
+   */
+  public void printReport(final DeviceIdInterner receiverIds) {
+    if (!this.seenProbes) {
+      return;
+    }
+    final ReceiverStats[] stats;
+    final long[] copies;
+    synchronized (this) {
+      stats = this.receivers.clone();
+      copies = new long[stats.length * 5];
+      for (int r = 0; r < stats.length; ++r) {
+        if (stats[r] != null) {
+          copies[r * 5] = stats[r].received;
+          copies[r * 5 + 1] = stats[r].lost;
+          copies[r * 5 + 2] = stats[r].reordered;
+          copies[r * 5 + 3] = stats[r].duplicates;
+          copies[r * 5 + 4] = stats[r].skewed;
+        }
+      }
+    }
+
+    System.out.println("########## PROBE LATENCY ##########");
+    for (int r = 0; r < stats.length; ++r) {
+      if (stats[r] == null) {
+        continue;
+      }
+      stats[r].latency.drainTo(this.reportLatency);
+      System.out.printf(
+          "%4s: %,10d rcvd %,8d lost %,8d reord %,6d dup %,6d skew | %s\n",
+          receiverIds.get(r), Long.valueOf(copies[r * 5]),
+          Long.valueOf(copies[r * 5 + 1]), Long.valueOf(copies[r * 5 + 2]),
+          Long.valueOf(copies[r * 5 + 3]), Long.valueOf(copies[r * 5 + 4]),
+          this.reportLatency.toMicrosString());
+      this.reportLatency.reset();
+    }
+    System.out.println();
+  }
+
+  /**
+   * Probe statistics for one receiver.
+   */
+  private static final class ReceiverStats {
+
+    /**
+     * Probes received.
+     */
+    long received = 0;
+
+    /**
+     * Probes missing from the sequence.
+     */
+    long lost = 0;
+
+    /**
+     * Probes that arrived after a later one.
+     */
+    long reordered = 0;
+
+    /**
+     * Probes whose sequence number repeated the highest one seen.
+     */
+    long duplicates = 0;
+
+    /**
+     * Probes sent "in the future" because of clock differences.
+     */
+    long skewed = 0;
+
+    /**
+     * Highest sequence number seen.
+     */
+    int highest = 0;
+
+    /**
+     * Latency since the last report, in nanoseconds. Drained by the report
+     * without holding the tracker's lock.
+     */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    ReceiverStats() {
+      super();
+    }
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.concurrent.TimeUnit;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.Backoff;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.example.util.OverflowPolicy;
+import com.owlplatform.example.util.ReadinessLatch;
+import com.owlplatform.solver.SolverAggregatorInterface;
+import com.owlplatform.solver.listeners.ConnectionListener;
+import com.owlplatform.solver.listeners.SampleListener;
+import com.owlplatform.solver.protocol.messages.SubscriptionMessage;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+/**
+ * <p>
+ * A {@link SampleSource} that stays subscribed to an aggregator across
+ * restarts and network outages. When the connection is lost, the next call to
+ * {@link #getNextSample()} opens a new connection, adds the same
+ * {@link SubscriptionRequestRule}, waits for the aggregator to acknowledge it
+ * and then carries on reading, so a solver's main loop (and everything it has
+ * counted so far) never notices more than a pause.
+ * </p>
+ *
+ * <p>
+ * Each connection is a {@link SolverAggregatorInterface} whose listener
+ * callbacks hand samples to a {@link SampleHandoffQueue} and open a
+ * {@link ReadinessLatch} when the subscription is acknowledged, so connecting
+ * takes exactly as long as the handshake. If the reading thread falls far
+ * enough behind to fill the queue, the callback waits for room, so the
+ * backpressure reaches the aggregator connection and no sample is dropped.
+ * </p>
+ *
+ * <p>
+ * Failed attempts are retried after a jittered exponential {@link Backoff}.
+ * Each outage is measured from the last sample received before it to the
+ * acknowledgement of the new subscription and recorded in the
+ * {@code aggregator.outage} histogram; samples the aggregator received during
+ * that time are not replayed. Only {@link #disconnect()} ends the source.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class ReconnectingSampleSource implements SampleSource {
+
+  /**
+   * How long to wait for each connection attempt, in milliseconds.
+   */
+  public static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+  /**
+   * How long to wait for a subscription to be acknowledged, in milliseconds.
+   */
+  public static final long ACK_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * Queued, if there is room, to wake the reading thread when a connection is
+   * lost or the source is closed. Never returned to callers.
+   */
+  private static final SampleMessage WAKE_UP = new SampleMessage();
+
+  /**
+   * Longest the reading thread waits for a sample before checking for a lost
+   * connection, in case {@link #WAKE_UP} could not be queued.
+   */
+  private static final long WAKE_INTERVAL_MILLIS = 250;
+
+  /**
+   * Aggregator host.
+   */
+  private final String host;
+
+  /**
+   * Aggregator solver port.
+   */
+  private final int port;
+
+  /**
+   * The subscription, added to every new connection.
+   */
+  private final SubscriptionRequestRule rule;
+
+  /**
+   * Samples received but not yet read, from every connection.
+   */
+  private final SampleHandoffQueue handoff = new SampleHandoffQueue(
+      SampleHandoffQueue.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+
+  /**
+   * Delays between failed attempts. Only used by the reading thread.
+   */
+  private final Backoff backoff = new Backoff();
+
+  /**
+   * Waited on between attempts, and notified by {@link #disconnect()}.
+   */
+  private final Object pauseLock = new Object();
+
+  /**
+   * Successful reconnects of every source.
+   */
+  private final Counter reconnects = MetricsRegistry.getDefault().counter(
+      "aggregator.reconnects");
+
+  /**
+   * Successful reconnects of this source.
+   */
+  private volatile long reconnectCount = 0;
+
+  /**
+   * Length of each outage, in nanoseconds.
+   */
+  private final LatencyHistogram outages = MetricsRegistry.getDefault()
+      .histogram("aggregator.outage");
+
+  /**
+   * The current connection, or {@code null} between attempts.
+   */
+  private volatile Connection current = null;
+
+  /**
+   * Set by {@link #disconnect()}.
+   */
+  private volatile boolean closed = false;
+
+  /**
+   * When the last sample was received, from {@link System#nanoTime()}.
+   */
+  private long lastSampleNanos = System.nanoTime();
+
+  /**
+   * Total length of all outages, in nanoseconds.
+   */
+  private volatile long outageNanos = 0;
+
+  /**
+   * Creates a new source. Call {@link #connect()} before reading.
+   *
+   * @param host
+   *          the aggregator host.
+   * @param port
+   *          the aggregator solver port.
+   * @param rule
+   *          the subscription to request on every connection.
+   */
+  public ReconnectingSampleSource(final String host, final int port,
+      final SubscriptionRequestRule rule) {
+    this.host = host;
+    this.port = port;
+    this.rule = rule;
+  }
+
+  /**
+   * Makes the first connection and subscription. Unlike later reconnects this
+   * is tried only once, so that a wrong host or port is reported promptly.
+   *
+   * @return {@code true} if the subscription was acknowledged.
+   */
+  public boolean connect() {
+    final boolean subscribed = this.open();
+    this.lastSampleNanos = System.nanoTime();
+    return subscribed;
+  }
+
+  @Override
+  public SampleMessage getNextSample() {
+    while (!this.closed) {
+      final Connection conn = this.current;
+      // Samples queued before a connection was lost are still delivered
+      if (conn != null && (!conn.lost || this.handoff.size() > 0)) {
+        final SampleMessage sample;
+        try {
+          sample = this.handoff.poll(WAKE_INTERVAL_MILLIS,
+              TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          this.closed = true;
+          break;
+        }
+        if (sample == null || sample == WAKE_UP) {
+          continue;
+        }
+        this.lastSampleNanos = System.nanoTime();
+        return sample;
+      }
+      this.reconnect(conn);
+    }
+    return null;
+  }
+
+  /**
+   * @return {@code true} until {@link #disconnect()} is called.
+   */
+  @Override
+  public boolean isConnected() {
+    return !this.closed;
+  }
+
+  @Override
+  public void disconnect() {
+    this.closed = true;
+    synchronized (this.pauseLock) {
+      this.pauseLock.notifyAll();
+    }
+    final Connection conn = this.current;
+    if (conn != null) {
+      conn.subscribed.abort();
+      conn.agg.disconnect();
+    }
+    this.handoff.offerIfRoom(WAKE_UP);
+    // Releases a callback still waiting for room
+    this.handoff.close();
+  }
+
+  /**
+   * @return the number of times the subscription was restored.
+   */
+  public long getReconnects() {
+    return this.reconnectCount;
+  }
+
+  /**
+   * @return the total time spent without a subscription, in nanoseconds.
+   */
+  public long getOutageNanos() {
+    return this.outageNanos;
+  }
+
+  /**
+   * Replaces a lost connection, retrying with backoff until a subscription is
+   * acknowledged or the source is closed.
+   */
+  private void reconnect(final Connection lost) {
+    if (lost != null) {
+      lost.agg.disconnect();
+    }
+    this.current = null;
+    if (this.closed) {
+      return;
+    }
+    System.err.println("Lost connection to the aggregator at " + this
+        + ". Reconnecting.");
+
+    this.backoff.reset();
+    while (!this.closed) {
+      if (!this.pause(this.backoff.nextDelay())) {
+        return;
+      }
+      if (!this.open()) {
+        continue;
+      }
+      final long gap = System.nanoTime() - this.lastSampleNanos;
+      this.outages.record(gap);
+      this.outageNanos += gap;
+      this.reconnects.increment();
+      ++this.reconnectCount;
+      System.out.printf(
+          "Resubscribed to %s after %d attempts; no samples for %,.1f s.\n",
+          this, Integer.valueOf(this.backoff.getAttempts()),
+          Double.valueOf(gap / 1e9));
+      return;
+    }
+  }
+
+  /**
+   * Opens a connection, subscribes and waits for the acknowledgement.
+   *
+   * @return {@code true} if the subscription was acknowledged and the
+   *         connection is now {@link #current}.
+   */
+  private boolean open() {
+    final Connection conn = new Connection();
+    final SolverAggregatorInterface agg = conn.agg;
+    agg.setHost(this.host);
+    agg.setPort(this.port);
+    agg.setRules(new SubscriptionRequestRule[] { this.rule });
+    // Reconnecting is done here, with backoff
+    agg.setStayConnected(false);
+    agg.setDisconnectOnException(true);
+    agg.addSampleListener(conn);
+    agg.addConnectionListener(conn);
+    // Visible to disconnect() while connecting
+    this.current = conn;
+
+    boolean subscribed = false;
+    if (!agg.connect(CONNECT_TIMEOUT_MILLIS)) {
+      System.err.println("Unable to connect to " + this);
+    } else {
+      try {
+        subscribed = conn.subscribed.await(ACK_TIMEOUT_MILLIS,
+            TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        this.closed = true;
+      }
+      if (!subscribed && !this.closed) {
+        System.err.println(conn.lost ? "Lost connection to the aggregator."
+            : "Aggregator never acknowledged the subscription request.");
+      }
+    }
+
+    if (!subscribed || this.closed) {
+      agg.disconnect();
+      this.current = null;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Waits for a delay, returning early if the source is closed.
+   *
+   * @return {@code false} if the source was closed. Interrupting the thread
+   *         closes the source.
+   */
+  private boolean pause(final long millis) {
+    synchronized (this.pauseLock) {
+      if (this.closed) {
+        return false;
+      }
+      try {
+        this.pauseLock.wait(millis);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        this.closed = true;
+        return false;
+      }
+    }
+    return !this.closed;
+  }
+
+  @Override
+  public String toString() {
+    return this.host + ":" + this.port;
+  }
+
+  /**
+   * One connection attempt and its listener callbacks.
+   */
+  private final class Connection implements SampleListener,
+      ConnectionListener {
+
+    /**
+     * The aggregator interface.
+     */
+    final SolverAggregatorInterface agg = new SolverAggregatorInterface();
+
+    /**
+     * Opened when the aggregator acknowledges the subscription.
+     */
+    final ReadinessLatch subscribed = new ReadinessLatch();
+
+    /**
+     * Set once the connection ends for any reason.
+     */
+    volatile boolean lost = false;
+
+    Connection() {
+      // Only created by the enclosing source
+    }
+
+    private void lost() {
+      if (this.lost) {
+        return;
+      }
+      this.lost = true;
+      this.subscribed.abort();
+      ReconnectingSampleSource.this.handoff.offerIfRoom(WAKE_UP);
+    }
+
+    @Override
+    public void sampleReceived(SolverAggregatorInterface aggregator,
+        SampleMessage sample) {
+      // Never do real work on the I/O thread, just hand it off
+      ReconnectingSampleSource.this.handoff.offer(sample);
+    }
+
+    @Override
+    public void connectionEnded(SolverAggregatorInterface aggregator) {
+      this.lost();
+    }
+
+    @Override
+    public void connectionEstablished(SolverAggregatorInterface aggregator) {
+      // Not subscribed until acknowledged
+    }
+
+    @Override
+    public void connectionInterrupted(SolverAggregatorInterface aggregator) {
+      this.lost();
+    }
+
+    @Override
+    public void subscriptionReceived(SolverAggregatorInterface aggregator,
+        SubscriptionMessage response) {
+      this.subscribed.signal();
+    }
+  }
+}
@@ -0,0 +1,688 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Rolling per-transmitter and per-receiver sample statistics over several
+ * window lengths at once: sample rate, mean/minimum/maximum RSSI and, for
+ * transmitters, the latest temperature.
+ * </p>
+ *
+ * <p>
+ * Each window is divided into a ring of equal time buckets per device. A
+ * sample updates only the current bucket of each window, and a bucket left
+ * over from an earlier turn of the ring is reset the first time it is reused,
+ * so recording is O(1) per window and nothing ever sweeps the whole table.
+ * Reading a window sums the live buckets of each device into a reusable
+ * {@link Snapshot}. The window therefore slides in steps of one bucket and
+ * always covers between {@code buckets - 1} and {@code buckets} bucket widths.
+ * </p>
+ *
+ * <p>
+ * Memory use is about 20 bytes per device per bucket per window. Recording
+ * and reading are synchronized, so a sample thread and a reporting thread may
+ * share one instance. Reading only holds the lock while it copies one
+ * window's slots into the snapshot; the buckets are summed after the lock is
+ * released, so a report delays recording by little more than a memory copy.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class RollingSampleStats {
+
+  /**
+   * Default window lengths: 10 seconds, 1 minute and 5 minutes.
+   */
+  public static final long[] DEFAULT_WINDOWS_MILLIS = { 10000, 60000, 300000 };
+
+  /**
+   * Default number of buckets per window.
+   */
+  public static final int DEFAULT_BUCKETS = 10;
+
+  /**
+   * Length of each window.
+   */
+  private final long[] windowMillis;
+
+  /**
+   * Width of one bucket of each window.
+   */
+  private final long[] bucketMillis;
+
+  /**
+   * Number of buckets in each window.
+   */
+  private final int buckets;
+
+  /**
+   * Per-transmitter statistics.
+   */
+  private final DeviceWindows transmitters;
+
+  /**
+   * Per-receiver statistics.
+   */
+  private final DeviceWindows receivers;
+
+  /**
+   * Time of the first recorded sample, or -1 before then. Bucket numbers are
+   * counted from this time so they fit in an {@code int}.
+   */
+  private long origin = -1;
+
+  /**
+   * Latest time passed to {@link #record}. Times are never allowed to go back
+   * past this, so a wall clock stepped backwards cannot produce a bucket
+   * number older than (or before) the ones already recorded.
+   */
+  private long latest = -1;
+
+  /**
+   * Creates statistics for the default windows.
+   */
+  public RollingSampleStats() {
+    this(DEFAULT_WINDOWS_MILLIS, DEFAULT_BUCKETS);
+  }
+
+  /**
+   * Creates statistics for the given windows.
+   *
+   * @param windowMillis
+   *          the length of each window in milliseconds.
+   * @param buckets
+   *          the number of buckets each window is divided into. More buckets
+   *          give a smoother window and use more memory.
+   */
+  public RollingSampleStats(final long[] windowMillis, final int buckets) {
+    if (windowMillis.length == 0 || buckets < 2) {
+      throw new IllegalArgumentException(
+          "Need at least one window and two buckets.");
+    }
+    this.windowMillis = windowMillis.clone();
+    this.bucketMillis = new long[windowMillis.length];
+    for (int w = 0; w < windowMillis.length; ++w) {
+      this.bucketMillis[w] = Math.max(1, windowMillis[w] / buckets);
+    }
+    this.buckets = buckets;
+    this.transmitters = new DeviceWindows(windowMillis.length, buckets);
+    this.receivers = new DeviceWindows(windowMillis.length, buckets);
+  }
+
+  /**
+   * @return the number of windows.
+   */
+  public int getNumWindows() {
+    return this.windowMillis.length;
+  }
+
+  /**
+   * @param window
+   *          the window index.
+   * @return the length of the window in milliseconds.
+   */
+  public long getWindowMillis(final int window) {
+    return this.windowMillis[window];
+  }
+
+  /**
+   * Records one sample.
+   *
+   * @param transmitter
+   *          the transmitter ID.
+   * @param receiver
+   *          the receiver ID.
+   * @param rssi
+   *          the RSSI of the sample.
+   * @param temperature
+   *          the temperature reported in the sample, or
+   *          {@link TagTally#NO_TEMPERATURE}.
+   * @param now
+   *          the current time in milliseconds.
+   */
+  public synchronized void record(final int transmitter, final int receiver,
+      final float rssi, final float temperature, final long now) {
+    if (this.origin < 0) {
+      this.origin = now;
+    }
+    if (now > this.latest) {
+      this.latest = now;
+    }
+    final long elapsed = this.latest - this.origin;
+    final int tx = this.transmitters.ordinalFor(transmitter);
+    final int rx = this.receivers.ordinalFor(receiver);
+    for (int w = 0; w < this.windowMillis.length; ++w) {
+      final int epoch = (int) (elapsed / this.bucketMillis[w]);
+      this.transmitters.record(w, tx, epoch, rssi);
+      this.receivers.record(w, rx, epoch, rssi);
+    }
+    if (temperature != TagTally.NO_TEMPERATURE) {
+      this.transmitters.lastTemperature[tx] = temperature;
+      this.transmitters.lastTemperatureTime[tx] = this.latest;
+    }
+  }
+
+  /**
+   * Copies the statistics of one window into {@code snapshot}. Only devices
+   * with at least one sample in the window are included, in the order they
+   * were first seen.
+   *
+   * @param window
+   *          the window index.
+   * @param now
+   *          the current time in milliseconds.
+   * @param snapshot
+   *          the snapshot to fill. Its previous contents are discarded.
+   */
+  public void snapshot(final int window, final long now,
+      final Snapshot snapshot) {
+    snapshot.windowMillis = this.windowMillis[window];
+    final int current;
+    final long since;
+    synchronized (this) {
+      if (this.origin < 0) {
+        snapshot.spanMillis = 0;
+        snapshot.transmitters.reset(0);
+        snapshot.receivers.reset(0);
+        return;
+      }
+      final long end = Math.max(now, this.latest);
+      final long elapsed = end - this.origin;
+      final long width = this.bucketMillis[window];
+      current = (int) (elapsed / width);
+      // Partial current bucket plus every complete bucket still in the ring
+      snapshot.spanMillis = Math.min(elapsed, (this.buckets - 1) * width
+          + elapsed % width);
+      snapshot.transmitterSlots.copyFrom(this.transmitters, window, true);
+      snapshot.receiverSlots.copyFrom(this.receivers, window, false);
+      since = end - snapshot.spanMillis;
+    }
+    snapshot.transmitterSlots.mergeTo(current, this.buckets, since,
+        snapshot.transmitters);
+    snapshot.receiverSlots.mergeTo(current, this.buckets, since,
+        snapshot.receivers);
+  }
+
+  /**
+   * Ring-buffered statistics for one kind of device.
+   */
+  private static final class DeviceWindows {
+
+    /**
+     * Maps device IDs to dense ordinals, stored in the count field.
+     */
+    final TallyTable ordinals = new TallyTable();
+
+    /**
+     * Device ID of each ordinal.
+     */
+    int[] ids;
+
+    /**
+     * Number of ordinals handed out.
+     */
+    int size = 0;
+
+    /**
+     * Bucket number held in each slot, per window. Slots are indexed by
+     * {@code ordinal * buckets + epoch % buckets}.
+     */
+    final int[][] epochs;
+
+    /**
+     * Sample count of each slot, per window.
+     */
+    final int[][] counts;
+
+    /**
+     * Sum of RSSI values of each slot, per window.
+     */
+    final float[][] rssiSums;
+
+    /**
+     * Minimum RSSI of each slot, per window.
+     */
+    final float[][] rssiMins;
+
+    /**
+     * Maximum RSSI of each slot, per window.
+     */
+    final float[][] rssiMaxes;
+
+    /**
+     * Latest temperature of each device.
+     */
+    float[] lastTemperature;
+
+    /**
+     * Time of {@link #lastTemperature}, or 0 if none.
+     */
+    long[] lastTemperatureTime;
+
+    /**
+     * Number of buckets per window.
+     */
+    final int buckets;
+
+    DeviceWindows(final int windows, final int buckets) {
+      this.buckets = buckets;
+      this.epochs = new int[windows][];
+      this.counts = new int[windows][];
+      this.rssiSums = new float[windows][];
+      this.rssiMins = new float[windows][];
+      this.rssiMaxes = new float[windows][];
+      this.allocate(64);
+    }
+
+    private void allocate(final int devices) {
+      this.ids = this.ids == null ? new int[devices] : Arrays.copyOf(this.ids,
+          devices);
+      this.lastTemperature = this.lastTemperature == null ? new float[devices]
+          : Arrays.copyOf(this.lastTemperature, devices);
+      this.lastTemperatureTime = this.lastTemperatureTime == null ? new long[devices]
+          : Arrays.copyOf(this.lastTemperatureTime, devices);
+      final int slots = devices * this.buckets;
+      for (int w = 0; w < this.epochs.length; ++w) {
+        final int oldSlots = this.epochs[w] == null ? 0 : this.epochs[w].length;
+        this.epochs[w] = this.epochs[w] == null ? new int[slots] : Arrays
+            .copyOf(this.epochs[w], slots);
+        // New slots must not look like bucket 0
+        Arrays.fill(this.epochs[w], oldSlots, slots, -1);
+        this.counts[w] = this.counts[w] == null ? new int[slots] : Arrays
+            .copyOf(this.counts[w], slots);
+        this.rssiSums[w] = this.rssiSums[w] == null ? new float[slots]
+            : Arrays.copyOf(this.rssiSums[w], slots);
+        this.rssiMins[w] = this.rssiMins[w] == null ? new float[slots]
+            : Arrays.copyOf(this.rssiMins[w], slots);
+        this.rssiMaxes[w] = this.rssiMaxes[w] == null ? new float[slots]
+            : Arrays.copyOf(this.rssiMaxes[w], slots);
+      }
+    }
+
+    int ordinalFor(final int id) {
+      final int slot = this.ordinals.slotFor(id);
+      int ordinal = this.ordinals.countAt(slot) - 1;
+      if (ordinal < 0) {
+        ordinal = this.size++;
+        if (ordinal == this.ids.length) {
+          this.allocate(this.ids.length * 2);
+        }
+        this.ids[ordinal] = id;
+        this.ordinals.setCountAt(slot, ordinal + 1);
+      }
+      return ordinal;
+    }
+
+    void record(final int window, final int ordinal, final int epoch,
+        final float rssi) {
+      final int slot = ordinal * this.buckets + epoch % this.buckets;
+      final int[] epochs = this.epochs[window];
+      if (epochs[slot] != epoch) {
+        // Left over from an earlier turn of the ring
+        epochs[slot] = epoch;
+        this.counts[window][slot] = 1;
+        this.rssiSums[window][slot] = rssi;
+        this.rssiMins[window][slot] = rssi;
+        this.rssiMaxes[window][slot] = rssi;
+        return;
+      }
+      ++this.counts[window][slot];
+      this.rssiSums[window][slot] += rssi;
+      if (rssi < this.rssiMins[window][slot]) {
+        this.rssiMins[window][slot] = rssi;
+      }
+      if (rssi > this.rssiMaxes[window][slot]) {
+        this.rssiMaxes[window][slot] = rssi;
+      }
+    }
+  }
+
+  /**
+   * One window's slots for one kind of device, copied out from under the lock
+   * so the buckets can be summed without blocking {@link #record}. The arrays
+   * only grow.
+   */
+  private static final class SlotCopy {
+
+    /**
+     * Number of devices copied.
+     */
+    int size = 0;
+
+    /**
+     * Device ID of each ordinal.
+     */
+    int[] ids = new int[0];
+
+    /**
+     * Bucket number held in each slot.
+     */
+    int[] epochs = new int[0];
+
+    /**
+     * Sample count of each slot.
+     */
+    int[] counts = new int[0];
+
+    /**
+     * Sum of RSSI values of each slot.
+     */
+    float[] rssiSums = new float[0];
+
+    /**
+     * Minimum RSSI of each slot.
+     */
+    float[] rssiMins = new float[0];
+
+    /**
+     * Maximum RSSI of each slot.
+     */
+    float[] rssiMaxes = new float[0];
+
+    /**
+     * Latest temperature of each device, if copied.
+     */
+    float[] lastTemperature = new float[0];
+
+    /**
+     * Time of {@link #lastTemperature}, or 0 if none.
+     */
+    long[] lastTemperatureTime = new long[0];
+
+    /**
+     * Whether temperatures were copied.
+     */
+    boolean temperatures = false;
+
+    SlotCopy() {
+      super();
+    }
+
+    void copyFrom(final DeviceWindows from, final int window,
+        final boolean withTemperatures) {
+      final int devices = from.size;
+      final int slots = devices * from.buckets;
+      if (this.ids.length < devices) {
+        this.ids = new int[from.ids.length];
+        this.lastTemperature = new float[from.ids.length];
+        this.lastTemperatureTime = new long[from.ids.length];
+      }
+      if (this.epochs.length < slots) {
+        final int capacity = from.epochs[window].length;
+        this.epochs = new int[capacity];
+        this.counts = new int[capacity];
+        this.rssiSums = new float[capacity];
+        this.rssiMins = new float[capacity];
+        this.rssiMaxes = new float[capacity];
+      }
+      this.size = devices;
+      this.temperatures = withTemperatures;
+      System.arraycopy(from.ids, 0, this.ids, 0, devices);
+      System.arraycopy(from.epochs[window], 0, this.epochs, 0, slots);
+      System.arraycopy(from.counts[window], 0, this.counts, 0, slots);
+      System.arraycopy(from.rssiSums[window], 0, this.rssiSums, 0, slots);
+      System.arraycopy(from.rssiMins[window], 0, this.rssiMins, 0, slots);
+      System.arraycopy(from.rssiMaxes[window], 0, this.rssiMaxes, 0, slots);
+      if (withTemperatures) {
+        System.arraycopy(from.lastTemperature, 0, this.lastTemperature, 0,
+            devices);
+        System.arraycopy(from.lastTemperatureTime, 0,
+            this.lastTemperatureTime, 0, devices);
+      }
+    }
+
+    void mergeTo(final int current, final int numBuckets, final long since,
+        final Snapshot.Devices out) {
+      out.reset(this.size);
+      final int oldest = current - numBuckets + 1;
+      for (int ordinal = 0; ordinal < this.size; ++ordinal) {
+        int count = 0;
+        double sum = 0;
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        final int base = ordinal * numBuckets;
+        for (int b = 0; b < numBuckets; ++b) {
+          final int slot = base + b;
+          // Unused slots hold epoch -1, which is within range early on
+          if (this.epochs[slot] < 0 || this.epochs[slot] < oldest
+              || this.epochs[slot] > current || this.counts[slot] == 0) {
+            continue;
+          }
+          count += this.counts[slot];
+          sum += this.rssiSums[slot];
+          min = Math.min(min, this.rssiMins[slot]);
+          max = Math.max(max, this.rssiMaxes[slot]);
+        }
+        if (count == 0) {
+          continue;
+        }
+        final int i = out.size++;
+        out.ids[i] = this.ids[ordinal];
+        out.counts[i] = count;
+        out.meanRssi[i] = (float) (sum / count);
+        out.minRssi[i] = min;
+        out.maxRssi[i] = max;
+        out.temperatures[i] = this.temperatures
+            && this.lastTemperatureTime[ordinal] >= since
+            && this.lastTemperatureTime[ordinal] != 0 ? this.lastTemperature[ordinal]
+            : TagTally.NO_TEMPERATURE;
+      }
+    }
+  }
+
+  /**
+   * Statistics of one window, filled by
+   * {@link RollingSampleStats#snapshot(int, long, Snapshot)}. The arrays only
+   * grow, so a snapshot can be refilled without allocating.
+   *
+   * @author Robert Moore
+   */
+  public static class Snapshot {
+
+    /**
+     * Nominal length of the window.
+     */
+    long windowMillis;
+
+    /**
+     * Time actually covered by the buckets that were summed.
+     */
+    long spanMillis;
+
+    /**
+     * Transmitter statistics.
+     */
+    final Devices transmitters = new Devices();
+
+    /**
+     * Receiver statistics.
+     */
+    final Devices receivers = new Devices();
+
+    /**
+     * Transmitter slots copied by the last read.
+     */
+    final SlotCopy transmitterSlots = new SlotCopy();
+
+    /**
+     * Receiver slots copied by the last read.
+     */
+    final SlotCopy receiverSlots = new SlotCopy();
+
+    /**
+     * @return the nominal length of the window in milliseconds.
+     */
+    public long getWindowMillis() {
+      return this.windowMillis;
+    }
+
+    /**
+     * @return the time covered by the statistics in milliseconds, which is
+     *         shorter than the window until the window has filled.
+     */
+    public long getSpanMillis() {
+      return this.spanMillis;
+    }
+
+    /**
+     * @return statistics for the transmitters heard in the window.
+     */
+    public Devices getTransmitters() {
+      return this.transmitters;
+    }
+
+    /**
+     * @return statistics for the receivers that heard samples in the window.
+     */
+    public Devices getReceivers() {
+      return this.receivers;
+    }
+
+    /**
+     * Per-device statistics for one kind of device.
+     *
+     * @author Robert Moore
+     */
+    public class Devices {
+
+      /**
+       * Device IDs.
+       */
+      int[] ids = new int[0];
+
+      /**
+       * Sample counts.
+       */
+      int[] counts = new int[0];
+
+      /**
+       * Mean RSSI values.
+       */
+      float[] meanRssi = new float[0];
+
+      /**
+       * Minimum RSSI values.
+       */
+      float[] minRssi = new float[0];
+
+      /**
+       * Maximum RSSI values.
+       */
+      float[] maxRssi = new float[0];
+
+      /**
+       * Latest temperatures.
+       */
+      float[] temperatures = new float[0];
+
+      /**
+       * Number of valid entries.
+       */
+      int size = 0;
+
+      void reset(final int maxDevices) {
+        if (this.ids.length < maxDevices) {
+          this.ids = new int[maxDevices];
+          this.counts = new int[maxDevices];
+          this.meanRssi = new float[maxDevices];
+          this.minRssi = new float[maxDevices];
+          this.maxRssi = new float[maxDevices];
+          this.temperatures = new float[maxDevices];
+        }
+        this.size = 0;
+      }
+
+      /**
+       * @return the number of devices.
+       */
+      public int size() {
+        return this.size;
+      }
+
+      /**
+       * @param index
+       *          the position in the snapshot.
+       * @return the device ID.
+       */
+      public int getId(final int index) {
+        return this.ids[index];
+      }
+
+      /**
+       * @param index
+       *          the position in the snapshot.
+       * @return the number of samples in the window.
+       */
+      public int getCount(final int index) {
+        return this.counts[index];
+      }
+
+      /**
+       * @param index
+       *          the position in the snapshot.
+       * @return the sample rate over the window, in samples per second.
+       */
+      public double getRate(final int index) {
+        return Snapshot.this.spanMillis == 0 ? 0 : this.counts[index] * 1000d
+            / Snapshot.this.spanMillis;
+      }
+
+      /**
+       * @param index
+       *          the position in the snapshot.
+       * @return the mean RSSI.
+       */
+      public float getMeanRssi(final int index) {
+        return this.meanRssi[index];
+      }
+
+      /**
+       * @param index
+       *          the position in the snapshot.
+       * @return the minimum RSSI.
+       */
+      public float getMinRssi(final int index) {
+        return this.minRssi[index];
+      }
+
+      /**
+       * @param index
+       *          the position in the snapshot.
+       * @return the maximum RSSI.
+       */
+      public float getMaxRssi(final int index) {
+        return this.maxRssi[index];
+      }
+
+      /**
+       * @param index
+       *          the position in the snapshot.
+       * @return the latest temperature reported in the window, or
+       *         {@link TagTally#NO_TEMPERATURE}. Always
+       *         {@code NO_TEMPERATURE} for receivers.
+       */
+      public float getTemperature(final int index) {
+        return this.temperatures[index];
+      }
+    }
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * <p>
+ * Keeps only the latest sample from each transmitter/receiver pair and hands
+ * them on in periodic batches, like the aggregator's per-pair update interval
+ * but on the solver side. Work done on the coalesced samples then grows with
+ * the number of pairs rather than with the raw sample rate.
+ * </p>
+ *
+ * <p>
+ * Pairs are identified by transmitter and receiver ordinals, such as those
+ * from a {@code DeviceIdInterner}, packed into one {@code long} key. Keys and
+ * pending samples are held in an open-addressing table of parallel arrays
+ * with linear probing, so replacing the pending sample of a known pair never
+ * allocates. Pairs that received a sample since the last
+ * {@link #drainTo(Handler)} are listed in the order they first did, so a
+ * drain visits only those pairs. The table doubles in size when it becomes
+ * more than half full. This class is not thread-safe.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class SampleCoalescer {
+
+  /**
+   * Receives the coalesced samples.
+   *
+   * @author Robert Moore
+   */
+  public static interface Handler {
+    /**
+     * Called once for each pair that received a sample since the last drain.
+     *
+     * @param transmitter
+     *          the transmitter ordinal.
+     * @param receiver
+     *          the receiver ordinal.
+     * @param sample
+     *          the latest sample from the pair.
+     * @param merged
+     *          the number of earlier samples from the pair that
+     *          {@code sample} replaced.
+     */
+    void coalesced(int transmitter, int receiver, SampleMessage sample,
+        int merged);
+  }
+
+  /**
+   * Default number of pairs a new coalescer holds before growing.
+   */
+  public static final int DEFAULT_EXPECTED_PAIRS = 4096;
+
+  /**
+   * Pair key of each slot.
+   */
+  private long[] keys;
+
+  /**
+   * Whether each slot holds a key.
+   */
+  private boolean[] used;
+
+  /**
+   * Pending sample of each slot, or {@code null} if none.
+   */
+  private SampleMessage[] pending;
+
+  /**
+   * Samples replaced in each slot since its last drain.
+   */
+  private int[] merged;
+
+  /**
+   * Slots with a pending sample, in the order they received it.
+   */
+  private int[] dirty;
+
+  /**
+   * Number of entries in {@link #dirty}.
+   */
+  private int numDirty = 0;
+
+  /**
+   * Number of occupied slots.
+   */
+  private int size = 0;
+
+  /**
+   * Samples offered.
+   */
+  private long offered = 0;
+
+  /**
+   * Samples replaced by a later sample from the same pair.
+   */
+  private long totalMerged = 0;
+
+  /**
+   * Creates a coalescer with the default capacity.
+   */
+  public SampleCoalescer() {
+    this(DEFAULT_EXPECTED_PAIRS);
+  }
+
+  /**
+   * Creates a coalescer that can hold at least {@code expectedPairs} pairs
+   * before resizing.
+   *
+   * @param expectedPairs
+   *          the number of pairs expected.
+   */
+  public SampleCoalescer(final int expectedPairs) {
+    int capacity = 16;
+    while (capacity < expectedPairs * 2) {
+      capacity <<= 1;
+    }
+    this.allocate(capacity);
+  }
+
+  private void allocate(final int capacity) {
+    this.keys = new long[capacity];
+    this.used = new boolean[capacity];
+    this.pending = new SampleMessage[capacity];
+    this.merged = new int[capacity];
+    this.dirty = new int[capacity];
+  }
+
+  /**
+   * Packs a transmitter and receiver ordinal into a pair key.
+   */
+  private static long keyOf(final int transmitter, final int receiver) {
+    return ((long) transmitter << 32) | (receiver & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Spreads the bits of a key so that sequential ordinals don't cluster.
+   */
+  private static int mix(final long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Records a sample, replacing any pending sample from the same pair.
+   *
+   * @param transmitter
+   *          the transmitter ordinal.
+   * @param receiver
+   *          the receiver ordinal.
+   * @param sample
+   *          the sample, which is held until the next drain.
+   * @return {@code true} if the sample replaced a pending one.
+   */
+  public boolean offer(final int transmitter, final int receiver,
+      final SampleMessage sample) {
+    ++this.offered;
+    final int slot = this.slotFor(keyOf(transmitter, receiver));
+    final boolean replaced = this.pending[slot] != null;
+    if (replaced) {
+      ++this.merged[slot];
+      ++this.totalMerged;
+    } else {
+      this.dirty[this.numDirty++] = slot;
+    }
+    this.pending[slot] = sample;
+    return replaced;
+  }
+
+  /**
+   * Hands every pending sample to {@code handler}, in the order their pairs
+   * first received a sample since the last drain, and clears them.
+   *
+   * @param handler
+   *          receives the samples.
+   * @return the number of samples handed on.
+   */
+  public int drainTo(final Handler handler) {
+    final int n = this.numDirty;
+    for (int i = 0; i < n; ++i) {
+      final int slot = this.dirty[i];
+      final long key = this.keys[slot];
+      final SampleMessage sample = this.pending[slot];
+      final int replaced = this.merged[slot];
+      this.pending[slot] = null;
+      this.merged[slot] = 0;
+      handler.coalesced((int) (key >>> 32), (int) key, sample, replaced);
+    }
+    this.numDirty = 0;
+    return n;
+  }
+
+  /**
+   * @return the number of pairs with a pending sample.
+   */
+  public int getPending() {
+    return this.numDirty;
+  }
+
+  /**
+   * @return the number of pairs seen.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * @return the number of samples offered.
+   */
+  public long getOffered() {
+    return this.offered;
+  }
+
+  /**
+   * @return the number of samples replaced by a later sample from the same
+   *         pair before being handed on.
+   */
+  public long getMerged() {
+    return this.totalMerged;
+  }
+
+  /**
+   * Returns the slot holding {@code key}, inserting it if necessary.
+   */
+  private int slotFor(final long key) {
+    final int mask = this.keys.length - 1;
+    int slot = mix(key) & mask;
+    while (this.used[slot]) {
+      if (this.keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if ((this.size + 1) * 2 > this.keys.length) {
+      this.grow();
+      return this.slotFor(key);
+    }
+    this.used[slot] = true;
+    this.keys[slot] = key;
+    ++this.size;
+    return slot;
+  }
+
+  private void grow() {
+    final long[] oldKeys = this.keys;
+    final boolean[] oldUsed = this.used;
+    final SampleMessage[] oldPending = this.pending;
+    final int[] oldMerged = this.merged;
+    final int[] oldDirty = this.dirty;
+
+    this.allocate(oldKeys.length * 2);
+    // Old slot to new slot, to carry the drain order across
+    final int[] moved = new int[oldKeys.length];
+    final int mask = this.keys.length - 1;
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (!oldUsed[i]) {
+        continue;
+      }
+      int slot = mix(oldKeys[i]) & mask;
+      while (this.used[slot]) {
+        slot = (slot + 1) & mask;
+      }
+      this.used[slot] = true;
+      this.keys[slot] = oldKeys[i];
+      this.pending[slot] = oldPending[i];
+      this.merged[slot] = oldMerged[i];
+      moved[i] = slot;
+    }
+    for (int i = 0; i < this.numDirty; ++i) {
+      this.dirty[i] = moved[oldDirty[i]];
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.util.DeviceId;
+import com.owlplatform.example.util.DeviceIdInterner;
+
+/**
+ * <p>
+ * A local filter that decides whether a solver should process a sample, based
+ * on its physical layer, transmitter ID and receiver ID. Each check costs O(1)
+ * and allocates nothing, so the filter can run before any other work is done
+ * on a sample, even with tens of thousands of allowed transmitters.
+ * </p>
+ *
+ * <p>
+ * Physical layers are a 256-bit mask. Transmitter and receiver IDs that fit in
+ * {@value #BITMAP_LIMIT_BITS} bits (which covers Pipsqueak IDs) are kept in a
+ * bitmap; larger IDs are kept in a {@link DeviceIdInterner} hash table. An
+ * empty set accepts everything, so an empty filter accepts every sample.
+ * </p>
+ *
+ * <p>
+ * Filters can be built in code or loaded from a text file with one entry per
+ * line:
+ * </p>
+ *
+ * <pre>
+ * # Comments start with '#'
+ * phy 1
+ * tx 1234
+ * tx 0x0FFE
+ * rx 0x1234567890ABCDEF1234567890ABCDEF
+ * </pre>
+ *
+ * <p>
+ * A filter must not be modified while it is being used. This class is
+ * otherwise safe to share between threads once built.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class SampleFilter {
+
+  /**
+   * IDs below {@code 2^BITMAP_LIMIT_BITS} are stored in the bitmap.
+   */
+  public static final int BITMAP_LIMIT_BITS = 24;
+
+  /**
+   * Allowed physical layers, or all zeros to allow any.
+   */
+  private final long[] physicalLayers = new long[4];
+
+  /**
+   * Whether any physical layer has been added.
+   */
+  private boolean anyPhysicalLayer = false;
+
+  /**
+   * Allowed transmitters.
+   */
+  private final IdSet transmitters = new IdSet();
+
+  /**
+   * Allowed receivers.
+   */
+  private final IdSet receivers = new IdSet();
+
+  /**
+   * Creates a filter that accepts every sample until entries are added.
+   */
+  public SampleFilter() {
+    super();
+  }
+
+  /**
+   * Loads a filter from a text file in the format described above.
+   *
+   * @param file
+   *          the filter file.
+   * @return the loaded filter.
+   * @throws IOException
+   *           if the file cannot be read or contains an invalid line.
+   */
+  public static SampleFilter load(final File file) throws IOException {
+    final SampleFilter filter = new SampleFilter();
+    final BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), "US-ASCII"));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = in.readLine()) != null) {
+        ++lineNumber;
+        final int comment = line.indexOf('#');
+        if (comment >= 0) {
+          line = line.substring(0, comment);
+        }
+        line = line.trim();
+        if (line.length() == 0) {
+          continue;
+        }
+        final String[] parts = line.split("\\s+");
+        if (parts.length != 2) {
+          throw new IOException(file + ":" + lineNumber
+              + ": expected \"<phy|tx|rx> <value>\".");
+        }
+        try {
+          if ("phy".equalsIgnoreCase(parts[0])) {
+            filter.addPhysicalLayer(Integer.decode(parts[1]).intValue());
+          } else if ("tx".equalsIgnoreCase(parts[0])) {
+            filter.addTransmitter(parseId(parts[1]));
+          } else if ("rx".equalsIgnoreCase(parts[0])) {
+            filter.addReceiver(parseId(parts[1]));
+          } else {
+            throw new IOException(file + ":" + lineNumber
+                + ": unknown entry type \"" + parts[0] + "\".");
+          }
+        } catch (NumberFormatException nfe) {
+          throw new IOException(file + ":" + lineNumber + ": invalid value \""
+              + parts[1] + "\".");
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return filter;
+  }
+
+  /**
+   * Parses a decimal ID or a hexadecimal ID starting with "0x".
+   *
+   * @param value
+   *          the ID string.
+   * @return the ID.
+   */
+  static DeviceId parseId(final String value) {
+    final BigInteger number;
+    if (value.startsWith("0x") || value.startsWith("0X")) {
+      number = new BigInteger(value.substring(2), 16);
+    } else {
+      number = new BigInteger(value);
+    }
+    if (number.signum() < 0 || number.bitLength() > DeviceId.SIZE * 8) {
+      throw new NumberFormatException("ID out of range: " + value);
+    }
+    return DeviceId.fromBytes(number.toByteArray());
+  }
+
+  /**
+   * Allows samples from a physical layer.
+   *
+   * @param physicalLayer
+   *          the physical layer, 0-255.
+   */
+  public void addPhysicalLayer(final int physicalLayer) {
+    if (physicalLayer < 0 || physicalLayer > 255) {
+      throw new IllegalArgumentException("Invalid physical layer: "
+          + physicalLayer);
+    }
+    this.physicalLayers[physicalLayer >>> 6] |= 1L << physicalLayer;
+    this.anyPhysicalLayer = true;
+  }
+
+  /**
+   * Allows samples from a transmitter.
+   *
+   * @param id
+   *          the transmitter ID.
+   */
+  public void addTransmitter(final DeviceId id) {
+    this.transmitters.add(id);
+  }
+
+  /**
+   * Allows samples heard by a receiver.
+   *
+   * @param id
+   *          the receiver ID.
+   */
+  public void addReceiver(final DeviceId id) {
+    this.receivers.add(id);
+  }
+
+  /**
+   * @return the number of allowed transmitters, or 0 if any is allowed.
+   */
+  public int getNumTransmitters() {
+    return this.transmitters.size;
+  }
+
+  /**
+   * @return the number of allowed receivers, or 0 if any is allowed.
+   */
+  public int getNumReceivers() {
+    return this.receivers.size;
+  }
+
+  /**
+   * Checks whether a sample passes the filter.
+   *
+   * @param sample
+   *          the sample.
+   * @return {@code true} if the sample should be processed.
+   */
+  public boolean accept(final SampleMessage sample) {
+    if (this.anyPhysicalLayer) {
+      final int phy = sample.getPhysicalLayer() & 0xFF;
+      if ((this.physicalLayers[phy >>> 6] & (1L << phy)) == 0) {
+        return false;
+      }
+    }
+    return this.transmitters.contains(sample.getDeviceId())
+        && this.receivers.contains(sample.getReceiverId());
+  }
+
+  @Override
+  public String toString() {
+    return "SampleFilter(" + (this.anyPhysicalLayer ? "some" : "all")
+        + " physical layers, "
+        + (this.transmitters.size == 0 ? "all" : this.transmitters.size)
+        + " transmitters, "
+        + (this.receivers.size == 0 ? "all" : this.receivers.size)
+        + " receivers)";
+  }
+
+  /**
+   * A set of IDs: small IDs in a bitmap, others in a hash table.
+   */
+  private static final class IdSet {
+
+    /**
+     * Bits for small IDs, grown as needed up to the limit.
+     */
+    long[] bitmap = new long[0];
+
+    /**
+     * IDs too large for the bitmap.
+     */
+    final DeviceIdInterner large = new DeviceIdInterner(16);
+
+    /**
+     * Number of distinct IDs in the set.
+     */
+    int size = 0;
+
+    void add(final DeviceId id) {
+      if (id.getHigh() == 0 && (id.getLow() >>> BITMAP_LIMIT_BITS) == 0) {
+        final int bit = (int) id.getLow();
+        final int word = bit >>> 6;
+        if (word >= this.bitmap.length) {
+          final long[] grown = new long[Math.max(word + 1,
+              this.bitmap.length * 2)];
+          System.arraycopy(this.bitmap, 0, grown, 0, this.bitmap.length);
+          this.bitmap = grown;
+        }
+        if ((this.bitmap[word] & (1L << bit)) == 0) {
+          this.bitmap[word] |= 1L << bit;
+          ++this.size;
+        }
+        return;
+      }
+      final int before = this.large.size();
+      this.large.intern(id);
+      if (this.large.size() != before) {
+        ++this.size;
+      }
+    }
+
+    boolean contains(final byte[] rawId) {
+      if (this.size == 0) {
+        return true;
+      }
+      final long high = DeviceId.high(rawId);
+      final long low = DeviceId.low(rawId);
+      if (high == 0 && (low >>> BITMAP_LIMIT_BITS) == 0) {
+        final int bit = (int) low;
+        final int word = bit >>> 6;
+        return word < this.bitmap.length
+            && (this.bitmap[word] & (1L << bit)) != 0;
+      }
+      return this.large.size() != 0
+          && this.large.find(high, low) != DeviceIdInterner.NOT_FOUND;
+    }
+  }
+}
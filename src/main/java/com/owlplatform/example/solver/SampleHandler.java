@@ -0,0 +1,39 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Processes samples handed to it by a {@link ShardedSamplePipeline} or any
+ * other sample source. A handler is only ever called from one thread at a
+ * time.
+ *
+ * @author Robert Moore
+ */
+public interface SampleHandler {
+
+  /**
+   * Called once for each sample.
+   *
+   * @param sample
+   *          the sample to process.
+   */
+  public void handleSample(SampleMessage sample);
+}
@@ -0,0 +1,221 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.example.util.OverflowPolicy;
+
+/**
+ * <p>
+ * A bounded queue for handing samples from a library callback thread to a
+ * processing thread. When the queue is full, the configured
+ * {@link OverflowPolicy} decides whether the callback waits or a sample is
+ * discarded.
+ * </p>
+ *
+ * <p>
+ * The queue counts accepted and dropped samples and tracks its largest depth
+ * so that a solver can tell when its processing thread is falling behind.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class SampleHandoffQueue {
+
+  /**
+   * Default number of samples the queue holds.
+   */
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  /**
+   * The queued samples.
+   */
+  private final ArrayBlockingQueue<SampleMessage> queue;
+
+  /**
+   * What to do when {@link #queue} is full.
+   */
+  private final OverflowPolicy policy;
+
+  /**
+   * Number of samples added to the queue.
+   */
+  private final AtomicLong accepted = new AtomicLong(0);
+
+  /**
+   * Number of samples discarded because the queue was full.
+   */
+  private final AtomicLong dropped = new AtomicLong(0);
+
+  /**
+   * Largest depth observed since the last call to
+   * {@link #getAndResetMaxDepth()}.
+   */
+  private final AtomicLong maxDepth = new AtomicLong(0);
+
+  /**
+   * Set by {@link #close()}.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  /**
+   * Creates a new handoff queue.
+   *
+   * @param capacity
+   *          the maximum number of queued samples.
+   * @param policy
+   *          what to do when the queue is full.
+   */
+  public SampleHandoffQueue(final int capacity, final OverflowPolicy policy) {
+    this.queue = new ArrayBlockingQueue<SampleMessage>(capacity);
+    this.policy = policy;
+  }
+
+  /**
+   * Adds a sample, applying the overflow policy if the queue is full. Once the
+   * queue is closed, samples are refused and a blocked producer returns.
+   *
+   * @param sample
+   *          the sample to add.
+   * @return {@code true} if the sample was queued, {@code false} if it was
+   *         dropped or the queue is closed.
+   */
+  public boolean offer(final SampleMessage sample) {
+    if (this.closed.get()) {
+      return false;
+    }
+    if (!this.policy.offer(this.queue, sample, this.dropped, this.closed)) {
+      return false;
+    }
+    if (this.closed.get()) {
+      // Closed while waiting; the consumer is gone
+      this.queue.clear();
+      return false;
+    }
+    this.accepted.incrementAndGet();
+
+    final long depth = this.queue.size();
+    long max = this.maxDepth.get();
+    while (depth > max && !this.maxDepth.compareAndSet(max, depth)) {
+      max = this.maxDepth.get();
+    }
+    return true;
+  }
+
+  /**
+   * Adds a sample only if there is room right now, whatever the overflow
+   * policy, without counting it. Meant for markers that wake the consumer,
+   * which must never block the thread sending them.
+   *
+   * @param marker
+   *          the item to add.
+   * @return {@code true} if it was queued.
+   */
+  public boolean offerIfRoom(final SampleMessage marker) {
+    return !this.closed.get() && this.queue.offer(marker);
+  }
+
+  /**
+   * Removes the oldest sample, waiting until one is available.
+   *
+   * @return the oldest sample.
+   * @throws InterruptedException
+   *           if interrupted while waiting.
+   */
+  public SampleMessage take() throws InterruptedException {
+    return this.queue.take();
+  }
+
+  /**
+   * Removes the oldest sample, waiting up to the given time for one to become
+   * available.
+   *
+   * @param timeout
+   *          how long to wait.
+   * @param unit
+   *          the unit of {@code timeout}.
+   * @return the oldest sample, or {@code null} if none arrived in time.
+   * @throws InterruptedException
+   *           if interrupted while waiting.
+   */
+  public SampleMessage poll(final long timeout, final TimeUnit unit)
+      throws InterruptedException {
+    return this.queue.poll(timeout, unit);
+  }
+
+  /**
+   * Discards every queued sample and refuses new ones. Producers waiting for
+   * room return {@code false}. Used when the consumer goes away, so that
+   * producers under {@link OverflowPolicy#BLOCK} are not left waiting forever.
+   */
+  public void close() {
+    this.closed.set(true);
+    this.queue.clear();
+  }
+
+  /**
+   * @return {@code true} once {@link #close()} has been called.
+   */
+  public boolean isClosed() {
+    return this.closed.get();
+  }
+
+  /**
+   * @return the number of samples currently queued.
+   */
+  public int size() {
+    return this.queue.size();
+  }
+
+  /**
+   * @return the overflow policy of this queue.
+   */
+  public OverflowPolicy getPolicy() {
+    return this.policy;
+  }
+
+  /**
+   * @return the total number of samples queued.
+   */
+  public long getAccepted() {
+    return this.accepted.get();
+  }
+
+  /**
+   * @return the total number of samples dropped.
+   */
+  public long getDropped() {
+    return this.dropped.get();
+  }
+
+  /**
+   * Returns the largest queue depth since the last call and starts tracking a
+   * new maximum.
+   *
+   * @return the largest observed depth.
+   */
+  public long getAndResetMaxDepth() {
+    return this.maxDepth.getAndSet(this.queue.size());
+  }
+}
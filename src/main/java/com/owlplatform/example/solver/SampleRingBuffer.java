@@ -0,0 +1,164 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * <p>
+ * A bounded, lock-free ring buffer of samples for exactly one producer thread
+ * and one consumer thread.
+ * </p>
+ *
+ * <p>
+ * The producer only writes {@code tail} and the consumer only writes
+ * {@code head}; both are published with ordered (lazy) stores, so neither side
+ * ever takes a lock or issues a full memory fence. Each side also caches the
+ * last value it read of the other's index and only re-reads it when the cached
+ * value says the buffer is full (or empty).
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class SampleRingBuffer {
+
+  /**
+   * Storage for the samples. Length is a power of two.
+   */
+  private final SampleMessage[] slots;
+
+  /**
+   * {@code slots.length - 1}.
+   */
+  private final int mask;
+
+  /**
+   * Index of the next slot to read. Written only by the consumer.
+   */
+  private final AtomicLong head = new PaddedAtomicLong();
+
+  /**
+   * Index of the next slot to write. Written only by the producer.
+   */
+  private final AtomicLong tail = new PaddedAtomicLong();
+
+  /**
+   * Producer's cached copy of {@link #head}.
+   */
+  private long headCache = 0;
+
+  /**
+   * Consumer's cached copy of {@link #tail}.
+   */
+  private long tailCache = 0;
+
+  /**
+   * Creates a new ring buffer holding at least {@code capacity} samples.
+   *
+   * @param capacity
+   *          minimum capacity, rounded up to a power of two.
+   */
+  public SampleRingBuffer(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: "
+          + capacity);
+    }
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new SampleMessage[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Adds a sample if there is room. Must only be called by the producer
+   * thread.
+   *
+   * @param sample
+   *          the sample to add.
+   * @return {@code true} if the sample was added, {@code false} if the buffer
+   *         is full.
+   */
+  public boolean offer(final SampleMessage sample) {
+    final long currTail = this.tail.get();
+    if (currTail - this.headCache >= this.slots.length) {
+      this.headCache = this.head.get();
+      if (currTail - this.headCache >= this.slots.length) {
+        return false;
+      }
+    }
+    this.slots[(int) currTail & this.mask] = sample;
+    this.tail.lazySet(currTail + 1);
+    return true;
+  }
+
+  /**
+   * Removes the oldest sample. Must only be called by the consumer thread.
+   *
+   * @return the oldest sample, or {@code null} if the buffer is empty.
+   */
+  public SampleMessage poll() {
+    final long currHead = this.head.get();
+    if (currHead >= this.tailCache) {
+      this.tailCache = this.tail.get();
+      if (currHead >= this.tailCache) {
+        return null;
+      }
+    }
+    final int index = (int) currHead & this.mask;
+    final SampleMessage sample = this.slots[index];
+    this.slots[index] = null;
+    this.head.lazySet(currHead + 1);
+    return sample;
+  }
+
+  /**
+   * Approximate number of samples in the buffer. Safe to call from any
+   * thread.
+   *
+   * @return the number of queued samples.
+   */
+  public int size() {
+    final long currHead = this.head.get();
+    final long currTail = this.tail.get();
+    return (int) Math.max(0, currTail - currHead);
+  }
+
+  /**
+   * @return the maximum number of samples the buffer can hold.
+   */
+  public int capacity() {
+    return this.slots.length;
+  }
+
+  /**
+   * An {@code AtomicLong} padded out to its own cache line so that the head
+   * and tail indices don't falsely share one.
+   */
+  @SuppressWarnings("serial")
+  private static final class PaddedAtomicLong extends AtomicLong {
+    /**
+     * Padding, never read.
+     */
+    long p1, p2, p3, p4, p5, p6, p7;
+  }
+}
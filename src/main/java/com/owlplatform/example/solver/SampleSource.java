@@ -0,0 +1,50 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * A stream of samples for a solver to process, such as a live aggregator
+ * connection or a replayed capture file. Mirrors the sample-reading methods
+ * of {@code SolverAggregatorConnection}, so a solver's main loop can read from
+ * either.
+ *
+ * @author Robert Moore
+ */
+public interface SampleSource {
+
+  /**
+   * Returns the next sample, blocking until one is available.
+   *
+   * @return the next sample, or {@code null} if none is available, for
+   *         example because the source has ended.
+   */
+  public SampleMessage getNextSample();
+
+  /**
+   * @return {@code true} while the source may produce more samples.
+   */
+  public boolean isConnected();
+
+  /**
+   * Stops the source and releases its resources.
+   */
+  public void disconnect();
+}
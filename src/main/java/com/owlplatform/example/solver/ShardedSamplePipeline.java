@@ -0,0 +1,253 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * <p>
+ * Spreads sample processing across several worker threads. A single ingest
+ * thread (typically the one calling
+ * {@code SolverAggregatorConnection.getNextSample()}) calls
+ * {@link #dispatch(SampleMessage)}, which places the sample into one worker's
+ * {@link SampleRingBuffer}. Samples are sharded by device ID, so every sample
+ * from a given transmitter is handled by the same {@link SampleHandler} and
+ * any per-transmitter state in that handler has a single writer.
+ * </p>
+ *
+ * <p>
+ * When a worker's buffer is full, {@code dispatch} waits for room rather than
+ * dropping the sample, which pushes back on the aggregator connection.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class ShardedSamplePipeline {
+
+  /**
+   * Default number of samples buffered per worker.
+   */
+  public static final int DEFAULT_RING_CAPACITY = 8192;
+
+  /**
+   * Number of busy-spins before an idle thread starts yielding.
+   */
+  private static final int SPIN_TRIES = 100;
+
+  /**
+   * Number of yields before an idle thread starts parking.
+   */
+  private static final int YIELD_TRIES = 100;
+
+  /**
+   * How long an idle thread parks between checks, in nanoseconds.
+   */
+  private static final long PARK_NANOS = 50000L;
+
+  /**
+   * One ring buffer per worker.
+   */
+  private final SampleRingBuffer[] rings;
+
+  /**
+   * One handler per worker.
+   */
+  private final SampleHandler[] handlers;
+
+  /**
+   * The worker threads.
+   */
+  private final Thread[] workers;
+
+  /**
+   * Cleared to stop the workers once their buffers are empty.
+   */
+  private volatile boolean running = false;
+
+  /**
+   * Creates a pipeline with one worker for each handler and the default
+   * buffer size.
+   *
+   * @param handlers
+   *          the handlers, one per worker thread.
+   */
+  public ShardedSamplePipeline(final SampleHandler[] handlers) {
+    this(handlers, DEFAULT_RING_CAPACITY);
+  }
+
+  /**
+   * Creates a pipeline with one worker for each handler.
+   *
+   * @param handlers
+   *          the handlers, one per worker thread.
+   * @param ringCapacity
+   *          the number of samples buffered for each worker.
+   */
+  public ShardedSamplePipeline(final SampleHandler[] handlers,
+      final int ringCapacity) {
+    if (handlers == null || handlers.length == 0) {
+      throw new IllegalArgumentException("At least one handler is required.");
+    }
+    this.handlers = handlers.clone();
+    this.rings = new SampleRingBuffer[handlers.length];
+    this.workers = new Thread[handlers.length];
+    for (int i = 0; i < handlers.length; ++i) {
+      this.rings[i] = new SampleRingBuffer(ringCapacity);
+      this.workers[i] = new Thread(new Worker(i), "Sample worker " + i);
+    }
+  }
+
+  /**
+   * Starts the worker threads.
+   */
+  public void start() {
+    this.running = true;
+    for (Thread t : this.workers) {
+      t.start();
+    }
+  }
+
+  /**
+   * Stops the workers after they have processed every sample already
+   * dispatched, and waits for them to exit.
+   */
+  public void shutdown() {
+    this.running = false;
+    for (Thread t : this.workers) {
+      try {
+        t.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the number of worker threads.
+   */
+  public int getNumWorkers() {
+    return this.workers.length;
+  }
+
+  /**
+   * Returns the number of samples waiting for a worker.
+   *
+   * @param worker
+   *          the worker index.
+   * @return the number of samples in its buffer.
+   */
+  public int getQueueDepth(final int worker) {
+    return this.rings[worker].size();
+  }
+
+  /**
+   * Hands a sample to the worker responsible for its device ID, waiting if
+   * that worker's buffer is full. Must only be called from one thread.
+   *
+   * @param sample
+   *          the sample to process.
+   */
+  public void dispatch(final SampleMessage sample) {
+    final SampleRingBuffer ring = this.rings[shardOf(sample.getDeviceId(),
+        this.rings.length)];
+    int idle = 0;
+    while (!ring.offer(sample)) {
+      idle = backOff(idle);
+    }
+  }
+
+  /**
+   * Picks a shard for a device ID.
+   *
+   * @param deviceId
+   *          the 16-byte device ID.
+   * @param numShards
+   *          the number of shards.
+   * @return a shard index in {@code [0, numShards)}.
+   */
+  static int shardOf(final byte[] deviceId, final int numShards) {
+    int hash = 1;
+    for (int i = 0; i < deviceId.length; ++i) {
+      hash = 31 * hash + deviceId[i];
+    }
+    hash ^= (hash >>> 16);
+    return (hash & 0x7FFFFFFF) % numShards;
+  }
+
+  /**
+   * Waits a little, escalating from spinning to yielding to parking.
+   *
+   * @param idle
+   *          the number of times the caller has already backed off.
+   * @return the new back-off count.
+   */
+  static int backOff(final int idle) {
+    if (idle < SPIN_TRIES) {
+      // Busy-spin
+    } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+      return idle;
+    }
+    return idle + 1;
+  }
+
+  /**
+   * Drains one ring buffer into its handler.
+   */
+  private final class Worker implements Runnable {
+
+    /**
+     * Index of this worker's ring and handler.
+     */
+    private final int index;
+
+    Worker(final int index) {
+      this.index = index;
+    }
+
+    @Override
+    public void run() {
+      final SampleRingBuffer ring = ShardedSamplePipeline.this.rings[this.index];
+      final SampleHandler handler = ShardedSamplePipeline.this.handlers[this.index];
+      int idle = 0;
+      while (true) {
+        SampleMessage sample = ring.poll();
+        if (sample != null) {
+          idle = 0;
+          try {
+            handler.handleSample(sample);
+          } catch (RuntimeException re) {
+            System.err.println("Sample handler threw an exception: " + re);
+            re.printStackTrace(System.err);
+          }
+          continue;
+        }
+        if (!ShardedSamplePipeline.this.running && ring.size() == 0) {
+          break;
+        }
+        idle = backOff(idle);
+      }
+    }
+  }
+}
@@ -18,11 +18,20 @@
  */
 package com.owlplatform.example.solver;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import com.owlplatform.common.SampleMessage;
 import com.owlplatform.common.util.NumericUtils;
-import com.owlplatform.solver.SolverAggregatorConnection;
+import com.owlplatform.example.capture.MappedSampleReplay;
+import com.owlplatform.example.capture.SampleCaptureWriter;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.Gauge;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.AsyncOutputSink;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.example.util.OverflowPolicy;
 import com.owlplatform.solver.protocol.messages.Transmitter;
 import com.owlplatform.solver.rules.SubscriptionRequestRule;
 
@@ -62,107 +71,299 @@ public class SimpleFakeSolver {
    * "99" (0x63).
    * </p>
    * 
+   * <p>
+   * The "-w" switch followed by a number processes samples on that many
+   * worker threads, sharded by device ID, instead of on the main thread. For
+   * example, "(java invocation) localhost 7008 -w 4".
+   * </p>
+   * 
+   * <p>
+   * The "-c" switch followed by a file name also appends every received
+   * sample to that capture file. Replacing the host and port with "-p" and a
+   * capture file name replays the capture instead of connecting to an
+   * aggregator, at the original pace or at the speed multiplier given with
+   * "-s" (0 for as fast as possible). For example, "(java invocation) -p
+   * samples.cap -s 10".
+   * </p>
+   * 
+   * <p>
+   * The "-f" switch followed by a file name loads a {@link SampleFilter} of
+   * allowed physical layers, transmitters and receivers. Samples it rejects
+   * are neither captured nor printed.
+   * </p>
+   * 
+   * <p>
+   * Samples are printed from a separate output thread. If printing falls
+   * behind, the oldest unprinted samples are dropped so that printing never
+   * slows down the connection; "-o block" waits instead and "-o drop-newest"
+   * drops the newest samples.
+   * </p>
+   * 
+   * <p>
+   * If the aggregator restarts or the connection drops, the solver reconnects
+   * with a growing, randomized delay and subscribes again, and keeps running.
+   * </p>
+   * 
    * @param args
-   *          aggregator host, port, and a list of optional transmitter ID
-   *          values
+   *          aggregator host and port or a capture file to replay, optional
+   *          switches, and a list of optional transmitter ID values
    */
   public static void main(String[] args) {
     if (args.length < 2) {
       System.err.println("Invalid number of arguments.");
-      System.err.println("Usage: <Aggregator Host> <Aggregator Port>");
+      System.err
+          .println("Usage: <Aggregator Host> <Aggregator Port> [-w Workers] [-c Capture File] [-f Filter File] [-o Policy] [Transmitter IDs]");
+      System.err
+          .println("       -p <Capture File> [-s Speed] [-w Workers] [-c Capture File] [-f Filter File] [-o Policy]");
       return;
     }
 
-    String host = args[0];
-    int port = Integer.parseInt(args[1]);
+    // Replay a capture file instead of connecting to an aggregator
+    File replayFile = null;
+    String host = null;
+    int port = 0;
+    if ("-p".equals(args[0])) {
+      replayFile = new File(args[1]);
+    } else {
+      host = args[0];
+      port = Integer.parseInt(args[1]);
+    }
 
     // Array of Transmitter filters
-    ArrayList<Transmitter> txers = null;
-    if (args.length > 2) {
-      
-      txers = new ArrayList<Transmitter>();
-      for (int argc = 2; argc < args.length; ++argc) {
-        String arg = args[argc];
-        byte[] value = null;
-        // Flag to indicate hex string, next arg is actual value.
-        if ("-x".equalsIgnoreCase(arg)) {
-          value = NumericUtils.fromHexString(args[++argc]);
-        }
-        // Parse an integer (32-bit, signed)
-        else {
-          value = new byte[4];
-          int valInt = Integer.parseInt(arg);
-          value[0] = (byte) (valInt >> 24);
-          value[1] = (byte) (valInt >> 16);
-          value[2] = (byte) (valInt >> 8);
-          value[3] = (byte) valInt;
-        }
-        txers.add(new Transmitter(value));
+    ArrayList<Transmitter> txers = new ArrayList<Transmitter>();
+    // Number of sample-processing threads, 0 to process on the main thread
+    int numWorkers = 0;
+    // Capture file to write received samples to
+    File captureFile = null;
+    // Replay speed multiplier, 0 for as fast as possible
+    double speed = 1;
+    // Local sample filter file
+    File filterFile = null;
+    // Output overflow policy
+    OverflowPolicy outputPolicy = OverflowPolicy.DROP_OLDEST;
+    for (int argc = 2; argc < args.length; ++argc) {
+      String arg = args[argc];
+      // Flag to indicate worker thread count, next arg is actual value.
+      if ("-w".equalsIgnoreCase(arg)) {
+        numWorkers = Integer.parseInt(args[++argc]);
+        continue;
       }
+      if ("-c".equals(arg)) {
+        captureFile = new File(args[++argc]);
+        continue;
+      }
+      if ("-s".equals(arg)) {
+        speed = Double.parseDouble(args[++argc]);
+        continue;
+      }
+      // Local filter file, next arg is the file name
+      if ("-f".equals(arg)) {
+        filterFile = new File(args[++argc]);
+        continue;
+      }
+      // What to do when output can't keep up, next arg is the policy
+      if ("-o".equals(arg)) {
+        outputPolicy = OverflowPolicy.parse(args[++argc]);
+        continue;
+      }
+      byte[] value = null;
+      // Flag to indicate hex string, next arg is actual value.
+      if ("-x".equalsIgnoreCase(arg)) {
+        value = NumericUtils.fromHexString(args[++argc]);
+      }
+      // Parse an integer (32-bit, signed)
+      else {
+        value = new byte[4];
+        int valInt = Integer.parseInt(arg);
+        value[0] = (byte) (valInt >> 24);
+        value[1] = (byte) (valInt >> 16);
+        value[2] = (byte) (valInt >> 8);
+        value[3] = (byte) valInt;
+      }
+      txers.add(new Transmitter(value));
+    }
 
+    SampleFilter filter = null;
+    if (filterFile != null) {
+      try {
+        filter = SampleFilter.load(filterFile);
+        System.out.println("Loaded " + filter + " from " + filterFile);
+      } catch (IOException ioe) {
+        System.err.println("Unable to load filter: " + ioe.getMessage());
+        return;
+      }
     }
 
-    final SolverAggregatorConnection agg = new SolverAggregatorConnection();
-    agg.setHost(host);
-    agg.setPort(port);
+    final SampleSource source;
+    if (replayFile != null) {
+      try {
+        source = new MappedSampleReplay(replayFile, speed);
+      } catch (IOException ioe) {
+        System.err.println("Unable to replay " + replayFile + ": " + ioe);
+        return;
+      }
+    } else {
+      ReconnectingSampleSource subscribed = subscribe(host, port, txers);
+      if (subscribed == null) {
+        return;
+      }
+      source = subscribed;
+    }
 
+    SampleCaptureWriter capture = null;
+    if (captureFile != null) {
+      try {
+        capture = new SampleCaptureWriter(captureFile);
+      } catch (IOException ioe) {
+        System.err.println("Unable to capture to " + captureFile + ": " + ioe);
+        source.disconnect();
+        return;
+      }
+    }
+
+    final Thread mainThread = Thread.currentThread();
     Runtime.getRuntime().addShutdownHook(new Thread() {
 
       @Override
       public void run() {
-        agg.disconnect();
+        source.disconnect();
+        // Let the main thread finish writing the capture file
+        try {
+          mainThread.join(1000);
+        } catch (InterruptedException ie) {
+          // Shutting down anyway
+        }
         System.out.println("Shutdown complete.");
       }
     });
 
-    SubscriptionRequestRule rule = SubscriptionRequestRule
-        .generateGenericRule();
-    rule.setUpdateInterval(0000l);
-    if (txers != null) {
-      rule.setTransmitters(txers);
-    }
-
-    agg.addRule(rule);
-
-    if (!agg.connect(10000l)) {
-      System.err.println("Unable to connect to " + agg);
-      return;
-    }
+    // Samples are formatted and written to System.out on a separate thread
+    final AsyncOutputSink<SampleMessage> output = new AsyncOutputSink<SampleMessage>(
+        new AsyncOutputSink.Formatter<SampleMessage>() {
+          @Override
+          public void format(SampleMessage sample, StringBuilder out) {
+            out.append(sample).append('\n');
+          }
+        }, System.out, AsyncOutputSink.DEFAULT_CAPACITY, outputPolicy);
 
-    // Wait up to 1 second for the subscription response
-    int waitAttempts = 0;
-    while (!agg.isSubscriptionAcknowledged()) {
-      // Waited > 5 second
-      if (waitAttempts > 50) {
-        System.err
-            .println("Aggregator never acknowledged the subscription request.");
-        agg.disconnect();
-        return;
+    final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    metrics.expose("SimpleFakeSolver");
+    final Counter samplesIn = metrics.counter("solver.samples.in");
+    final Counter samplesFiltered = metrics.counter("solver.samples.filtered");
+    final LatencyHistogram dispatchTime = metrics.histogram("solver.dispatch");
+    metrics.gauge("solver.output.queue", new Gauge() {
+      @Override
+      public long getValue() {
+        return output.getQueueDepth();
       }
-      // Got disconnected
-      if (!agg.isConnected()) {
-        System.err.println("Lost connection to the aggregator.");
-        return;
+    });
+    metrics.gauge("solver.output.dropped", new Gauge() {
+      @Override
+      public long getValue() {
+        return output.getDropped();
       }
-      try {
-        System.out.println("Waiting for subscription response (100ms)");
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
+    });
+
+    // Hand samples off to worker threads, sharded by device ID
+    ShardedSamplePipeline pipeline = null;
+    if (numWorkers > 0) {
+      SampleHandler[] printers = new SampleHandler[numWorkers];
+      for (int i = 0; i < numWorkers; ++i) {
+        printers[i] = new SampleHandler() {
+          @Override
+          public void handleSample(SampleMessage sample) {
+            output.print(sample);
+          }
+        };
+      }
+      pipeline = new ShardedSamplePipeline(printers);
+      pipeline.start();
+      for (int i = 0; i < numWorkers; ++i) {
+        final ShardedSamplePipeline p = pipeline;
+        final int worker = i;
+        metrics.gauge("solver.queue." + i, new Gauge() {
+          @Override
+          public long getValue() {
+            return p.getQueueDepth(worker);
+          }
+        });
       }
-      ++waitAttempts;
     }
 
     // Start printing samples.
-    while (agg.isConnected() && agg.isSubscriptionAcknowledged()) {
-      SampleMessage msg = agg.getNextSample();
+    while (source.isConnected()) {
+      SampleMessage msg = source.getNextSample();
       if (msg == null) {
         System.err.println("Got a null sample.  Probably got disconnected.");
         continue;
       }
-      System.out.println(msg);
+      samplesIn.increment();
+      if (filter != null && !filter.accept(msg)) {
+        samplesFiltered.increment();
+        continue;
+      }
+      if (capture != null) {
+        try {
+          capture.write(msg);
+        } catch (IOException ioe) {
+          System.err.println("Unable to capture samples: " + ioe);
+          source.disconnect();
+          break;
+        }
+      }
+      final long start = System.nanoTime();
+      if (pipeline != null) {
+        pipeline.dispatch(msg);
+      } else {
+        output.print(msg);
+      }
+      dispatchTime.record(System.nanoTime() - start);
+    }
+
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
+    output.close();
+    if (capture != null) {
+      try {
+        capture.close();
+        System.out.printf("Captured %,d samples to %s.\n",
+            capture.getRecords(), captureFile);
+      } catch (IOException ioe) {
+        System.err.println("Unable to finish capture file: " + ioe);
+      }
+    }
+  }
+
+  /**
+   * Connects to an aggregator and subscribes to samples from the given
+   * transmitters, or from all transmitters if none are given.
+   * 
+   * @param host
+   *          the aggregator host.
+   * @param port
+   *          the aggregator solver port.
+   * @param txers
+   *          transmitters to subscribe to.
+   * @return the subscribed source, or {@code null} if the first connection or
+   *         subscription failed.
+   */
+  private static ReconnectingSampleSource subscribe(String host, int port,
+      ArrayList<Transmitter> txers) {
+    SubscriptionRequestRule rule = SubscriptionRequestRule
+        .generateGenericRule();
+    rule.setUpdateInterval(0000l);
+    if (!txers.isEmpty()) {
+      rule.setTransmitters(txers);
+    }
+
+    // Reconnects and resubscribes on its own if the aggregator goes away
+    final ReconnectingSampleSource source = new ReconnectingSampleSource(host,
+        port, rule);
+    if (!source.connect()) {
+      return null;
     }
+    return source;
   }
 
 }
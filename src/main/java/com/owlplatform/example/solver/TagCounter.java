@@ -18,14 +18,21 @@
  */
 package com.owlplatform.example.solver;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import com.owlplatform.common.SampleMessage;
-import com.owlplatform.common.util.HashableByteArray;
 import com.owlplatform.common.util.NumericUtils;
-import com.owlplatform.solver.SolverAggregatorConnection;
+import com.owlplatform.example.capture.MappedSampleReplay;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.Gauge;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.DeviceId;
+import com.owlplatform.example.util.DeviceIdInterner;
+import com.owlplatform.example.util.LatencyHistogram;
 import com.owlplatform.solver.protocol.messages.Transmitter;
 import com.owlplatform.solver.rules.SubscriptionRequestRule;
 
@@ -39,6 +46,11 @@ import com.owlplatform.solver.rules.SubscriptionRequestRule;
  */
 public class TagCounter {
 
+  /**
+   * Default length of a reporting window.
+   */
+  public static final long DEFAULT_WINDOW_MILLIS = 35000;
+
   /**
    * <p>
    * Expects two arguments: aggregator host and aggregator solver port.
@@ -62,20 +74,74 @@ public class TagCounter {
    * only the transmitters with ID value "1234" (0x04D2), "0x0FFE" (4094), or
    * "99" (0x63).
    * </p>
+   * <p>
+   * Counts are reported every 35 seconds by default. The "-i" switch followed
+   * by a number of seconds changes the reporting window, for example
+   * {@code localhost 7008 -i 10}.
+   * </p>
+   * <p>
+   * Replacing the host and port with "-p" and the name of a file captured by
+   * {@code SimpleFakeSolver} replays the capture instead, at the original pace
+   * or at the speed multiplier given with "-s" (0 for as fast as possible).
+   * Reporting windows are always measured in real time.
+   * </p>
+   * <p>
+   * The "-f" switch followed by a file name loads a {@link SampleFilter} of
+   * allowed physical layers, transmitters and receivers, which is checked
+   * locally before any other work is done on a sample.
+   * </p>
+   * <p>
+   * Latency probes sent by {@code LoadGeneratingSensor -l} are counted like
+   * any other sample, and each report also includes their one-way latency,
+   * loss and reordering per receiver.
+   * </p>
+   * <p>
+   * The aggregator subscription asks for every sample. The "-m" switch
+   * followed by a number of milliseconds instead keeps only the latest sample
+   * from each transmitter/receiver pair and processes those once per interval,
+   * so counting, temperature decoding and rolling RSSI statistics scale with
+   * the number of pairs rather than the sample rate. Counts then reflect
+   * coalesced samples; the number merged away is exported as
+   * {@code tagcounter.samples.coalesced}.
+   * </p>
+   * <p>
+   * If the aggregator restarts or the connection drops, TagCounter reconnects
+   * and subscribes again without losing its counts, windows or rolling
+   * statistics.
+   * </p>
    * 
    * @param args
-   *          aggregator host, port, and a list of optional transmitter ID
-   *          values
+   *          aggregator host and port or a capture file to replay, and a list
+   *          of optional transmitter ID values
    */
   public static void main(String[] args) {
     if (args.length < 2) {
       System.err.println("Invalid number of arguments.");
-      System.err.println("Usage: <Aggregator Host> <Aggregator Port>");
+      System.err
+          .println("Usage: <Aggregator Host> <Aggregator Port> [-i Seconds] [-f Filter File] [-m Millis] [Transmitter IDs]");
+      System.err
+          .println("       -p <Capture File> [-s Speed] [-i Seconds] [-f Filter File] [-m Millis]");
       return;
     }
 
-    String host = args[0];
-    int port = Integer.parseInt(args[1]);
+    // Replay a capture file instead of connecting to an aggregator
+    File replayFile = null;
+    String host = null;
+    int port = 0;
+    if ("-p".equals(args[0])) {
+      replayFile = new File(args[1]);
+    } else {
+      host = args[0];
+      port = Integer.parseInt(args[1]);
+    }
+
+    long windowMillis = DEFAULT_WINDOW_MILLIS;
+    // Replay speed multiplier, 0 for as fast as possible
+    double speed = 1;
+    // Local sample filter file
+    File filterFile = null;
+    // Per-pair coalescing interval, 0 to process every sample
+    long coalesceMillis = 0;
 
     // Array of Transmitter filters
     ArrayList<Transmitter> txers = null;
@@ -85,6 +151,25 @@ public class TagCounter {
       for (int argc = 2; argc < args.length; ++argc) {
         String arg = args[argc];
         byte[] value = null;
+        // Reporting window length in seconds
+        if ("-i".equals(arg)) {
+          windowMillis = Long.parseLong(args[++argc]) * 1000;
+          continue;
+        }
+        if ("-s".equals(arg)) {
+          speed = Double.parseDouble(args[++argc]);
+          continue;
+        }
+        // Coalescing interval in milliseconds
+        if ("-m".equals(arg)) {
+          coalesceMillis = Long.parseLong(args[++argc]);
+          continue;
+        }
+        // Local filter file, next arg is the file name
+        if ("-f".equals(arg)) {
+          filterFile = new File(args[++argc]);
+          continue;
+        }
         // Flag to indicate hex string, next arg is actual value.
         if ("-x".equalsIgnoreCase(arg)) {
           value = NumericUtils.fromHexString(args[++argc]);
@@ -103,192 +188,312 @@ public class TagCounter {
 
     }
 
-    final SolverAggregatorConnection agg = new SolverAggregatorConnection();
-    agg.setHost(host);
-    agg.setPort(port);
+    SampleFilter filter = null;
+    if (filterFile != null) {
+      try {
+        filter = SampleFilter.load(filterFile);
+        System.out.println("Loaded " + filter + " from " + filterFile);
+      } catch (IOException ioe) {
+        System.err.println("Unable to load filter: " + ioe.getMessage());
+        return;
+      }
+    }
+
+    final SampleSource source;
+    if (replayFile != null) {
+      try {
+        source = new MappedSampleReplay(replayFile, speed);
+      } catch (IOException ioe) {
+        System.err.println("Unable to replay " + replayFile + ": " + ioe);
+        return;
+      }
+    } else {
+      ReconnectingSampleSource subscribed = subscribe(host, port, txers);
+      if (subscribed == null) {
+        return;
+      }
+      source = subscribed;
+    }
 
     Runtime.getRuntime().addShutdownHook(new Thread() {
 
       @Override
       public void run() {
-        agg.disconnect();
+        source.disconnect();
         System.out.println("Shutdown complete.");
       }
     });
 
-    SubscriptionRequestRule rule = SubscriptionRequestRule
-        .generateGenericRule();
-    rule.setUpdateInterval(0l);
-    if (txers != null) {
-      rule.setTransmitters(txers);
-    }
+    // Rolling rates and RSSI over 10 seconds, 1 minute and 5 minutes
+    final RollingSampleStats rolling = new RollingSampleStats();
+    final RollingSampleStats.Snapshot snapshot = new RollingSampleStats.Snapshot();
+
+    // Full 128-bit IDs, counted by dense ordinal
+    final DeviceIdInterner transmitterIds = new DeviceIdInterner();
+    final DeviceIdInterner receiverIds = new DeviceIdInterner();
+
+    final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    metrics.expose("TagCounter");
+    final Counter samplesIn = metrics.counter("tagcounter.samples.in");
+    final Counter samplesFiltered = metrics
+        .counter("tagcounter.samples.filtered");
+    final LatencyHistogram sampleTime = metrics.histogram("tagcounter.sample");
+    final LatencyHistogram reportTime = metrics.histogram("tagcounter.report");
+    // Sizes are read without synchronization, so they may lag slightly
+    metrics.gauge("tagcounter.transmitters", new Gauge() {
+      @Override
+      public long getValue() {
+        return transmitterIds.size();
+      }
+    });
+    metrics.gauge("tagcounter.receivers", new Gauge() {
+      @Override
+      public long getValue() {
+        return receiverIds.size();
+      }
+    });
 
-    agg.addRule(rule);
+    // End-to-end latency of probe samples, per receiver
+    final ProbeLatencyTracker probes = new ProbeLatencyTracker();
+
+    // Reports are built and printed on their own thread
+    final WindowedTagTally windows = new WindowedTagTally(windowMillis,
+        new WindowedTagTally.ReportListener() {
+          @Override
+          public void windowClosed(TagTally.Report report, long windowLength) {
+            long start = System.nanoTime();
+            printReport(report, transmitterIds, receiverIds);
+            printRollingStats(rolling, snapshot);
+            probes.printReport(receiverIds);
+            reportTime.record(System.nanoTime() - start);
+          }
+        });
+    windows.start();
+    final Counter samplesCoalesced = metrics
+        .counter("tagcounter.samples.coalesced");
 
-    if (!agg.connect(10000l)) {
-      System.err.println("Unable to connect to " + agg);
-      return;
-    }
+    // Tallies, decodes and records each sample, or each coalesced sample
+    final SampleCoalescer.Handler processor = new SampleCoalescer.Handler() {
+      private final PipsqueakPayloadDecoder.Reading reading = new PipsqueakPayloadDecoder.Reading();
 
-    // Wait up to 1 second for the subscription response
-    int waitAttempts = 0;
-    while (!agg.isSubscriptionAcknowledged()) {
-      // Waited > 5 second
-      if (waitAttempts > 50) {
-        System.err
-            .println("Aggregator never acknowledged the subscription request.");
-        agg.disconnect();
-        return;
-      }
-      // Got disconnected
-      if (!agg.isConnected()) {
-        System.err.println("Lost connection to the aggregator.");
-        return;
-      }
-      try {
-        System.out.println("Waiting for subscription response (100ms)");
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
+      @Override
+      public void coalesced(int id, int rec, SampleMessage msg, int merged) {
+        samplesCoalesced.add(merged);
+        TagTally tally = windows.active();
+        tally.recordSample(id, rec);
+
+        // Only Pipsqueak payloads carry temperature and state
+        float temperature = TagTally.NO_TEMPERATURE;
+        if (msg.getPhysicalLayer() == SampleMessage.PHYSICAL_LAYER_PIPSQUEAK
+            && PipsqueakPayloadDecoder.decode(msg.getSensedData(),
+                this.reading)) {
+          tally.recordReading(id, this.reading.getTemperature(),
+              this.reading.isOn());
+          temperature = this.reading.getTemperature();
+        }
+        rolling.record(id, rec, msg.getRssi(), temperature,
+            System.currentTimeMillis());
       }
-      ++waitAttempts;
+    };
+    // The coalescer being filled, swapped for a clean one on each drain so
+    // the ingest thread only waits for the swap. Drains run on a timer, so
+    // the last samples are processed even if the source goes quiet, and are
+    // serialized on the processor, which then only they call.
+    final SampleCoalescer[] coalescing = coalesceMillis > 0 ? new SampleCoalescer[] { new SampleCoalescer() }
+        : null;
+    TimerTask drain = null;
+    Timer drainTimer = null;
+    if (coalescing != null) {
+      drain = new TimerTask() {
+        private SampleCoalescer spare = new SampleCoalescer();
+
+        @Override
+        public void run() {
+          synchronized (processor) {
+            final SampleCoalescer full;
+            synchronized (coalescing) {
+              full = coalescing[0];
+              coalescing[0] = this.spare;
+            }
+            full.drainTo(processor);
+            this.spare = full;
+          }
+        }
+      };
+      drainTimer = new Timer("TagCounter coalescer", true);
+      drainTimer.scheduleAtFixedRate(drain, coalesceMillis, coalesceMillis);
     }
 
-    HashMap<Integer, Boolean> ids = new HashMap<Integer, Boolean>();
-    HashMap<Integer, Integer> recvs = new HashMap<Integer, Integer>();
-    HashMap<Integer, Float> temps = new HashMap<Integer, Float>();
-    HashMap<Integer, Boolean> onOffs = new HashMap<Integer, Boolean>();
-    long lastPrint = System.currentTimeMillis();
-
     // Start printing samples.
-    while (agg.isConnected() && agg.isSubscriptionAcknowledged()) {
-      SampleMessage msg = agg.getNextSample();
-      if (msg == null
-          || msg.getPhysicalLayer() != SampleMessage.PHYSICAL_LAYER_PIPSQUEAK) {
-
+    while (source.isConnected()) {
+      SampleMessage msg = source.getNextSample();
+      if (msg == null) {
         continue;
       }
-
-      int id = (msg.getDeviceId()[15] & 0xFF)
-          | ((msg.getDeviceId()[14] << 8) & 0xFF00)
-          | ((msg.getDeviceId()[13] << 16) & 0xFF0000)
-          | ((msg.getDeviceId()[12] << 24) & 0xFF000000);
-
-      int rec = (msg.getReceiverId()[15] & 0xFF)
-          | ((msg.getReceiverId()[14] << 8) & 0xFF00)
-          | ((msg.getReceiverId()[13] << 16) & 0xFF0000)
-          | ((msg.getReceiverId()[12] << 24) & 0xFF000000);
-      if (ids.get(id) == null) {
-        ids.put(id, Boolean.FALSE);
-      } else {
-        ids.put(id, Boolean.TRUE);
+      samplesIn.increment();
+      if (filter != null && !filter.accept(msg)) {
+        samplesFiltered.increment();
+        continue;
       }
-
-      if (recvs.get(rec) == null) {
-        recvs.put(rec, Integer.valueOf(1));
+      long start = System.nanoTime();
+
+      int id = transmitterIds.intern(msg.getDeviceId());
+      int rec = receiverIds.intern(msg.getReceiverId());
+      // Probes are checked before coalescing so that none look lost
+      probes.record(msg, rec);
+      if (coalescing == null) {
+        processor.coalesced(id, rec, msg, 0);
       } else {
-        recvs.put(rec, Integer.valueOf(recvs.get(rec).intValue() + 1));
-      }
-
-      if (msg.getSensedData() != null && msg.getSensedData().length >= 2) {
-        byte[] data = msg.getSensedData();
-        float temp = -274;
-        // 16-bit temperature
-        if ((data[0] & 0x02) == 0x02 && data.length >= 3) {
-          int startIdx = 1;
-          if ((data[0] & 0x01) == 0x01) {
-            startIdx = 2;
-          }
-          byte[] tBytes = new byte[2];
-          System.arraycopy(data, startIdx, tBytes, 0, 2);
-          temp = convTemp(tBytes);
-        } else if ((data[0] & 0x01) == 0x01) {
-          temp = ((data[1] >> 1) & 0x7F) - 40;
+        synchronized (coalescing) {
+          coalescing[0].offer(id, rec, msg);
         }
-        temps.put(id, Float.valueOf(temp));
-        onOffs.put(id, (msg.getSensedData()[1] & 0x01) == 1 ? Boolean.TRUE
-            : Boolean.FALSE);
       }
+      sampleTime.record(System.nanoTime() - start);
 
-      if (System.currentTimeMillis() - lastPrint > 35000) {
-        ArrayList<Integer> identNums = new ArrayList<Integer>(ids.size());
-        ArrayList<Integer> recvNums = new ArrayList<Integer>(ids.size());
-
-        for (Integer theId : ids.keySet()) {
-          if (ids.get(theId).booleanValue()) {
-            // System.out.println(id);
-
-            identNums.add(theId);
-
-          }
-          ids.put(theId, Boolean.FALSE);
-        }
+      // System.out.println(msg);
+    }
+    if (drainTimer != null) {
+      drainTimer.cancel();
+      // Waits for a drain already running, then processes what is left
+      drain.run();
+    }
+    // Report the samples since the last window, such as the end of a replay
+    try {
+      windows.finish();
+    } catch (InterruptedException ie) {
+      windows.stop();
+    }
+  }
 
-        for (Integer r : recvs.keySet()) {
-          if (recvs.get(r).intValue() > 1) {
-            // System.out.println(id);
+  /**
+   * Prints the receivers and transmitters of a window report to standard
+   * output, ordered by ID.
+   * 
+   * @param report
+   *          the report to print.
+   * @param transmitterIds
+   *          maps transmitter ordinals in the report to IDs.
+   * @param receiverIds
+   *          maps receiver ordinals in the report to IDs.
+   */
+  private static void printReport(final TagTally.Report report,
+      DeviceIdInterner transmitterIds, DeviceIdInterner receiverIds) {
+    System.out.println("########## RECEIVERS ##########");
 
-            recvNums.add(r);
+    DeviceId[] ids = new DeviceId[report.getNumReceivers()];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = receiverIds.get(report.getReceiverId(i));
+    }
+    int[] order = DeviceId.sortedOrder(ids);
+
+    int c = 0;
+    for (int i : order) {
+      System.out.printf("%4s: %,4d | ", ids[i], report.getReceiverCount(i));
+      c++;
+      if (c >= 5) {
+        System.out.println();
+        c = 0;
+      }
+    }
 
-          }
+    System.out.printf(
+        "\n======================================\nTotal: %d\n\n",
+        report.getNumReceivers());
 
-        }
+    System.out.println("########## TRANSMITTERS ##########");
 
-        Collections.sort(identNums);
-        Collections.sort(recvNums);
+    ids = new DeviceId[report.getNumTransmitters()];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = transmitterIds.get(report.getTransmitterId(i));
+    }
+    order = DeviceId.sortedOrder(ids);
+
+    c = 0;
+    for (int i : order) {
+      byte state = report.getState(i);
+      System.out.printf("%4s: %5.2fC %s| ", ids[i], report.getTemperature(i),
+          state == TagTally.Report.STATE_ON ? "#" : " ");
+      c++;
+      if (c >= 5) {
+        System.out.println();
+        c = 0;
+      }
+    }
 
-        System.out.println("########## RECEIVERS ##########");
+    System.out.printf(
+        "\n======================================\nTotal: %d\n\n",
+        report.getNumTransmitters());
+  }
 
-        int c = 0;
-        for (Integer i : recvNums) {
-          System.out.printf("%4d: %,4d | ", i, recvs.get(i));
-          c++;
-          if (c >= 5) {
-            System.out.println();
-            c = 0;
-          }
+  /**
+   * Prints a one-line summary of each rolling window to standard output.
+   * 
+   * @param rolling
+   *          the rolling statistics.
+   * @param snapshot
+   *          reused to read each window.
+   */
+  private static void printRollingStats(RollingSampleStats rolling,
+      RollingSampleStats.Snapshot snapshot) {
+    System.out.println("########## ROLLING ##########");
+    long now = System.currentTimeMillis();
+    for (int w = 0; w < rolling.getNumWindows(); ++w) {
+      rolling.snapshot(w, now, snapshot);
+      RollingSampleStats.Snapshot.Devices txers = snapshot.getTransmitters();
+      long samples = 0;
+      double rssiSum = 0;
+      float rssiMin = 0;
+      float rssiMax = 0;
+      for (int i = 0; i < txers.size(); ++i) {
+        samples += txers.getCount(i);
+        rssiSum += txers.getMeanRssi(i) * txers.getCount(i);
+        if (i == 0 || txers.getMinRssi(i) < rssiMin) {
+          rssiMin = txers.getMinRssi(i);
         }
-
-        recvs.clear();
-
-        System.out.printf(
-            "\n======================================\nTotal: %d\n\n",
-            recvNums.size());
-
-        System.out.println("########## TRANSMITTERS ##########");
-
-        c = 0;
-        for (Integer i : identNums) {
-          Float temp = temps.remove(i);
-          Boolean on = onOffs.remove(i);
-          System.out.printf("%4d: %5.2fC %s| ", i, temp == null ? -274 : temp,
-              on == null ? " " : on.booleanValue() ? "#" : " ");
-          c++;
-          if (c >= 5) {
-            System.out.println();
-            c = 0;
-          }
+        if (i == 0 || txers.getMaxRssi(i) > rssiMax) {
+          rssiMax = txers.getMaxRssi(i);
         }
-
-        System.out.printf(
-            "\n======================================\nTotal: %d\n\n",
-            identNums.size());
-        lastPrint = System.currentTimeMillis();
-
       }
-
-      // System.out.println(msg);
+      double seconds = snapshot.getSpanMillis() / 1000d;
+      System.out.printf(
+          "%4ds: %,6d TX %,5d RX %,10.1f samples/s RSSI %6.1f/%6.1f/%6.1f (mean/min/max)\n",
+          snapshot.getWindowMillis() / 1000, txers.size(),
+          snapshot.getReceivers().size(), seconds == 0 ? 0 : samples
+              / seconds, samples == 0 ? 0 : rssiSum / samples, rssiMin,
+          rssiMax);
     }
+    System.out.println();
   }
 
-  private static float convTemp(byte[] asBytes) {
-    if (asBytes == null || asBytes.length != 2) {
-      return -274;
+  /**
+   * Connects to an aggregator and subscribes to samples from the given
+   * transmitters, or from all transmitters if none are given.
+   * 
+   * @param host
+   *          the aggregator host.
+   * @param port
+   *          the aggregator solver port.
+   * @param txers
+   *          transmitters to subscribe to, or {@code null} for all.
+   * @return the subscribed source, or {@code null} if the first connection or
+   *         subscription failed.
+   */
+  private static ReconnectingSampleSource subscribe(String host, int port,
+      ArrayList<Transmitter> txers) {
+    SubscriptionRequestRule rule = SubscriptionRequestRule
+        .generateGenericRule();
+    rule.setUpdateInterval(0l);
+    if (txers != null && !txers.isEmpty()) {
+      rule.setTransmitters(txers);
+    }
+
+    // Reconnects and resubscribes on its own if the aggregator goes away
+    final ReconnectingSampleSource source = new ReconnectingSampleSource(host,
+        port, rule);
+    if (!source.connect()) {
+      return null;
     }
-    int wholevalue = (asBytes[0] * 16 + ((asBytes[1] >> 4)&0x0F)) - 40;
-    int sixteenths = asBytes[1] & 0x0f;
-    return wholevalue+ (sixteenths / 16f);
+    return source;
   }
 
 }
@@ -0,0 +1,357 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Counts samples per transmitter and per receiver for {@link TagCounter}, and
+ * remembers the most recent temperature and on/off state of each transmitter.
+ * </p>
+ *
+ * <p>
+ * All state lives in two {@link TallyTable} instances (one for transmitters
+ * and one for receivers), so recording a sample for an already-known
+ * transmitter and receiver performs no heap allocation. Reports are copied
+ * into a reusable {@link Report} and sorted as primitive arrays. This class is
+ * not thread-safe.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class TagTally {
+
+  /**
+   * Temperature value used when no temperature is known.
+   */
+  public static final float NO_TEMPERATURE = PipsqueakPayloadDecoder.NO_TEMPERATURE;
+
+  /**
+   * Flag set when a transmitter has a temperature/state reading.
+   */
+  static final byte FLAG_READING = 0x01;
+
+  /**
+   * Flag set when the transmitter's binary state is "on".
+   */
+  static final byte FLAG_ON = 0x02;
+
+  /**
+   * Per-transmitter counts, temperatures and state flags.
+   */
+  private final TallyTable transmitters;
+
+  /**
+   * Per-receiver counts.
+   */
+  private final TallyTable receivers;
+
+  /**
+   * Creates a new tally with default table sizes.
+   */
+  public TagTally() {
+    this(TallyTable.DEFAULT_CAPACITY, TallyTable.DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new tally sized for the expected number of devices.
+   *
+   * @param expectedTransmitters
+   *          number of transmitters expected.
+   * @param expectedReceivers
+   *          number of receivers expected.
+   */
+  public TagTally(final int expectedTransmitters, final int expectedReceivers) {
+    this.transmitters = new TallyTable(expectedTransmitters);
+    this.receivers = new TallyTable(expectedReceivers);
+  }
+
+  /**
+   * Counts a single sample from a transmitter heard by a receiver.
+   *
+   * @param transmitter
+   *          the transmitter ID.
+   * @param receiver
+   *          the receiver ID.
+   */
+  public void recordSample(final int transmitter, final int receiver) {
+    this.transmitters.increment(transmitter);
+    this.receivers.increment(receiver);
+  }
+
+  /**
+   * Records the latest temperature and binary state of a transmitter.
+   *
+   * @param transmitter
+   *          the transmitter ID.
+   * @param temperature
+   *          the temperature in degrees Celsius, or {@link #NO_TEMPERATURE}.
+   * @param on
+   *          the binary state of the transmitter.
+   */
+  public void recordReading(final int transmitter, final float temperature,
+      final boolean on) {
+    final int slot = this.transmitters.slotFor(transmitter);
+    this.transmitters.setValueAt(slot, temperature);
+    this.transmitters.setFlagsAt(slot, on ? FLAG_READING | FLAG_ON
+        : FLAG_READING);
+  }
+
+  /**
+   * Adds the counts of {@code window} to this tally and takes any readings it
+   * holds, as if its samples had been recorded here directly. {@code window}
+   * is not modified.
+   *
+   * @param window
+   *          a tally holding the samples of one reporting window.
+   */
+  public void mergeFrom(final TagTally window) {
+    final TallyTable rx = window.receivers;
+    for (int slot = 0; slot < rx.capacity(); ++slot) {
+      if (rx.isUsed(slot)) {
+        final int mine = this.receivers.slotFor(rx.keyAt(slot));
+        this.receivers.setCountAt(mine,
+            this.receivers.countAt(mine) + rx.countAt(slot));
+      }
+    }
+
+    final TallyTable tx = window.transmitters;
+    for (int slot = 0; slot < tx.capacity(); ++slot) {
+      if (!tx.isUsed(slot)) {
+        continue;
+      }
+      final int mine = this.transmitters.slotFor(tx.keyAt(slot));
+      this.transmitters.setCountAt(mine,
+          this.transmitters.countAt(mine) + tx.countAt(slot));
+      if ((tx.flagsAt(slot) & FLAG_READING) == FLAG_READING) {
+        this.transmitters.setValueAt(mine, tx.valueAt(slot));
+        this.transmitters.setFlagsAt(mine, tx.flagsAt(slot));
+      }
+    }
+  }
+
+  /**
+   * Forgets every transmitter and receiver without releasing any storage.
+   */
+  public void clear() {
+    this.transmitters.clear();
+    this.receivers.clear();
+  }
+
+  /**
+   * <p>
+   * Copies the current window into {@code report} and starts a new window.
+   * </p>
+   * <p>
+   * Receivers that produced more than one sample are reported and all receiver
+   * counts are then cleared. Transmitters that have been seen at least twice
+   * are reported along with their latest reading; every known transmitter is
+   * then treated as seen once, so a single sample in the next window is enough
+   * to report it again.
+   * </p>
+   *
+   * @param report
+   *          the report to fill. Its previous contents are discarded.
+   */
+  public void drainTo(final Report report) {
+    report.reset(this.receivers.size(), this.transmitters.size());
+
+    for (int slot = 0; slot < this.receivers.capacity(); ++slot) {
+      if (this.receivers.isUsed(slot) && this.receivers.countAt(slot) > 1) {
+        report.receiverIds[report.numReceivers++] = this.receivers.keyAt(slot);
+      }
+    }
+
+    for (int slot = 0; slot < this.transmitters.capacity(); ++slot) {
+      if (!this.transmitters.isUsed(slot)) {
+        continue;
+      }
+      if (this.transmitters.countAt(slot) > 1) {
+        report.transmitterIds[report.numTransmitters++] = this.transmitters
+            .keyAt(slot);
+      }
+    }
+
+    Arrays.sort(report.receiverIds, 0, report.numReceivers);
+    Arrays.sort(report.transmitterIds, 0, report.numTransmitters);
+
+    for (int i = 0; i < report.numReceivers; ++i) {
+      report.receiverCounts[i] = this.receivers.countAt(this.receivers
+          .find(report.receiverIds[i]));
+    }
+
+    for (int i = 0; i < report.numTransmitters; ++i) {
+      final int slot = this.transmitters.find(report.transmitterIds[i]);
+      final byte flags = this.transmitters.flagsAt(slot);
+      if ((flags & FLAG_READING) == FLAG_READING) {
+        report.temperatures[i] = this.transmitters.valueAt(slot);
+        report.states[i] = (flags & FLAG_ON) == FLAG_ON ? Report.STATE_ON
+            : Report.STATE_OFF;
+      } else {
+        report.temperatures[i] = NO_TEMPERATURE;
+        report.states[i] = Report.STATE_UNKNOWN;
+      }
+      // Reported readings are consumed
+      this.transmitters.setFlagsAt(slot, (byte) 0);
+    }
+
+    this.receivers.clear();
+    for (int slot = 0; slot < this.transmitters.capacity(); ++slot) {
+      if (this.transmitters.isUsed(slot)) {
+        this.transmitters.setCountAt(slot, 1);
+      }
+    }
+  }
+
+  /**
+   * A sorted, reusable snapshot of one reporting window. The arrays only grow,
+   * so filling the same report repeatedly does not allocate once it has
+   * reached the size of the device population.
+   *
+   * @author Robert Moore
+   */
+  public static class Report {
+
+    /**
+     * No reading was received for the transmitter.
+     */
+    public static final byte STATE_UNKNOWN = 0;
+
+    /**
+     * The transmitter reported an "off" binary state.
+     */
+    public static final byte STATE_OFF = 1;
+
+    /**
+     * The transmitter reported an "on" binary state.
+     */
+    public static final byte STATE_ON = 2;
+
+    /**
+     * Reported receiver IDs in ascending order.
+     */
+    int[] receiverIds = new int[0];
+
+    /**
+     * Sample counts matching {@link #receiverIds}.
+     */
+    int[] receiverCounts = new int[0];
+
+    /**
+     * Number of valid entries in the receiver arrays.
+     */
+    int numReceivers = 0;
+
+    /**
+     * Reported transmitter IDs in ascending order.
+     */
+    int[] transmitterIds = new int[0];
+
+    /**
+     * Temperatures matching {@link #transmitterIds}.
+     */
+    float[] temperatures = new float[0];
+
+    /**
+     * Binary states matching {@link #transmitterIds}.
+     */
+    byte[] states = new byte[0];
+
+    /**
+     * Number of valid entries in the transmitter arrays.
+     */
+    int numTransmitters = 0;
+
+    void reset(final int maxReceivers, final int maxTransmitters) {
+      if (this.receiverIds.length < maxReceivers) {
+        this.receiverIds = new int[maxReceivers];
+        this.receiverCounts = new int[maxReceivers];
+      }
+      if (this.transmitterIds.length < maxTransmitters) {
+        this.transmitterIds = new int[maxTransmitters];
+        this.temperatures = new float[maxTransmitters];
+        this.states = new byte[maxTransmitters];
+      }
+      this.numReceivers = 0;
+      this.numTransmitters = 0;
+    }
+
+    /**
+     * @return the number of receivers in the report.
+     */
+    public int getNumReceivers() {
+      return this.numReceivers;
+    }
+
+    /**
+     * @param index
+     *          the position in the report.
+     * @return the receiver ID at {@code index}.
+     */
+    public int getReceiverId(final int index) {
+      return this.receiverIds[index];
+    }
+
+    /**
+     * @param index
+     *          the position in the report.
+     * @return the sample count of the receiver at {@code index}.
+     */
+    public int getReceiverCount(final int index) {
+      return this.receiverCounts[index];
+    }
+
+    /**
+     * @return the number of transmitters in the report.
+     */
+    public int getNumTransmitters() {
+      return this.numTransmitters;
+    }
+
+    /**
+     * @param index
+     *          the position in the report.
+     * @return the transmitter ID at {@code index}.
+     */
+    public int getTransmitterId(final int index) {
+      return this.transmitterIds[index];
+    }
+
+    /**
+     * @param index
+     *          the position in the report.
+     * @return the temperature of the transmitter at {@code index}, or
+     *         {@link TagTally#NO_TEMPERATURE}.
+     */
+    public float getTemperature(final int index) {
+      return this.temperatures[index];
+    }
+
+    /**
+     * @param index
+     *          the position in the report.
+     * @return one of {@link #STATE_UNKNOWN}, {@link #STATE_OFF} or
+     *         {@link #STATE_ON}.
+     */
+    public byte getState(final int index) {
+      return this.states[index];
+    }
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An open-addressing hash table keyed by primitive {@code int} values. Each
+ * key has a sample count, a {@code float} value and a byte of flags, all
+ * stored in parallel primitive arrays so that updating an existing key never
+ * allocates or boxes anything.
+ * </p>
+ *
+ * <p>
+ * Collisions are resolved by linear probing. The table doubles in size when it
+ * becomes more than half full, which is the only time it allocates after
+ * construction. This class is not thread-safe.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class TallyTable {
+
+  /**
+   * Default number of slots in a new table.
+   */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * Keys for each slot.
+   */
+  private int[] keys;
+
+  /**
+   * Number of samples counted for each slot.
+   */
+  private int[] counts;
+
+  /**
+   * Value associated with each slot.
+   */
+  private float[] values;
+
+  /**
+   * Flags associated with each slot.
+   */
+  private byte[] flags;
+
+  /**
+   * Whether each slot holds a key.
+   */
+  private boolean[] used;
+
+  /**
+   * Number of occupied slots.
+   */
+  private int size = 0;
+
+  /**
+   * Creates a new table with the default capacity.
+   */
+  public TallyTable() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new table that can hold at least {@code expectedKeys} keys
+   * before resizing.
+   *
+   * @param expectedKeys
+   *          the number of keys expected to be stored.
+   */
+  public TallyTable(final int expectedKeys) {
+    int capacity = 16;
+    while (capacity < expectedKeys * 2) {
+      capacity <<= 1;
+    }
+    this.allocate(capacity);
+  }
+
+  private void allocate(final int capacity) {
+    this.keys = new int[capacity];
+    this.counts = new int[capacity];
+    this.values = new float[capacity];
+    this.flags = new byte[capacity];
+    this.used = new boolean[capacity];
+  }
+
+  /**
+   * Spreads the bits of a key so that sequential IDs don't cluster.
+   */
+  private static int mix(final int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the slot holding {@code key}, or -1 if it is not in the table.
+   *
+   * @param key
+   *          the key to find.
+   * @return the slot index, or -1.
+   */
+  public int find(final int key) {
+    final int mask = this.keys.length - 1;
+    int slot = mix(key) & mask;
+    while (this.used[slot]) {
+      if (this.keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the slot holding {@code key}, inserting it with a zero count if it
+   * is not already present.
+   *
+   * @param key
+   *          the key to find or insert.
+   * @return the slot index.
+   */
+  public int slotFor(final int key) {
+    final int mask = this.keys.length - 1;
+    int slot = mix(key) & mask;
+    while (this.used[slot]) {
+      if (this.keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if ((this.size + 1) * 2 > this.keys.length) {
+      this.grow();
+      return this.slotFor(key);
+    }
+    this.used[slot] = true;
+    this.keys[slot] = key;
+    this.counts[slot] = 0;
+    this.values[slot] = 0f;
+    this.flags[slot] = 0;
+    ++this.size;
+    return slot;
+  }
+
+  /**
+   * Increments the count for {@code key}, inserting it if necessary.
+   *
+   * @param key
+   *          the key to count.
+   * @return the slot index of the key.
+   */
+  public int increment(final int key) {
+    final int slot = this.slotFor(key);
+    ++this.counts[slot];
+    return slot;
+  }
+
+  private void grow() {
+    final int[] oldKeys = this.keys;
+    final int[] oldCounts = this.counts;
+    final float[] oldValues = this.values;
+    final byte[] oldFlags = this.flags;
+    final boolean[] oldUsed = this.used;
+
+    this.allocate(oldKeys.length * 2);
+    final int mask = this.keys.length - 1;
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (!oldUsed[i]) {
+        continue;
+      }
+      int slot = mix(oldKeys[i]) & mask;
+      while (this.used[slot]) {
+        slot = (slot + 1) & mask;
+      }
+      this.used[slot] = true;
+      this.keys[slot] = oldKeys[i];
+      this.counts[slot] = oldCounts[i];
+      this.values[slot] = oldValues[i];
+      this.flags[slot] = oldFlags[i];
+    }
+  }
+
+  /**
+   * Removes every key from the table without releasing any storage.
+   */
+  public void clear() {
+    Arrays.fill(this.used, false);
+    this.size = 0;
+  }
+
+  /**
+   * Number of keys in the table.
+   *
+   * @return the number of keys.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Number of slots in the table, for iterating with {@link #isUsed(int)}.
+   *
+   * @return the number of slots.
+   */
+  public int capacity() {
+    return this.keys.length;
+  }
+
+  /**
+   * Whether {@code slot} holds a key.
+   *
+   * @param slot
+   *          the slot index.
+   * @return {@code true} if the slot is occupied.
+   */
+  public boolean isUsed(final int slot) {
+    return this.used[slot];
+  }
+
+  /**
+   * @param slot
+   *          the slot index.
+   * @return the key stored in the slot.
+   */
+  public int keyAt(final int slot) {
+    return this.keys[slot];
+  }
+
+  /**
+   * @param slot
+   *          the slot index.
+   * @return the count stored in the slot.
+   */
+  public int countAt(final int slot) {
+    return this.counts[slot];
+  }
+
+  /**
+   * @param slot
+   *          the slot index.
+   * @param count
+   *          the new count for the slot.
+   */
+  public void setCountAt(final int slot, final int count) {
+    this.counts[slot] = count;
+  }
+
+  /**
+   * @param slot
+   *          the slot index.
+   * @return the value stored in the slot.
+   */
+  public float valueAt(final int slot) {
+    return this.values[slot];
+  }
+
+  /**
+   * @param slot
+   *          the slot index.
+   * @param value
+   *          the new value for the slot.
+   */
+  public void setValueAt(final int slot, final float value) {
+    this.values[slot] = value;
+  }
+
+  /**
+   * @param slot
+   *          the slot index.
+   * @return the flags stored in the slot.
+   */
+  public byte flagsAt(final int slot) {
+    return this.flags[slot];
+  }
+
+  /**
+   * @param slot
+   *          the slot index.
+   * @param flags
+   *          the new flags for the slot.
+   */
+  public void setFlagsAt(final int slot, final byte flags) {
+    this.flags[slot] = flags;
+  }
+}
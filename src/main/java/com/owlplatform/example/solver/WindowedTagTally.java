@@ -0,0 +1,259 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Double-buffered {@link TagTally} that builds reports on its own thread, so
+ * the thread reading samples never waits for a report to be sorted or
+ * printed.
+ * </p>
+ *
+ * <p>
+ * The ingest thread records every sample into the tally returned by
+ * {@link #active()}. At the end of each window the reporter thread posts a
+ * clean tally; the next call to {@code active()} swaps it in and hands the
+ * filled one back through a single-slot queue. That swap is the only
+ * coordination between the two threads and never blocks the ingest thread.
+ * The reporter merges each completed window into a long-lived tally, so
+ * transmitters seen in earlier windows are reported exactly as
+ * {@link TagTally#drainTo(TagTally.Report)} would report them.
+ * </p>
+ *
+ * <p>
+ * If no samples arrive, no swap takes place and no report is produced until
+ * the next sample. When the input ends, {@link #finish()} reports the
+ * partial last window, which {@link #stop()} discards.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class WindowedTagTally {
+
+  /**
+   * Receives each completed report on the reporter thread.
+   *
+   * @author Robert Moore
+   */
+  public static interface ReportListener {
+    /**
+     * Called once per window. The report is reused for the next window, so it
+     * must not be retained after this method returns.
+     *
+     * @param report
+     *          the sorted report for the window.
+     * @param windowMillis
+     *          the actual length of the window in milliseconds.
+     */
+    void windowClosed(TagTally.Report report, long windowMillis);
+  }
+
+  /**
+   * Tally currently being filled. Only accessed by the ingest thread.
+   */
+  private TagTally active = new TagTally();
+
+  /**
+   * Clean tally posted by the reporter, waiting to be swapped in.
+   */
+  private volatile TagTally swapRequest = null;
+
+  /**
+   * Filled tallies handed back by the ingest thread.
+   */
+  private final BlockingQueue<TagTally> completed = new ArrayBlockingQueue<TagTally>(
+      1);
+
+  /**
+   * All windows merged so far. Only accessed by the reporter thread.
+   */
+  private final TagTally accumulated = new TagTally();
+
+  /**
+   * Reused report. Only accessed by the reporter thread.
+   */
+  private final TagTally.Report report = new TagTally.Report();
+
+  /**
+   * Length of each reporting window.
+   */
+  private final long windowMillis;
+
+  /**
+   * Receives reports.
+   */
+  private final ReportListener listener;
+
+  /**
+   * Start of the window being filled. Written by the reporter thread.
+   */
+  private volatile long windowStart = System.currentTimeMillis();
+
+  /**
+   * Builds and delivers reports.
+   */
+  private Thread reporter = null;
+
+  /**
+   * Set when {@link #stop()} is called.
+   */
+  private volatile boolean stopped = false;
+
+  /**
+   * Creates a new windowed tally.
+   *
+   * @param windowMillis
+   *          length of each reporting window in milliseconds.
+   * @param listener
+   *          receives the report at the end of each window.
+   */
+  public WindowedTagTally(final long windowMillis,
+      final ReportListener listener) {
+    if (windowMillis < 1) {
+      throw new IllegalArgumentException("Window length must be positive.");
+    }
+    this.windowMillis = windowMillis;
+    this.listener = listener;
+  }
+
+  /**
+   * Returns the tally the current sample should be recorded into. Must only
+   * be called from the single ingest thread, once per sample, and the result
+   * must not be kept beyond that sample.
+   *
+   * @return the active tally.
+   */
+  public TagTally active() {
+    final TagTally next = this.swapRequest;
+    if (next != null) {
+      this.swapRequest = null;
+      // Never fails: the reporter posts one request per completed window
+      this.completed.offer(this.active);
+      this.active = next;
+    }
+    return this.active;
+  }
+
+  /**
+   * Starts the reporter thread.
+   */
+  public synchronized void start() {
+    if (this.reporter != null) {
+      return;
+    }
+    this.reporter = new Thread("TagTally reporter") {
+      @Override
+      public void run() {
+        WindowedTagTally.this.reportLoop();
+      }
+    };
+    this.reporter.setDaemon(true);
+    this.reporter.start();
+  }
+
+  /**
+   * Stops the reporter thread. Samples in the current window are not
+   * reported.
+   */
+  public synchronized void stop() {
+    this.stopped = true;
+    if (this.reporter != null) {
+      this.reporter.interrupt();
+      this.reporter = null;
+    }
+  }
+
+  /**
+   * Stops the reporter thread, then reports everything recorded since the
+   * last report as a final, shorter window on the calling thread. Must be
+   * called from the ingest thread, after its last sample.
+   *
+   * @throws InterruptedException
+   *           if interrupted while waiting for a report in progress.
+   */
+  public void finish() throws InterruptedException {
+    final Thread running;
+    synchronized (this) {
+      this.stopped = true;
+      running = this.reporter;
+      this.reporter = null;
+    }
+    if (running != null) {
+      running.interrupt();
+      running.join();
+    }
+    // The reporter is gone, so its state now belongs to this thread
+    final TagTally filled = this.completed.poll();
+    if (filled != null) {
+      this.accumulated.mergeFrom(filled);
+    }
+    this.accumulated.mergeFrom(this.active);
+    this.active.clear();
+    this.accumulated.drainTo(this.report);
+    this.listener.windowClosed(this.report, System.currentTimeMillis()
+        - this.windowStart);
+  }
+
+  private void reportLoop() {
+    TagTally spare = new TagTally();
+    long windowStart = System.currentTimeMillis();
+    this.windowStart = windowStart;
+    long nextDeadline = windowStart + this.windowMillis;
+    try {
+      while (!this.stopped) {
+        final long sleep = nextDeadline - System.currentTimeMillis();
+        if (sleep > 0) {
+          Thread.sleep(sleep);
+        }
+
+        this.swapRequest = spare;
+        TagTally filled = null;
+        while (filled == null && !this.stopped) {
+          filled = this.completed.poll(this.windowMillis,
+              TimeUnit.MILLISECONDS);
+        }
+        if (filled == null) {
+          return;
+        }
+
+        final long windowEnd = System.currentTimeMillis();
+        this.accumulated.mergeFrom(filled);
+        filled.clear();
+        spare = filled;
+
+        this.accumulated.drainTo(this.report);
+        this.listener.windowClosed(this.report, windowEnd - windowStart);
+
+        windowStart = windowEnd;
+        this.windowStart = windowStart;
+        nextDeadline += this.windowMillis;
+        if (nextDeadline <= windowEnd) {
+          // Idle or slow window; restart the schedule from now
+          nextDeadline = windowEnd + this.windowMillis;
+        }
+      }
+    } catch (InterruptedException ie) {
+      // Stopped
+    }
+  }
+}
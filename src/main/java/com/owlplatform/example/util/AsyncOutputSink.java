@@ -0,0 +1,278 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Prints items to a stream from a dedicated writer thread, so the threads
+ * producing the items never wait on console I/O or on the stream's lock.
+ * </p>
+ *
+ * <p>
+ * Producers call {@link #print(Object)}, which only queues the item. The
+ * writer thread formats queued items with a {@link Formatter} into one
+ * reusable buffer and writes the buffer out once it holds
+ * {@value #FLUSH_CHARS} characters or the queue is empty, so the stream is
+ * written in large chunks instead of once per line. When the queue is full the
+ * configured {@link OverflowPolicy} decides whether the producer waits or an
+ * item is dropped; dropped items are reported in the output. An item the
+ * formatter throws on is skipped and reported to standard error, so one bad
+ * item never stops the writer.
+ * </p>
+ *
+ * @author Robert Moore
+ * @param <T>
+ *          the type of item printed.
+ */
+public class AsyncOutputSink<T> {
+
+  /**
+   * Formats items into text on the writer thread.
+   *
+   * @author Robert Moore
+   * @param <T>
+   *          the type of item formatted.
+   */
+  public static interface Formatter<T> {
+    /**
+     * Appends the text for one item as zero or more complete lines, each
+     * ending with {@code '\n'}. Only ever called from the writer thread, so
+     * implementations may keep reusable state without synchronization.
+     *
+     * @param item
+     *          the item to format.
+     * @param out
+     *          the buffer to append to.
+     */
+    void format(T item, StringBuilder out);
+  }
+
+  /**
+   * Default number of items that can be queued.
+   */
+  public static final int DEFAULT_CAPACITY = 16384;
+
+  /**
+   * Buffered output is written once it reaches this many characters.
+   */
+  public static final int FLUSH_CHARS = 64 * 1024;
+
+  /**
+   * Largest number of items taken from the queue at once.
+   */
+  private static final int MAX_BATCH = 1024;
+
+  /**
+   * Queued items.
+   */
+  private final BlockingQueue<T> queue;
+
+  /**
+   * What to do when the queue is full.
+   */
+  private final OverflowPolicy policy;
+
+  /**
+   * Formats items.
+   */
+  private final Formatter<T> formatter;
+
+  /**
+   * Where the text is written.
+   */
+  private final PrintStream out;
+
+  /**
+   * Items dropped since the sink was created.
+   */
+  private final AtomicLong dropped = new AtomicLong(0);
+
+  /**
+   * Items the formatter failed on since the sink was created.
+   */
+  private final AtomicLong failed = new AtomicLong(0);
+
+  /**
+   * Writes the output.
+   */
+  private final Thread writer;
+
+  /**
+   * Set by {@link #close()}.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  /**
+   * Creates a sink that prints to {@code System.out} and drops the oldest
+   * queued item when full.
+   *
+   * @param formatter
+   *          formats each item.
+   */
+  public AsyncOutputSink(final Formatter<T> formatter) {
+    this(formatter, System.out, DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+  }
+
+  /**
+   * Creates a new sink. The writer thread starts immediately.
+   *
+   * @param formatter
+   *          formats each item.
+   * @param out
+   *          the stream to write to.
+   * @param capacity
+   *          the number of items that can be queued.
+   * @param policy
+   *          what to do when the queue is full.
+   */
+  public AsyncOutputSink(final Formatter<T> formatter, final PrintStream out,
+      final int capacity, final OverflowPolicy policy) {
+    this.formatter = formatter;
+    this.out = out;
+    this.queue = new ArrayBlockingQueue<T>(capacity);
+    this.policy = policy;
+    this.writer = new Thread("Output writer") {
+      @Override
+      public void run() {
+        AsyncOutputSink.this.writeLoop();
+      }
+    };
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Queues an item for printing, applying the overflow policy if the queue is
+   * full.
+   *
+   * @param item
+   *          the item to print.
+   * @return {@code true} if the item was queued, {@code false} if it was
+   *         dropped or the sink is closed.
+   */
+  public boolean print(final T item) {
+    if (this.closed.get()) {
+      return false;
+    }
+    return this.policy.offer(this.queue, item, this.dropped, this.closed);
+  }
+
+  /**
+   * @return the number of items dropped because the queue was full.
+   */
+  public long getDropped() {
+    return this.dropped.get();
+  }
+
+  /**
+   * @return the number of items skipped because the formatter threw an
+   *         exception.
+   */
+  public long getFailed() {
+    return this.failed.get();
+  }
+
+  /**
+   * @return the number of items waiting to be printed.
+   */
+  public int getQueueDepth() {
+    return this.queue.size();
+  }
+
+  /**
+   * Prints everything still queued and stops the writer thread. Items printed
+   * after this call are discarded.
+   */
+  public void close() {
+    this.closed.set(true);
+    try {
+      this.writer.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    final List<T> batch = new ArrayList<T>(MAX_BATCH);
+    final StringBuilder buffer = new StringBuilder(FLUSH_CHARS * 2);
+    long reportedDrops = 0;
+    while (true) {
+      T first;
+      try {
+        first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        first = null;
+      }
+      if (first == null) {
+        if (this.closed.get() && this.queue.isEmpty()) {
+          break;
+        }
+        continue;
+      }
+
+      batch.add(first);
+      this.queue.drainTo(batch, MAX_BATCH - 1);
+      for (T item : batch) {
+        final int mark = buffer.length();
+        try {
+          this.formatter.format(item, buffer);
+        } catch (RuntimeException re) {
+          // Drop the partial text and keep the writer alive
+          buffer.setLength(mark);
+          this.failed.incrementAndGet();
+          System.err.println("Unable to format output: " + re);
+          continue;
+        }
+        if (buffer.length() >= FLUSH_CHARS) {
+          this.write(buffer);
+        }
+      }
+      batch.clear();
+
+      final long drops = this.dropped.get();
+      if (drops != reportedDrops) {
+        buffer.append("[").append(drops - reportedDrops)
+            .append(" items dropped]\n");
+        reportedDrops = drops;
+      }
+      if (this.queue.isEmpty()) {
+        this.write(buffer);
+      }
+    }
+    this.write(buffer);
+  }
+
+  private void write(final StringBuilder buffer) {
+    if (buffer.length() == 0) {
+      return;
+    }
+    this.out.print(buffer);
+    this.out.flush();
+    buffer.setLength(0);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * Jittered exponential backoff for reconnect attempts. Each call to
+ * {@link #nextDelay()} doubles the delay ceiling, up to a maximum, and
+ * returns a random delay between half the ceiling and the ceiling, so that
+ * many clients that lost the same server do not all retry at the same moment.
+ * Call {@link #reset()} once an attempt succeeds.
+ * </p>
+ *
+ * <p>
+ * Not thread-safe.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class Backoff {
+
+  /**
+   * Default delay ceiling of the first attempt, in milliseconds.
+   */
+  public static final long DEFAULT_INITIAL_MILLIS = 250;
+
+  /**
+   * Default largest delay ceiling, in milliseconds.
+   */
+  public static final long DEFAULT_MAX_MILLIS = 30000;
+
+  /**
+   * Delay ceiling of the first attempt.
+   */
+  private final long initialMillis;
+
+  /**
+   * Largest delay ceiling.
+   */
+  private final long maxMillis;
+
+  /**
+   * Picks delays within the ceiling.
+   */
+  private final Random random = new Random();
+
+  /**
+   * Delay ceiling of the next attempt.
+   */
+  private long ceiling;
+
+  /**
+   * Attempts since the last reset.
+   */
+  private int attempts = 0;
+
+  /**
+   * Creates a backoff with the default initial and maximum delays.
+   */
+  public Backoff() {
+    this(DEFAULT_INITIAL_MILLIS, DEFAULT_MAX_MILLIS);
+  }
+
+  /**
+   * Creates a new backoff.
+   *
+   * @param initialMillis
+   *          the delay ceiling of the first attempt, in milliseconds.
+   * @param maxMillis
+   *          the largest delay ceiling, in milliseconds.
+   */
+  public Backoff(final long initialMillis, final long maxMillis) {
+    if (initialMillis < 1 || maxMillis < initialMillis) {
+      throw new IllegalArgumentException("Invalid backoff delays.");
+    }
+    this.initialMillis = initialMillis;
+    this.maxMillis = maxMillis;
+    this.ceiling = initialMillis;
+  }
+
+  /**
+   * Returns the delay before the next attempt and raises the ceiling for the
+   * one after.
+   *
+   * @return the delay in milliseconds.
+   */
+  public long nextDelay() {
+    final long half = this.ceiling / 2;
+    final long delay = half
+        + (long) (this.random.nextDouble() * (this.ceiling - half + 1));
+    this.ceiling = Math.min(this.maxMillis, this.ceiling * 2);
+    ++this.attempts;
+    return delay;
+  }
+
+  /**
+   * @return the number of delays returned since the last reset.
+   */
+  public int getAttempts() {
+    return this.attempts;
+  }
+
+  /**
+   * Returns to the initial delay after a successful attempt.
+   */
+  public void reset() {
+    this.ceiling = this.initialMillis;
+    this.attempts = 0;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Formats timestamps the same way as {@link Date#toString()}, but reuses the
+ * formatted text for every timestamp within the same second. Bursts of
+ * updates usually share a second, so most calls only copy a cached string.
+ * Not thread-safe; meant to be owned by an output writer thread.
+ *
+ * @author Robert Moore
+ */
+public class CachedDateFormat {
+
+  /**
+   * Same pattern as {@link Date#toString()}.
+   */
+  private final SimpleDateFormat format = new SimpleDateFormat(
+      "EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+  /**
+   * Reused date.
+   */
+  private final Date date = new Date();
+
+  /**
+   * Second of the cached text, or {@code Long.MIN_VALUE} if none.
+   */
+  private long cachedSecond = Long.MIN_VALUE;
+
+  /**
+   * Formatted text of {@link #cachedSecond}.
+   */
+  private String cachedText = null;
+
+  /**
+   * Appends a formatted timestamp.
+   *
+   * @param timestamp
+   *          milliseconds since the epoch.
+   * @param out
+   *          the buffer to append to.
+   * @return {@code out}.
+   */
+  public StringBuilder appendTo(final long timestamp, final StringBuilder out) {
+    final long second = timestamp >= 0 ? timestamp / 1000
+        : (timestamp - 999) / 1000;
+    if (second != this.cachedSecond) {
+      this.date.setTime(timestamp);
+      this.cachedText = this.format.format(this.date);
+      this.cachedSecond = second;
+    }
+    return out.append(this.cachedText);
+  }
+}
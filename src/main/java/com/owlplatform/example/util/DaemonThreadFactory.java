@@ -0,0 +1,60 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads for executors, so that worker pools never
+ * keep an example running after its main thread exits.
+ *
+ * @author Robert Moore
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+  /**
+   * Thread name prefix.
+   */
+  private final String prefix;
+
+  /**
+   * Number of threads created.
+   */
+  private final AtomicInteger count = new AtomicInteger(0);
+
+  /**
+   * Creates a factory for threads named "{@code prefix} 0", "{@code prefix} 1"
+   * and so on.
+   *
+   * @param prefix
+   *          the thread name prefix.
+   */
+  public DaemonThreadFactory(final String prefix) {
+    this.prefix = prefix;
+  }
+
+  @Override
+  public Thread newThread(final Runnable r) {
+    final Thread t = new Thread(r, this.prefix + " "
+        + this.count.getAndIncrement());
+    t.setDaemon(true);
+    return t;
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An immutable 128-bit device or receiver identifier, stored as two
+ * {@code long} values instead of a 16-byte array. IDs compare and sort as
+ * unsigned 128-bit big-endian numbers, which is the same order as comparing
+ * the original byte arrays.
+ * </p>
+ *
+ * <p>
+ * Use a {@link DeviceIdInterner} to map raw sample IDs to dense ordinals
+ * without creating a {@code DeviceId} per sample.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public final class DeviceId implements Comparable<DeviceId> {
+
+  /**
+   * Number of bytes in an identifier.
+   */
+  public static final int SIZE = 16;
+
+  /**
+   * Upper 64 bits (bytes 0-7).
+   */
+  private final long high;
+
+  /**
+   * Lower 64 bits (bytes 8-15).
+   */
+  private final long low;
+
+  /**
+   * Creates an identifier from its two halves.
+   *
+   * @param high
+   *          the upper 64 bits.
+   * @param low
+   *          the lower 64 bits.
+   */
+  public DeviceId(final long high, final long low) {
+    this.high = high;
+    this.low = low;
+  }
+
+  /**
+   * Creates an identifier from a byte array as found in a sample. Arrays
+   * shorter than {@value #SIZE} bytes are treated as right-aligned
+   * (zero-extended) and longer arrays keep their last {@value #SIZE} bytes.
+   *
+   * @param bytes
+   *          the identifier bytes, most significant first.
+   * @return the identifier.
+   */
+  public static DeviceId fromBytes(final byte[] bytes) {
+    return new DeviceId(high(bytes), low(bytes));
+  }
+
+  /**
+   * Returns the upper 64 bits of a raw identifier, with the same alignment
+   * rules as {@link #fromBytes(byte[])}.
+   *
+   * @param bytes
+   *          the identifier bytes.
+   * @return the upper 64 bits.
+   */
+  public static long high(final byte[] bytes) {
+    return bits(bytes, bytes.length - SIZE);
+  }
+
+  /**
+   * Returns the lower 64 bits of a raw identifier, with the same alignment
+   * rules as {@link #fromBytes(byte[])}.
+   *
+   * @param bytes
+   *          the identifier bytes.
+   * @return the lower 64 bits.
+   */
+  public static long low(final byte[] bytes) {
+    return bits(bytes, bytes.length - SIZE / 2);
+  }
+
+  /**
+   * Reads 8 big-endian bytes starting at {@code start}, treating indices
+   * before the start of the array as zero.
+   */
+  private static long bits(final byte[] bytes, final int start) {
+    long value = 0;
+    for (int i = start; i < start + 8; ++i) {
+      value = (value << 8) | (i < 0 ? 0 : bytes[i] & 0xFFL);
+    }
+    return value;
+  }
+
+  /**
+   * Mixes the two halves of an identifier into a well-distributed hash code.
+   *
+   * @param high
+   *          the upper 64 bits.
+   * @param low
+   *          the lower 64 bits.
+   * @return the hash code.
+   */
+  public static int hash(final long high, final long low) {
+    long h = high * 0x9E3779B97F4A7C15L + low;
+    h = (h ^ (h >>> 32)) * 0xD6E8FEB86659FD93L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return the upper 64 bits.
+   */
+  public long getHigh() {
+    return this.high;
+  }
+
+  /**
+   * @return the lower 64 bits.
+   */
+  public long getLow() {
+    return this.low;
+  }
+
+  /**
+   * @return the identifier as a new 16-byte array.
+   */
+  public byte[] toBytes() {
+    final byte[] bytes = new byte[SIZE];
+    for (int i = 0; i < 8; ++i) {
+      bytes[i] = (byte) (this.high >>> (56 - 8 * i));
+      bytes[i + 8] = (byte) (this.low >>> (56 - 8 * i));
+    }
+    return bytes;
+  }
+
+  /**
+   * @return {@code true} if the identifier fits in the lowest 31 bits, as
+   *         Pipsqueak identifiers do.
+   */
+  public boolean isSmall() {
+    return this.high == 0 && (this.low >>> 31) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash(this.high, this.low);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DeviceId)) {
+      return false;
+    }
+    final DeviceId other = (DeviceId) o;
+    return this.high == other.high && this.low == other.low;
+  }
+
+  @Override
+  public int compareTo(final DeviceId other) {
+    final int cmp = compareUnsigned(this.high, other.high);
+    return cmp != 0 ? cmp : compareUnsigned(this.low, other.low);
+  }
+
+  private static int compareUnsigned(final long a, final long b) {
+    final long x = a ^ Long.MIN_VALUE;
+    final long y = b ^ Long.MIN_VALUE;
+    return x < y ? -1 : (x == y ? 0 : 1);
+  }
+
+  /**
+   * Returns the indices of {@code ids} in ascending ID order. When every ID
+   * is small, as Pipsqueak IDs are, each is packed with its index into one
+   * {@code long} and the packed values are sorted as primitives; otherwise the
+   * indices are merge sorted by ID.
+   *
+   * @param ids
+   *          the IDs to order.
+   * @return the sorted indices.
+   */
+  public static int[] sortedOrder(final DeviceId[] ids) {
+    final int[] order = new int[ids.length];
+    boolean small = true;
+    for (int i = 0; i < ids.length && small; ++i) {
+      small = ids[i].isSmall();
+    }
+    if (small) {
+      final long[] packed = new long[ids.length];
+      for (int i = 0; i < ids.length; ++i) {
+        packed[i] = (ids[i].low << 32) | i;
+      }
+      Arrays.sort(packed);
+      for (int i = 0; i < ids.length; ++i) {
+        order[i] = (int) packed[i];
+      }
+      return order;
+    }
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = i;
+    }
+    mergeSort(order, new int[order.length], 0, order.length, ids);
+    return order;
+  }
+
+  /**
+   * Sorts {@code order[from, to)} by the IDs the indices refer to.
+   */
+  private static void mergeSort(final int[] order, final int[] scratch,
+      final int from, final int to, final DeviceId[] ids) {
+    if (to - from < 2) {
+      return;
+    }
+    final int mid = (from + to) >>> 1;
+    mergeSort(order, scratch, from, mid, ids);
+    mergeSort(order, scratch, mid, to, ids);
+    System.arraycopy(order, from, scratch, from, to - from);
+    int a = from;
+    int b = mid;
+    for (int i = from; i < to; ++i) {
+      if (b >= to
+          || (a < mid && ids[scratch[a]].compareTo(ids[scratch[b]]) <= 0)) {
+        order[i] = scratch[a++];
+      } else {
+        order[i] = scratch[b++];
+      }
+    }
+  }
+
+  /**
+   * Returns the identifier in decimal if it is small, as Pipsqueak IDs are
+   * usually written, or otherwise as 32 hexadecimal digits.
+   *
+   * @return a readable form of the identifier.
+   */
+  @Override
+  public String toString() {
+    if (this.isSmall()) {
+      return String.valueOf(this.low);
+    }
+    return String.format("0x%016X%016X", Long.valueOf(this.high),
+        Long.valueOf(this.low));
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Assigns each distinct 128-bit identifier a dense {@code int} ordinal (0, 1,
+ * 2, ...) in the order they are first seen, so that counters can be keyed by
+ * small integers without losing any bits of the identifier.
+ * </p>
+ *
+ * <p>
+ * Lookups read the identifier directly from the sample's byte array into an
+ * open-addressing table of {@code long} pairs, so interning an identifier that
+ * is already known allocates nothing. A {@link DeviceId} is created only once
+ * per new identifier.
+ * </p>
+ *
+ * <p>
+ * Interning must be done by a single thread. {@link #get(int)} may be called
+ * from any thread for ordinals that were handed to it through a
+ * thread-safe channel, such as a concurrent queue.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class DeviceIdInterner {
+
+  /**
+   * Returned by {@link #find(byte[])} for unknown identifiers.
+   */
+  public static final int NOT_FOUND = -1;
+
+  /**
+   * Upper halves of the identifiers in each slot.
+   */
+  private long[] highs;
+
+  /**
+   * Lower halves of the identifiers in each slot.
+   */
+  private long[] lows;
+
+  /**
+   * Ordinal + 1 of each slot, or 0 if the slot is empty.
+   */
+  private int[] slots;
+
+  /**
+   * Identifiers by ordinal. Volatile so that readers on other threads see the
+   * array as of the last ordinal they were given.
+   */
+  private volatile DeviceId[] ids;
+
+  /**
+   * Number of identifiers interned.
+   */
+  private int size = 0;
+
+  /**
+   * Creates an interner sized for a typical deployment.
+   */
+  public DeviceIdInterner() {
+    this(1024);
+  }
+
+  /**
+   * Creates an interner that can hold {@code expected} identifiers before
+   * growing.
+   *
+   * @param expected
+   *          the expected number of identifiers.
+   */
+  public DeviceIdInterner(final int expected) {
+    int capacity = 16;
+    while (capacity < expected * 2) {
+      capacity <<= 1;
+    }
+    this.highs = new long[capacity];
+    this.lows = new long[capacity];
+    this.slots = new int[capacity];
+    this.ids = new DeviceId[Math.max(16, expected)];
+  }
+
+  /**
+   * Returns the ordinal of a raw identifier, assigning the next ordinal if it
+   * has not been seen before.
+   *
+   * @param rawId
+   *          the identifier bytes from a sample.
+   * @return the ordinal.
+   */
+  public int intern(final byte[] rawId) {
+    return this.intern(DeviceId.high(rawId), DeviceId.low(rawId));
+  }
+
+  /**
+   * Returns the ordinal of an identifier, assigning the next ordinal if it
+   * has not been seen before.
+   *
+   * @param id
+   *          the identifier.
+   * @return the ordinal.
+   */
+  public int intern(final DeviceId id) {
+    return this.intern(id.getHigh(), id.getLow());
+  }
+
+  /**
+   * Returns the ordinal of an identifier given as its two halves, assigning
+   * the next ordinal if it has not been seen before.
+   *
+   * @param high
+   *          the upper 64 bits.
+   * @param low
+   *          the lower 64 bits.
+   * @return the ordinal.
+   */
+  public int intern(final long high, final long low) {
+    final int mask = this.slots.length - 1;
+    int slot = DeviceId.hash(high, low) & mask;
+    while (this.slots[slot] != 0) {
+      if (this.highs[slot] == high && this.lows[slot] == low) {
+        return this.slots[slot] - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    final int ordinal = this.size;
+    DeviceId[] current = this.ids;
+    if (ordinal == current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+    }
+    current[ordinal] = new DeviceId(high, low);
+    this.ids = current;
+
+    this.highs[slot] = high;
+    this.lows[slot] = low;
+    this.slots[slot] = ordinal + 1;
+    ++this.size;
+    if (this.size * 2 > this.slots.length) {
+      this.grow();
+    }
+    return ordinal;
+  }
+
+  /**
+   * Returns the ordinal of a raw identifier without interning it.
+   *
+   * @param rawId
+   *          the identifier bytes.
+   * @return the ordinal, or {@link #NOT_FOUND}.
+   */
+  public int find(final byte[] rawId) {
+    return this.find(DeviceId.high(rawId), DeviceId.low(rawId));
+  }
+
+  /**
+   * Returns the ordinal of an identifier given as its two halves without
+   * interning it.
+   *
+   * @param high
+   *          the upper 64 bits.
+   * @param low
+   *          the lower 64 bits.
+   * @return the ordinal, or {@link #NOT_FOUND}.
+   */
+  public int find(final long high, final long low) {
+    final int mask = this.slots.length - 1;
+    int slot = DeviceId.hash(high, low) & mask;
+    while (this.slots[slot] != 0) {
+      if (this.highs[slot] == high && this.lows[slot] == low) {
+        return this.slots[slot] - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NOT_FOUND;
+  }
+
+  private void grow() {
+    final long[] oldHighs = this.highs;
+    final long[] oldLows = this.lows;
+    final int[] oldSlots = this.slots;
+    final int capacity = oldSlots.length * 2;
+    this.highs = new long[capacity];
+    this.lows = new long[capacity];
+    this.slots = new int[capacity];
+    final int mask = capacity - 1;
+    for (int i = 0; i < oldSlots.length; ++i) {
+      if (oldSlots[i] == 0) {
+        continue;
+      }
+      int slot = DeviceId.hash(oldHighs[i], oldLows[i]) & mask;
+      while (this.slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      this.highs[slot] = oldHighs[i];
+      this.lows[slot] = oldLows[i];
+      this.slots[slot] = oldSlots[i];
+    }
+  }
+
+  /**
+   * Returns the identifier with the given ordinal.
+   *
+   * @param ordinal
+   *          an ordinal returned by one of the {@code intern} methods.
+   * @return the identifier.
+   */
+  public DeviceId get(final int ordinal) {
+    return this.ids[ordinal];
+  }
+
+  /**
+   * @return the number of identifiers interned so far.
+   */
+  public int size() {
+    return this.size;
+  }
+}
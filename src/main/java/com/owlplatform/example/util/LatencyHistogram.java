@@ -0,0 +1,262 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A fixed-size histogram of non-negative {@code long} values (typically
+ * latencies in nanoseconds), in the style of HdrHistogram. Values are placed
+ * in log-linear buckets: every power of two is split into 64 linear
+ * sub-buckets, so any recorded value is reported to within about 1.6% of its
+ * true value, across the whole range of {@code long}.
+ * </p>
+ *
+ * <p>
+ * Recording is lock-free and may be done from any number of threads. Readers
+ * see a value that is accurate to within the samples recorded while they were
+ * reading. Use {@link #drainTo(LatencyHistogram)} to take interval
+ * measurements without stopping the recording threads.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class LatencyHistogram {
+
+  /**
+   * Number of bits of linear precision per power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 6;
+
+  /**
+   * Number of linear sub-buckets in each power of two.
+   */
+  private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Values below this are counted exactly.
+   */
+  private static final int EXACT_LIMIT = SUB_BUCKET_HALF << 1;
+
+  /**
+   * Total number of buckets needed to cover every non-negative {@code long}.
+   */
+  private static final int NUM_BUCKETS = EXACT_LIMIT
+      + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_HALF;
+
+  /**
+   * Count for each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+  /**
+   * Total number of recorded values.
+   */
+  private final AtomicLong totalCount = new AtomicLong(0);
+
+  /**
+   * Sum of all recorded values.
+   */
+  private final AtomicLong totalSum = new AtomicLong(0);
+
+  /**
+   * Largest recorded value.
+   */
+  private final AtomicLong maxValue = new AtomicLong(0);
+
+  /**
+   * Returns the bucket for a value.
+   *
+   * @param value
+   *          a non-negative value.
+   * @return the bucket index.
+   */
+  static int bucketOf(final long value) {
+    if (value < EXACT_LIMIT) {
+      return (int) value;
+    }
+    final int msb = 63 - Long.numberOfLeadingZeros(value);
+    final int shift = msb - SUB_BUCKET_BITS;
+    final int sub = (int) (value >>> shift) - SUB_BUCKET_HALF;
+    return EXACT_LIMIT + (shift - 1) * SUB_BUCKET_HALF + sub;
+  }
+
+  /**
+   * Returns the largest value that falls into a bucket.
+   *
+   * @param bucket
+   *          the bucket index.
+   * @return the highest value counted by that bucket.
+   */
+  static long highestValueOf(final int bucket) {
+    if (bucket < EXACT_LIMIT) {
+      return bucket;
+    }
+    final int offset = bucket - EXACT_LIMIT;
+    final int shift = offset / SUB_BUCKET_HALF + 1;
+    final long sub = (offset % SUB_BUCKET_HALF) + SUB_BUCKET_HALF;
+    return (sub << shift) + (1L << shift) - 1;
+  }
+
+  /**
+   * Records one value. Negative values are recorded as zero.
+   *
+   * @param value
+   *          the value to record.
+   */
+  public void record(final long value) {
+    final long v = value < 0 ? 0 : value;
+    this.counts.incrementAndGet(bucketOf(v));
+    this.totalCount.incrementAndGet();
+    this.totalSum.addAndGet(v);
+    long max = this.maxValue.get();
+    while (v > max && !this.maxValue.compareAndSet(max, v)) {
+      max = this.maxValue.get();
+    }
+  }
+
+  /**
+   * @return the number of recorded values.
+   */
+  public long getTotalCount() {
+    return this.totalCount.get();
+  }
+
+  /**
+   * @return the largest recorded value, or 0 if empty.
+   */
+  public long getMax() {
+    return this.maxValue.get();
+  }
+
+  /**
+   * @return the arithmetic mean of the recorded values, or 0 if empty.
+   */
+  public double getMean() {
+    final long count = this.totalCount.get();
+    return count == 0 ? 0 : (double) this.totalSum.get() / count;
+  }
+
+  /**
+   * Returns the value below which {@code percentile} percent of the recorded
+   * values fall.
+   *
+   * @param percentile
+   *          a percentile in the range [0, 100].
+   * @return the value at that percentile, or 0 if empty.
+   */
+  public long getValueAtPercentile(final double percentile) {
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      total += this.counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final double p = Math.min(100.0, Math.max(0.0, percentile));
+    final long target = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      seen += this.counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestValueOf(i), this.maxValue.get());
+      }
+    }
+    return this.maxValue.get();
+  }
+
+  /**
+   * Moves every recorded value from this histogram into {@code target}, leaving
+   * this histogram empty. Values recorded concurrently end up in exactly one
+   * of the two histograms.
+   *
+   * @param target
+   *          the histogram to add the values to.
+   */
+  public void drainTo(final LatencyHistogram target) {
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      final long c = this.counts.getAndSet(i, 0);
+      if (c != 0) {
+        target.counts.addAndGet(i, c);
+      }
+    }
+    target.totalCount.addAndGet(this.totalCount.getAndSet(0));
+    target.totalSum.addAndGet(this.totalSum.getAndSet(0));
+    final long max = this.maxValue.getAndSet(0);
+    long tMax = target.maxValue.get();
+    while (max > tMax && !target.maxValue.compareAndSet(tMax, max)) {
+      tMax = target.maxValue.get();
+    }
+  }
+
+  /**
+   * Adds every value recorded in {@code other} to this histogram without
+   * changing {@code other}.
+   *
+   * @param other
+   *          the histogram to copy values from.
+   */
+  public void add(final LatencyHistogram other) {
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      final long c = other.counts.get(i);
+      if (c != 0) {
+        this.counts.addAndGet(i, c);
+      }
+    }
+    this.totalCount.addAndGet(other.totalCount.get());
+    this.totalSum.addAndGet(other.totalSum.get());
+    final long max = other.maxValue.get();
+    long myMax = this.maxValue.get();
+    while (max > myMax && !this.maxValue.compareAndSet(myMax, max)) {
+      myMax = this.maxValue.get();
+    }
+  }
+
+  /**
+   * Discards every recorded value.
+   */
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      this.counts.set(i, 0);
+    }
+    this.totalCount.set(0);
+    this.totalSum.set(0);
+    this.maxValue.set(0);
+  }
+
+  /**
+   * Formats the common percentiles of this histogram, treating values as
+   * nanoseconds and printing them in microseconds.
+   *
+   * @return a one-line summary.
+   */
+  public String toMicrosString() {
+    return String.format(
+        "n=%,d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+        Long.valueOf(this.getTotalCount()),
+        Double.valueOf(this.getMean() / 1000d),
+        Double.valueOf(this.getValueAtPercentile(50) / 1000d),
+        Double.valueOf(this.getValueAtPercentile(90) / 1000d),
+        Double.valueOf(this.getValueAtPercentile(99) / 1000d),
+        Double.valueOf(this.getValueAtPercentile(99.9) / 1000d),
+        Double.valueOf(this.getMax() / 1000d));
+  }
+}
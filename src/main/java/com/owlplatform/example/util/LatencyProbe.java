@@ -0,0 +1,163 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * <p>
+ * Format of latency probe samples. A probe carries its send time and a
+ * sequence number in its sensed data, so a solver can measure the one-way
+ * latency of each sample through the aggregator and detect lost or reordered
+ * samples. Probes use their own physical layer so that solvers decoding
+ * Pipsqueak payloads never mistake them for tag data.
+ * </p>
+ *
+ * <pre>
+ * offset  size  field
+ *      0     1  magic (0xA7)
+ *      1     1  format version
+ *      2     4  sequence number, counted separately for each receiver
+ *      6     8  send time, nanoseconds since the epoch
+ * </pre>
+ *
+ * <p>
+ * Send times come from {@link #currentTimeNanos()}, which is only as accurate
+ * as the host clocks are synchronized; run the sensor and solver on the same
+ * host, or on NTP-synchronized hosts, for meaningful results. All values are
+ * big-endian.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public final class LatencyProbe {
+
+  /**
+   * Physical layer of probe samples.
+   */
+  public static final byte PHYSICAL_LAYER = (byte) 0xFE;
+
+  /**
+   * Length of a probe's sensed data in bytes.
+   */
+  public static final int LENGTH = 14;
+
+  /**
+   * First byte of every probe payload.
+   */
+  private static final byte MAGIC = (byte) 0xA7;
+
+  /**
+   * Current format version.
+   */
+  private static final byte VERSION = 1;
+
+  /**
+   * Wall-clock time when the class was loaded, in milliseconds.
+   */
+  private static final long BASE_MILLIS = System.currentTimeMillis();
+
+  /**
+   * {@link System#nanoTime()} when the class was loaded.
+   */
+  private static final long BASE_NANOS = System.nanoTime();
+
+  private LatencyProbe() {
+    // Static methods only
+  }
+
+  /**
+   * Returns the wall-clock time with nanosecond resolution, by adding the
+   * elapsed {@link System#nanoTime()} to the wall-clock time at startup.
+   * Later adjustments to the system clock are not seen.
+   *
+   * @return nanoseconds since the epoch.
+   */
+  public static long currentTimeNanos() {
+    return BASE_MILLIS * 1000000L + (System.nanoTime() - BASE_NANOS);
+  }
+
+  /**
+   * Writes a probe payload.
+   *
+   * @param data
+   *          an array of at least {@value #LENGTH} bytes.
+   * @param sequence
+   *          the sequence number.
+   * @param sendNanos
+   *          the send time, in nanoseconds since the epoch.
+   */
+  public static void encode(final byte[] data, final int sequence,
+      final long sendNanos) {
+    data[0] = MAGIC;
+    data[1] = VERSION;
+    for (int i = 0; i < 4; ++i) {
+      data[2 + i] = (byte) (sequence >>> (24 - 8 * i));
+    }
+    for (int i = 0; i < 8; ++i) {
+      data[6 + i] = (byte) (sendNanos >>> (56 - 8 * i));
+    }
+  }
+
+  /**
+   * Checks whether a sample is a probe.
+   *
+   * @param sample
+   *          the sample.
+   * @return {@code true} if it carries a probe payload.
+   */
+  public static boolean isProbe(final SampleMessage sample) {
+    if (sample.getPhysicalLayer() != PHYSICAL_LAYER) {
+      return false;
+    }
+    final byte[] data = sample.getSensedData();
+    return data != null && data.length >= LENGTH && data[0] == MAGIC
+        && data[1] == VERSION;
+  }
+
+  /**
+   * Reads the sequence number of a probe payload.
+   *
+   * @param data
+   *          the probe's sensed data.
+   * @return the sequence number.
+   */
+  public static int sequence(final byte[] data) {
+    int value = 0;
+    for (int i = 2; i < 6; ++i) {
+      value = (value << 8) | (data[i] & 0xFF);
+    }
+    return value;
+  }
+
+  /**
+   * Reads the send time of a probe payload.
+   *
+   * @param data
+   *          the probe's sensed data.
+   * @return the send time, in nanoseconds since the epoch.
+   */
+  public static long sendTime(final byte[] data) {
+    long value = 0;
+    for (int i = 6; i < 14; ++i) {
+      value = (value << 8) | (data[i] & 0xFFL);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What a bounded queue does when an item arrives and the queue is full.
+ *
+ * @author Robert Moore
+ */
+public enum OverflowPolicy {
+  /**
+   * Wait for room. Slows down the producer, and eventually the network
+   * connection feeding it.
+   */
+  BLOCK,
+  /**
+   * Discard the arriving item and keep everything already queued.
+   */
+  DROP_NEWEST,
+  /**
+   * Discard the oldest queued item to make room for the arriving one.
+   */
+  DROP_OLDEST;
+
+  /**
+   * Longest single wait for room under {@link #BLOCK}, in milliseconds,
+   * before checking whether the queue was closed.
+   */
+  private static final long BLOCK_STEP_MILLIS = 100;
+
+  /**
+   * Adds an item to a bounded queue, applying this policy if the queue is
+   * full. Items discarded to make room, or not added, are counted in
+   * {@code dropped}. Under {@link #BLOCK} the caller waits until there is
+   * room, the thread is interrupted or {@code closed} is set.
+   *
+   * @param queue
+   *          the queue.
+   * @param item
+   *          the item to add.
+   * @param dropped
+   *          counts discarded items.
+   * @param closed
+   *          set when the consumer has gone away.
+   * @return {@code true} if the item was queued.
+   */
+  public <T> boolean offer(final BlockingQueue<T> queue, final T item,
+      final AtomicLong dropped, final AtomicBoolean closed) {
+    boolean added = queue.offer(item);
+    if (!added) {
+      switch (this) {
+      case BLOCK:
+        // Timed waits so that closing the queue releases the producer
+        try {
+          while (!added && !closed.get()) {
+            added = queue.offer(item, BLOCK_STEP_MILLIS, TimeUnit.MILLISECONDS);
+          }
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+        break;
+      case DROP_OLDEST:
+        // Retry in case the consumer raced us for the head
+        while (!added) {
+          if (queue.poll() != null) {
+            dropped.incrementAndGet();
+          }
+          added = queue.offer(item);
+        }
+        break;
+      default:
+        break;
+      }
+    }
+    if (!added) {
+      dropped.incrementAndGet();
+    }
+    return added;
+  }
+
+  /**
+   * Parses a policy name from the command line. Accepts the enum names in any
+   * case, with either '-' or '_' as a separator.
+   *
+   * @param name
+   *          the policy name, for example "drop-oldest".
+   * @return the matching policy.
+   * @throws IllegalArgumentException
+   *           if the name doesn't match a policy.
+   */
+  public static OverflowPolicy parse(final String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and periodically prints a one-line rate summary, replacing a
+ * console line per event. Counting is a single atomic add and may be done from
+ * any thread.
+ *
+ * @author Robert Moore
+ */
+public class RateReporter {
+
+  /**
+   * Describes what is being counted, for example "Sent samples".
+   */
+  private final String label;
+
+  /**
+   * Total number of events counted.
+   */
+  private final AtomicLong total = new AtomicLong(0);
+
+  /**
+   * Timer for printing summaries, created by {@link #start(long)}.
+   */
+  private Timer timer = null;
+
+  /**
+   * Creates a new reporter.
+   *
+   * @param label
+   *          describes what is being counted.
+   */
+  public RateReporter(final String label) {
+    this.label = label;
+  }
+
+  /**
+   * Counts one event.
+   */
+  public void increment() {
+    this.total.incrementAndGet();
+  }
+
+  /**
+   * Counts several events.
+   *
+   * @param count
+   *          the number of events.
+   */
+  public void add(final long count) {
+    this.total.addAndGet(count);
+  }
+
+  /**
+   * @return the total number of events counted.
+   */
+  public long getTotal() {
+    return this.total.get();
+  }
+
+  /**
+   * Starts printing a summary to standard output every {@code periodMillis}
+   * milliseconds.
+   *
+   * @param periodMillis
+   *          time between summaries.
+   */
+  public synchronized void start(final long periodMillis) {
+    if (this.timer != null) {
+      return;
+    }
+    this.timer = new Timer(this.label + " reporter", true);
+    this.timer.schedule(new TimerTask() {
+      private long lastTotal = 0;
+      private long lastTime = System.nanoTime();
+
+      @Override
+      public void run() {
+        final long now = System.nanoTime();
+        final long curr = RateReporter.this.total.get();
+        final double rate = (curr - this.lastTotal) * 1e9
+            / (now - this.lastTime);
+        System.out.printf("%s: %,d total, %,.1f/s\n", RateReporter.this.label,
+            Long.valueOf(curr), Double.valueOf(rate));
+        this.lastTotal = curr;
+        this.lastTime = now;
+      }
+    }, periodMillis, periodMillis);
+  }
+
+  /**
+   * Stops printing summaries.
+   */
+  public synchronized void stop() {
+    if (this.timer != null) {
+      this.timer.cancel();
+      this.timer = null;
+    }
+  }
+}
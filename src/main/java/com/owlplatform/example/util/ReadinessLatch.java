@@ -0,0 +1,110 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A latch that is opened by a listener callback, such as
+ * {@code readyForSamples} or {@code subscriptionReceived}, and can be closed
+ * again when the connection is lost. Threads waiting in
+ * {@link #await(long, TimeUnit)} wake as soon as the latch opens, so startup
+ * takes as long as the handshake and no longer, and nothing polls while
+ * waiting.
+ * </p>
+ *
+ * <p>
+ * {@link #abort()} wakes current waiters without opening the latch, for when
+ * the connection they are waiting on has failed.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class ReadinessLatch {
+
+  /**
+   * Whether the latch is open.
+   */
+  private boolean ready = false;
+
+  /**
+   * Incremented by {@link #abort()}, so waiters can tell they were aborted.
+   */
+  private int aborts = 0;
+
+  /**
+   * Opens the latch and wakes every waiting thread.
+   */
+  public synchronized void signal() {
+    this.ready = true;
+    this.notifyAll();
+  }
+
+  /**
+   * Closes the latch, so that later calls to {@link #await(long, TimeUnit)}
+   * wait for the next {@link #signal()}.
+   */
+  public synchronized void reset() {
+    this.ready = false;
+  }
+
+  /**
+   * Closes the latch and wakes current waiters, which return {@code false}.
+   */
+  public synchronized void abort() {
+    this.ready = false;
+    ++this.aborts;
+    this.notifyAll();
+  }
+
+  /**
+   * @return {@code true} if the latch is open.
+   */
+  public synchronized boolean isReady() {
+    return this.ready;
+  }
+
+  /**
+   * Waits until the latch is open, the timeout passes, or the wait is
+   * aborted.
+   *
+   * @param timeout
+   *          the longest time to wait.
+   * @param unit
+   *          the unit of {@code timeout}.
+   * @return {@code true} if the latch is open, {@code false} if the timeout
+   *         passed or the wait was aborted first.
+   * @throws InterruptedException
+   *           if interrupted while waiting.
+   */
+  public synchronized boolean await(final long timeout, final TimeUnit unit)
+      throws InterruptedException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    final int abortsAtStart = this.aborts;
+    while (!this.ready) {
+      final long remaining = deadline - System.nanoTime();
+      if (remaining <= 0 || this.aborts != abortsAtStart) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+}
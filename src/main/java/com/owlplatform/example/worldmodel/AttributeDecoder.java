@@ -0,0 +1,247 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.worldmodel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.owlplatform.worldmodel.types.DataConverter;
+
+/**
+ * <p>
+ * Decodes Attribute data without resolving a converter for every value. The
+ * type behind each Attribute name is resolved once, by decoding the first
+ * value seen with {@link DataConverter}, and cached. Callers that already know
+ * the type of an Attribute can {@link #register(String, Kind)} it instead,
+ * which also covers names {@code DataConverter} does not recognize. Later
+ * values of numeric and boolean types are read straight from the bytes as
+ * primitives, so no {@code String} or boxed number is created per update.
+ * </p>
+ *
+ * <p>
+ * Values of any other type, and values whose length does not match their
+ * cached type, fall back to {@link DataConverter}. Instances are safe to share
+ * between threads.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class AttributeDecoder {
+
+  /**
+   * How the values of an Attribute are decoded.
+   */
+  public static enum Kind {
+    /**
+     * 8-byte big-endian IEEE 754 double.
+     */
+    DOUBLE(8),
+    /**
+     * 8-byte big-endian signed integer.
+     */
+    LONG(8),
+    /**
+     * 4-byte big-endian signed integer.
+     */
+    INT(4),
+    /**
+     * 1-byte boolean, non-zero for {@code true}.
+     */
+    BOOLEAN(1),
+    /**
+     * Anything else; decoded by {@link DataConverter}.
+     */
+    OTHER(-1);
+
+    /**
+     * Encoded length of a value, or -1 if it varies.
+     */
+    final int length;
+
+    private Kind(final int length) {
+      this.length = length;
+    }
+  }
+
+  /**
+   * Resolved kinds by Attribute name.
+   */
+  private final ConcurrentMap<String, Kind> kinds = new ConcurrentHashMap<String, Kind>();
+
+  /**
+   * Returns how values of an Attribute are decoded, resolving and caching it
+   * from {@code data} the first time the name is seen.
+   *
+   * @param attributeName
+   *          the Attribute name.
+   * @param data
+   *          a value of the Attribute, used only if the name is not cached.
+   * @return the kind of the Attribute's values.
+   */
+  public Kind kindOf(final String attributeName, final byte[] data) {
+    Kind kind = this.kinds.get(attributeName);
+    if (kind == null) {
+      kind = resolve(attributeName, data);
+      this.kinds.putIfAbsent(attributeName, kind);
+    }
+    return kind;
+  }
+
+  /**
+   * Sets how values of an Attribute are decoded, replacing any kind resolved
+   * from its values.
+   *
+   * @param attributeName
+   *          the Attribute name.
+   * @param kind
+   *          the kind of the Attribute's values.
+   */
+  public void register(final String attributeName, final Kind kind) {
+    this.kinds.put(attributeName, kind);
+  }
+
+  /**
+   * @return the number of Attribute names resolved so far.
+   */
+  public int size() {
+    return this.kinds.size();
+  }
+
+  private static Kind resolve(final String attributeName, final byte[] data) {
+    final Object value;
+    try {
+      value = DataConverter.decode(attributeName, data);
+    } catch (RuntimeException re) {
+      return Kind.OTHER;
+    }
+    if (value instanceof Double) {
+      return Kind.DOUBLE;
+    } else if (value instanceof Long) {
+      return Kind.LONG;
+    } else if (value instanceof Integer) {
+      return Kind.INT;
+    } else if (value instanceof Boolean) {
+      return Kind.BOOLEAN;
+    }
+    return Kind.OTHER;
+  }
+
+  /**
+   * Returns a numeric Attribute value as a double.
+   *
+   * @param attributeName
+   *          the Attribute name.
+   * @param data
+   *          the encoded value.
+   * @return the value, or {@code Double.NaN} if it is missing or not numeric.
+   */
+  public double asDouble(final String attributeName, final byte[] data) {
+    if (data == null) {
+      return Double.NaN;
+    }
+    final Kind kind = this.kindOf(attributeName, data);
+    if (data.length != kind.length) {
+      return Double.NaN;
+    }
+    switch (kind) {
+    case DOUBLE:
+      return decodeDouble(data);
+    case LONG:
+      return decodeLong(data);
+    case INT:
+      return decodeInt(data);
+    default:
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Appends an Attribute value as text, matching
+   * {@link DataConverter#asString(String, byte[])}. Nothing is appended for a
+   * missing value.
+   *
+   * @param attributeName
+   *          the Attribute name.
+   * @param data
+   *          the encoded value.
+   * @param out
+   *          the buffer to append to.
+   * @return {@code out}.
+   */
+  public StringBuilder appendTo(final String attributeName, final byte[] data,
+      final StringBuilder out) {
+    if (data == null) {
+      return out;
+    }
+    final Kind kind = this.kindOf(attributeName, data);
+    if (data.length != kind.length) {
+      return out.append(DataConverter.asString(attributeName, data));
+    }
+    switch (kind) {
+    case DOUBLE:
+      return out.append(decodeDouble(data));
+    case LONG:
+      return out.append(decodeLong(data));
+    case INT:
+      return out.append(decodeInt(data));
+    case BOOLEAN:
+      return out.append(data[0] != 0);
+    default:
+      return out.append(DataConverter.asString(attributeName, data));
+    }
+  }
+
+  /**
+   * Decodes an 8-byte big-endian double.
+   *
+   * @param data
+   *          the encoded value.
+   * @return the value.
+   */
+  public static double decodeDouble(final byte[] data) {
+    return Double.longBitsToDouble(decodeLong(data));
+  }
+
+  /**
+   * Decodes an 8-byte big-endian integer.
+   *
+   * @param data
+   *          the encoded value.
+   * @return the value.
+   */
+  public static long decodeLong(final byte[] data) {
+    long value = 0;
+    for (int i = 0; i < 8; ++i) {
+      value = (value << 8) | (data[i] & 0xFFL);
+    }
+    return value;
+  }
+
+  /**
+   * Decodes a 4-byte big-endian integer.
+   *
+   * @param data
+   *          the encoded value.
+   * @return the value.
+   */
+  public static int decodeInt(final byte[] data) {
+    return ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16)
+        | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+  }
+}
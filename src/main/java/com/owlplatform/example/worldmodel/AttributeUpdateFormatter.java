@@ -0,0 +1,142 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.worldmodel;
+
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.AsyncOutputSink;
+import com.owlplatform.example.util.CachedDateFormat;
+import com.owlplatform.example.util.LatencyHistogram;
+import com.owlplatform.worldmodel.Attribute;
+import com.owlplatform.worldmodel.client.WorldState;
+
+/**
+ * Prints one line per updated Attribute of a {@link WorldState}: its creation
+ * date, Identifier, name, new value and origin. Values are printed either as
+ * text, quoted, or as numbers rounded to two decimal places. Shared by the
+ * world model watchers.
+ *
+ * @author Robert Moore
+ */
+public class AttributeUpdateFormatter implements
+    AsyncOutputSink.Formatter<WorldState> {
+
+  /**
+   * Formats creation dates.
+   */
+  private final CachedDateFormat dates = new CachedDateFormat();
+
+  /**
+   * Attributes printed.
+   */
+  private final Counter printed = MetricsRegistry.getDefault().counter(
+      "watcher.attributes");
+
+  /**
+   * Time from Attribute creation until it is printed.
+   */
+  private final LatencyHistogram age = MetricsRegistry.getDefault()
+      .histogram("watcher.attribute.age");
+
+  /**
+   * Decodes Attribute values.
+   */
+  private final AttributeDecoder decoder;
+
+  /**
+   * Whether values are printed as rounded numbers instead of text.
+   */
+  private final boolean numeric;
+
+  /**
+   * Creates a formatter that prints every value as quoted text.
+   */
+  public AttributeUpdateFormatter() {
+    this(new AttributeDecoder(), false);
+  }
+
+  /**
+   * Creates a formatter.
+   *
+   * @param decoder
+   *          decodes Attribute values, with any known types registered.
+   * @param numeric
+   *          {@code true} to print values as numbers rounded to two decimal
+   *          places, {@code false} to print them as quoted text.
+   */
+  public AttributeUpdateFormatter(final AttributeDecoder decoder,
+      final boolean numeric) {
+    this.decoder = decoder;
+    this.numeric = numeric;
+  }
+
+  @Override
+  public void format(WorldState state, StringBuilder out) {
+    final long now = System.currentTimeMillis();
+    for (String id : state.getIdentifiers()) {
+      for (Attribute att : state.getState(id)) {
+        if (att.getAttributeName() == null) {
+          out.append("Skipping unnamed attribute for ").append(id)
+              .append('\n');
+          continue;
+        }
+        this.printed.increment();
+        this.age.record((now - att.getCreationDate()) * 1000000L);
+        out.append('[');
+        this.dates.appendTo(att.getCreationDate(), out);
+        out.append("] ").append(id).append('/')
+            .append(att.getAttributeName()).append(" changed to ");
+        if (this.numeric) {
+          if (att.getData() != null) {
+            appendHundredths(
+                this.decoder.asDouble(att.getAttributeName(), att.getData()),
+                out);
+          }
+          out.append(' ');
+        } else {
+          out.append('"');
+          this.decoder.appendTo(att.getAttributeName(), att.getData(), out);
+          out.append("\" ");
+        }
+        out.append("by ").append(att.getOriginName()).append('\n');
+      }
+    }
+  }
+
+  /**
+   * Appends a value rounded to two decimal places, like "%.2f" but without
+   * parsing a format string per value.
+   */
+  private static void appendHundredths(double value, StringBuilder out) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      out.append(value);
+      return;
+    }
+    long hundredths = Math.round(Math.abs(value) * 100);
+    if (value < 0 && hundredths != 0) {
+      out.append('-');
+    }
+    out.append(hundredths / 100).append('.');
+    long fraction = hundredths % 100;
+    if (fraction < 10) {
+      out.append('0');
+    }
+    out.append(fraction);
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.worldmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Writes Attribute history to a file in blocks of columns, so that a reader
+ * interested in one column (such as the creation dates) can skip the rest,
+ * and so that similar values sit next to each other and compress well.
+ * Identifier, Attribute and origin names are written once into a string
+ * dictionary and referred to by index afterwards. All values are big-endian.
+ * </p>
+ *
+ * <pre>
+ * file   := magic "OWLHISTC", int version, block*, int 0
+ * block  := int rows,
+ *           int newStrings, UTF string * newStrings,
+ *           long creation * rows,
+ *           int identifier * rows,
+ *           int attribute * rows,
+ *           int origin * rows,
+ *           int dataLength * rows,
+ *           byte data * (sum of non-negative dataLengths)
+ * </pre>
+ *
+ * <p>
+ * String indices count from 0 across the whole file; an origin of -1 means
+ * none, and a data length of -1 means no data. Not thread-safe.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class ColumnarHistoryWriter {
+
+  /**
+   * Magic bytes at the start of every history file.
+   */
+  static final byte[] MAGIC = { 'O', 'W', 'L', 'H', 'I', 'S', 'T', 'C' };
+
+  /**
+   * Current format version.
+   */
+  static final int VERSION = 1;
+
+  /**
+   * Default number of rows per block.
+   */
+  public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+  /**
+   * The output file.
+   */
+  private final DataOutputStream out;
+
+  /**
+   * Index of every string written so far.
+   */
+  private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+  /**
+   * Strings first used in the current block.
+   */
+  private final List<String> newStrings = new ArrayList<String>();
+
+  /**
+   * Creation date column.
+   */
+  private final long[] creations;
+
+  /**
+   * Identifier column.
+   */
+  private final int[] identifiers;
+
+  /**
+   * Attribute name column.
+   */
+  private final int[] attributes;
+
+  /**
+   * Origin column.
+   */
+  private final int[] origins;
+
+  /**
+   * Data length column.
+   */
+  private final int[] lengths;
+
+  /**
+   * Data column, concatenated.
+   */
+  private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+  /**
+   * Rows in the current block.
+   */
+  private int rows = 0;
+
+  /**
+   * Rows written to the file, including the current block.
+   */
+  private long totalRows = 0;
+
+  /**
+   * Creates a file with the default block size, replacing any existing file.
+   *
+   * @param file
+   *          the file to write.
+   * @throws IOException
+   *           if the file cannot be created.
+   */
+  public ColumnarHistoryWriter(final File file) throws IOException {
+    this(file, DEFAULT_BLOCK_ROWS);
+  }
+
+  /**
+   * Creates a file, replacing any existing file.
+   *
+   * @param file
+   *          the file to write.
+   * @param blockRows
+   *          the number of rows per block.
+   * @throws IOException
+   *           if the file cannot be created.
+   */
+  public ColumnarHistoryWriter(final File file, final int blockRows)
+      throws IOException {
+    this.creations = new long[blockRows];
+    this.identifiers = new int[blockRows];
+    this.attributes = new int[blockRows];
+    this.origins = new int[blockRows];
+    this.lengths = new int[blockRows];
+    this.out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), 64 * 1024));
+    this.out.write(MAGIC);
+    this.out.writeInt(VERSION);
+  }
+
+  /**
+   * Adds one row.
+   *
+   * @param identifier
+   *          the Identifier.
+   * @param attribute
+   *          the Attribute name.
+   * @param origin
+   *          the origin name, or {@code null}.
+   * @param creation
+   *          the creation date.
+   * @param value
+   *          the encoded value, or {@code null}.
+   * @throws IOException
+   *           if a full block cannot be written.
+   */
+  public void append(final String identifier, final String attribute,
+      final String origin, final long creation, final byte[] value)
+      throws IOException {
+    final int row = this.rows;
+    this.creations[row] = creation;
+    this.identifiers[row] = this.indexOf(identifier);
+    this.attributes[row] = this.indexOf(attribute);
+    this.origins[row] = origin == null ? -1 : this.indexOf(origin);
+    if (value == null) {
+      this.lengths[row] = -1;
+    } else {
+      this.lengths[row] = value.length;
+      this.data.write(value);
+    }
+    ++this.totalRows;
+    if (++this.rows == this.creations.length) {
+      this.writeBlock();
+    }
+  }
+
+  /**
+   * @return the number of rows added.
+   */
+  public long getRowCount() {
+    return this.totalRows;
+  }
+
+  /**
+   * Writes any buffered rows and the end marker, and closes the file.
+   *
+   * @throws IOException
+   *           if the file cannot be written.
+   */
+  public void close() throws IOException {
+    try {
+      this.writeBlock();
+      this.out.writeInt(0);
+    } finally {
+      this.out.close();
+    }
+  }
+
+  /**
+   * Closes the file without writing buffered rows or the end marker, so a
+   * reader can tell it is incomplete. Used when an export fails part way.
+   */
+  public void abort() {
+    try {
+      this.out.close();
+    } catch (IOException ioe) {
+      // Already failed, nothing more to report
+    }
+  }
+
+  private int indexOf(final String s) {
+    Integer index = this.dictionary.get(s);
+    if (index == null) {
+      index = Integer.valueOf(this.dictionary.size());
+      this.dictionary.put(s, index);
+      this.newStrings.add(s);
+    }
+    return index.intValue();
+  }
+
+  private void writeBlock() throws IOException {
+    final int n = this.rows;
+    if (n == 0) {
+      return;
+    }
+    final DataOutputStream o = this.out;
+    o.writeInt(n);
+    o.writeInt(this.newStrings.size());
+    for (String s : this.newStrings) {
+      o.writeUTF(s);
+    }
+    for (int i = 0; i < n; ++i) {
+      o.writeLong(this.creations[i]);
+    }
+    writeColumn(o, this.identifiers, n);
+    writeColumn(o, this.attributes, n);
+    writeColumn(o, this.origins, n);
+    writeColumn(o, this.lengths, n);
+    this.data.writeTo(o);
+
+    this.newStrings.clear();
+    this.data.reset();
+    this.rows = 0;
+  }
+
+  private static void writeColumn(final DataOutputStream o,
+      final int[] column, final int n) throws IOException {
+    for (int i = 0; i < n; ++i) {
+      o.writeInt(column[i]);
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.worldmodel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.owlplatform.example.util.DaemonThreadFactory;
+import com.owlplatform.example.util.RateReporter;
+import com.owlplatform.worldmodel.Attribute;
+import com.owlplatform.worldmodel.client.ClientWorldConnection;
+import com.owlplatform.worldmodel.client.StepResponse;
+import com.owlplatform.worldmodel.client.WorldState;
+
+/**
+ * <p>
+ * Exports Attribute history from a world model server to a
+ * {@link ColumnarHistoryWriter} file. The requested time range is split into
+ * equal slices, each fetched with its own range request, and up to a fixed
+ * number of slices are fetched at once over the same connection. Rows are
+ * sorted by creation date within each slice and slices are written in order,
+ * so the file is in timestamp order.
+ * </p>
+ *
+ * <p>
+ * Only a few slices beyond those being fetched are held in memory while
+ * waiting for an earlier slice to finish, so long ranges can be exported with
+ * bounded memory by using more slices.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class HistoryExporter {
+
+  /**
+   * Default number of slices fetched at once.
+   */
+  public static final int DEFAULT_PARALLEL = 4;
+
+  /**
+   * Default number of slices a range is split into.
+   */
+  public static final int DEFAULT_SLICES = 16;
+
+  /**
+   * The world model connection.
+   */
+  private final ClientWorldConnection connection;
+
+  /**
+   * Number of slices fetched at once.
+   */
+  private final int parallel;
+
+  /**
+   * Creates a new exporter.
+   *
+   * @param connection
+   *          a connected world model client connection.
+   * @param parallel
+   *          the number of slices fetched at once.
+   */
+  public HistoryExporter(final ClientWorldConnection connection,
+      final int parallel) {
+    if (parallel < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1.");
+    }
+    this.connection = connection;
+    this.parallel = parallel;
+  }
+
+  /**
+   * Fetches every Attribute value created in {@code [start, end)} and writes
+   * it to {@code writer} in creation order.
+   *
+   * @param identifier
+   *          Identifier regular expression.
+   * @param start
+   *          start of the range, in milliseconds since the epoch.
+   * @param end
+   *          end of the range (exclusive).
+   * @param slices
+   *          the number of slices to split the range into.
+   * @param writer
+   *          receives the rows.
+   * @param progress
+   *          counts written rows, or {@code null}.
+   * @param attributes
+   *          Attribute name regular expressions, or none for all Attributes.
+   * @return the number of rows written.
+   * @throws IOException
+   *           if a request fails or the file cannot be written.
+   * @throws InterruptedException
+   *           if interrupted while waiting for a slice.
+   */
+  public long export(final String identifier, final long start,
+      final long end, final int slices, final ColumnarHistoryWriter writer,
+      final RateReporter progress, final String... attributes)
+      throws IOException, InterruptedException {
+    if (end <= start || slices < 1) {
+      throw new IllegalArgumentException("Invalid range or slice count.");
+    }
+    final String[] atts = attributes.length == 0 ? new String[] { ".*" }
+        : attributes;
+    final long width = (end - start + slices - 1) / slices;
+    final int numSlices = (int) ((end - start + width - 1) / width);
+
+    final ExecutorService fetchers = Executors.newFixedThreadPool(
+        this.parallel, new DaemonThreadFactory("History fetcher"));
+    final List<Future<List<Row>>> pending = new ArrayList<Future<List<Row>>>(
+        numSlices);
+    long written = 0;
+    try {
+      int submitted = 0;
+      for (int next = 0; next < numSlices; ++next) {
+        // Keep the fetchers busy, but don't run too far ahead of the writer
+        while (submitted < numSlices && submitted < next + this.parallel * 2) {
+          final long sliceStart = start + submitted * width;
+          final long sliceEnd = Math.min(end, sliceStart + width);
+          pending.add(fetchers.submit(new Callable<List<Row>>() {
+            @Override
+            public List<Row> call() throws Exception {
+              return HistoryExporter.this.fetch(identifier, sliceStart,
+                  sliceEnd, atts);
+            }
+          }));
+          ++submitted;
+        }
+
+        final List<Row> rows;
+        try {
+          rows = pending.get(next).get();
+        } catch (ExecutionException ee) {
+          throw new IOException("Unable to fetch slice " + next + ": "
+              + ee.getCause(), ee.getCause());
+        }
+        pending.set(next, null);
+        for (Row row : rows) {
+          writer.append(row.identifier, row.attribute.getAttributeName(),
+              row.attribute.getOriginName(), row.creation,
+              row.attribute.getData());
+        }
+        written += rows.size();
+        if (progress != null) {
+          progress.add(rows.size());
+        }
+      }
+    } finally {
+      fetchers.shutdownNow();
+    }
+    return written;
+  }
+
+  /**
+   * Fetches one slice and sorts it by creation date.
+   */
+  List<Row> fetch(final String identifier, final long sliceStart,
+      final long sliceEnd, final String[] attributes) throws Exception {
+    final StepResponse resp = this.connection.getRangeRequest(identifier,
+        sliceStart, sliceEnd, attributes);
+    final List<Row> rows = new ArrayList<Row>();
+    while (!resp.isComplete() && !resp.isError()) {
+      final WorldState state = resp.next();
+      if (state == null) {
+        continue;
+      }
+      for (String id : state.getIdentifiers()) {
+        for (Attribute att : state.getState(id)) {
+          final long creation = att.getCreationDate();
+          // Values from before the slice belong to the previous one
+          if (att.getAttributeName() == null || creation < sliceStart
+              || creation >= sliceEnd) {
+            continue;
+          }
+          rows.add(new Row(id, att, creation));
+        }
+      }
+    }
+    if (resp.isError()) {
+      throw new IOException("Range request failed: " + resp.getError());
+    }
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * One Attribute value and its Identifier.
+   */
+  static final class Row implements Comparable<Row> {
+
+    /**
+     * The Identifier.
+     */
+    final String identifier;
+
+    /**
+     * The Attribute value.
+     */
+    final Attribute attribute;
+
+    /**
+     * Creation date of the value.
+     */
+    final long creation;
+
+    Row(final String identifier, final Attribute attribute,
+        final long creation) {
+      this.identifier = identifier;
+      this.attribute = attribute;
+      this.creation = creation;
+    }
+
+    @Override
+    public int compareTo(final Row other) {
+      return this.creation < other.creation ? -1
+          : (this.creation == other.creation ? 0 : 1);
+    }
+  }
+
+  /**
+   * Parse command-line arguments, export the requested history and print the
+   * export rate.
+   *
+   * @param args
+   *          world model server hostname/IP, client port, Identifier regular
+   *          expression, start and end times in milliseconds since the epoch,
+   *          output file, and optional switches: "-a" followed by an
+   *          Attribute regular expression (may be repeated), "-n" followed by
+   *          the number of slices, "-j" followed by the number of slices
+   *          fetched at once.
+   */
+  public static void main(String[] args) {
+
+    // Verify number of arguments
+    if (args.length < 6) {
+      System.out.println("Invalid number of arguments.");
+      System.out
+          .println("Expected: <WM Host> <WM Port> <Identifier> <Start ms> <End ms> <Output File> [-a Attribute] [-n Slices] [-j Parallel]");
+      return;
+    }
+
+    int port = -1;
+    long start;
+    long end;
+    try {
+      port = Integer.parseInt(args[1]);
+      start = Long.parseLong(args[3]);
+      end = Long.parseLong(args[4]);
+    } catch (NumberFormatException nfe) {
+      System.out.println("Invalid port number or time: " + nfe.getMessage());
+      return;
+    }
+    if (port < 0 || end <= start) {
+      System.out.println("Invalid port number or time range.");
+      return;
+    }
+    final File output = new File(args[5]);
+
+    List<String> attributes = new ArrayList<String>();
+    int slices = DEFAULT_SLICES;
+    int parallel = DEFAULT_PARALLEL;
+    for (int argc = 6; argc < args.length; ++argc) {
+      String arg = args[argc];
+      if ("-a".equals(arg)) {
+        attributes.add(args[++argc]);
+      } else if ("-n".equals(arg)) {
+        slices = Integer.parseInt(args[++argc]);
+      } else if ("-j".equals(arg)) {
+        parallel = Integer.parseInt(args[++argc]);
+      } else {
+        System.out.println("Unknown option: " + arg);
+        return;
+      }
+    }
+
+    // Create the connector
+    final ClientWorldConnection cwc = new ClientWorldConnection();
+    cwc.setHost(args[0]);
+    cwc.setPort(port);
+
+    // Try to connect, timeout after 10 seconds
+    if (!cwc.connect(10000l)) {
+      System.out.println("Unable to connect to " + cwc + " after 10 seconds.");
+      return;
+    }
+
+    System.out.printf("Exporting \"%s\" from %d to %d in %d slices, %d at a time.\n",
+        args[2], Long.valueOf(start), Long.valueOf(end),
+        Integer.valueOf(slices), Integer.valueOf(parallel));
+
+    RateReporter progress = new RateReporter("Exported rows");
+    progress.start(5000);
+    final long startNanos = System.nanoTime();
+    ColumnarHistoryWriter writer = null;
+    boolean exported = false;
+    try {
+      writer = new ColumnarHistoryWriter(output);
+      new HistoryExporter(cwc, parallel).export(args[2], start, end, slices,
+          writer, progress, attributes.toArray(new String[attributes.size()]));
+      writer.close();
+      exported = true;
+    } catch (IOException ioe) {
+      System.err.println("Export failed: " + ioe.getMessage());
+    } catch (InterruptedException ie) {
+      System.err.println("Export interrupted.");
+    } finally {
+      progress.stop();
+      cwc.disconnect();
+      if (!exported && writer != null) {
+        // Don't leave a partial file that looks complete
+        writer.abort();
+        if (!output.delete()) {
+          System.err.println("Unable to delete partial file " + output);
+        }
+      }
+    }
+    if (!exported) {
+      return;
+    }
+
+    final double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.printf("Wrote %,d rows to %s in %,.1f s (%,.1f rows/s).\n",
+        Long.valueOf(progress.getTotal()), output, Double.valueOf(seconds),
+        Double.valueOf(progress.getTotal() / seconds));
+  }
+}
@@ -18,13 +18,14 @@
  */
 package com.owlplatform.example.worldmodel;
 
-import java.util.Date;
-
-import com.owlplatform.worldmodel.Attribute;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.Gauge;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.AsyncOutputSink;
+import com.owlplatform.example.util.OverflowPolicy;
 import com.owlplatform.worldmodel.client.ClientWorldConnection;
 import com.owlplatform.worldmodel.client.StepResponse;
 import com.owlplatform.worldmodel.client.WorldState;
-import com.owlplatform.worldmodel.types.DataConverter;
 
 /**
  * Connects to a world model server, and requests streaming updates for the
@@ -38,21 +39,34 @@ public class IdWatcher {
 
   /**
    * Parse command-line arguments (host, client port, Identifier), request
-   * updates, and print.
+   * updates, and print. The "-o" switch followed by an {@link OverflowPolicy}
+   * name sets what happens when updates arrive faster than they can be
+   * printed; by default the oldest waiting update is dropped.
    * 
    * @param args
    *          world model server hostname/IP, client port, Identifier regular
-   *          expression.
+   *          expression, and optionally "-o" and an overflow policy.
    */
   public static void main(String[] args) {
 
     // Verify number of arguments
     if (args.length < 3) {
       System.out
-          .println("Invalid number of arguments.\nExpected: <WM Host> <WM Port> <Identifier>");
+          .println("Invalid number of arguments.\nExpected: <WM Host> <WM Port> <Identifier> [-o Policy]");
       return;
     }
 
+    // What to do when output falls behind
+    OverflowPolicy outputPolicy = OverflowPolicy.DROP_OLDEST;
+    for (int argc = 3; argc < args.length; ++argc) {
+      if ("-o".equals(args[argc]) && argc + 1 < args.length) {
+        outputPolicy = OverflowPolicy.parse(args[++argc]);
+      } else {
+        System.out.println("Unknown option: " + args[argc]);
+        return;
+      }
+    }
+
     // Get the port number
     int port = -1;
     try {
@@ -91,31 +105,34 @@ public class IdWatcher {
     StepResponse resp = cwc.getStreamRequest(args[2],
         System.currentTimeMillis(), 0l, ".*");
 
+    // Updates are formatted and printed on a separate thread
+    final AsyncOutputSink<WorldState> output = new AsyncOutputSink<WorldState>(
+        new AttributeUpdateFormatter(), System.out,
+        AsyncOutputSink.DEFAULT_CAPACITY, outputPolicy);
+
+    final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    metrics.expose("IdWatcher");
+    final Counter updates = metrics.counter("watcher.updates.in");
+    metrics.gauge("watcher.output.queue", new Gauge() {
+      @Override
+      public long getValue() {
+        return output.getQueueDepth();
+      }
+    });
+    metrics.gauge("watcher.output.dropped", new Gauge() {
+      @Override
+      public long getValue() {
+        return output.getDropped();
+      }
+    });
+
     // Keep going until the response is complete, has an error, or an exception
     // occurs.
     while (!resp.isComplete() && !resp.isError()) {
       try {
         // Get the next set of Attribute updates
-        WorldState state = resp.next();
-        for (String id : state.getIdentifiers()) {
-          for (Attribute att : state.getState(id)) {
-            if (att.getAttributeName() == null) {
-              System.out.println("Skipping unnamed attribute for " + id);
-              continue;
-            }
-            System.out.println("["
-                + new Date(att.getCreationDate())
-                + "] "
-                + id
-                + "/"
-                + att.getAttributeName()
-                + " changed to \""
-                + (att.getData() == null ? "" : DataConverter.asString(
-                    att.getAttributeName(), att.getData())) + "\" by "
-                + att.getOriginName());
-          }
-
-        }
+        output.print(resp.next());
+        updates.increment();
       } catch (Exception e) {
         System.out.println("An exception has occurred: " + e.getMessage());
         e.printStackTrace(System.out);
@@ -123,6 +140,7 @@ public class IdWatcher {
       }
     }
 
+    output.close();
     System.out.println("Exiting.");
     // Shut down the connection
     cwc.disconnect();
@@ -0,0 +1,451 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.worldmodel;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.owlplatform.example.util.AsyncOutputSink;
+import com.owlplatform.example.util.DaemonThreadFactory;
+import com.owlplatform.worldmodel.client.ClientWorldConnection;
+import com.owlplatform.worldmodel.client.StepResponse;
+import com.owlplatform.worldmodel.client.WorldState;
+
+/**
+ * <p>
+ * Watches many Identifier patterns over a single world model connection. Each
+ * call to {@link #subscribe(String, WorldStateHandler, String...)} issues one
+ * streaming request on the shared {@link ClientWorldConnection} and hands its
+ * updates to a {@link WorldStateHandler}.
+ * </p>
+ *
+ * <p>
+ * Because {@link StepResponse#next()} blocks, each subscription has a small
+ * reader thread that only moves updates from its response into a bounded
+ * queue. Handlers run on a shared pool of worker threads; each subscription
+ * is processed by at most one worker at a time and gives up its worker after
+ * a short batch, so a slow handler only delays its own subscription. If a
+ * handler falls far enough behind to fill its queue, its oldest updates are
+ * dropped and counted.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class MultiplexedWatcher {
+
+  /**
+   * Default number of worker threads running handlers.
+   */
+  public static final int DEFAULT_WORKERS = 4;
+
+  /**
+   * Default number of updates queued per subscription.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  /**
+   * Most updates a worker handles for one subscription before moving on.
+   */
+  private static final int MAX_BATCH = 32;
+
+  /**
+   * The shared world model connection.
+   */
+  private final ClientWorldConnection connection;
+
+  /**
+   * Runs the handlers.
+   */
+  private final ExecutorService workers;
+
+  /**
+   * Number of updates queued per subscription.
+   */
+  private final int queueCapacity;
+
+  /**
+   * Current subscriptions.
+   */
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+  /**
+   * Creates a watcher with the default number of workers and queue capacity.
+   *
+   * @param connection
+   *          a connected world model client connection.
+   */
+  public MultiplexedWatcher(final ClientWorldConnection connection) {
+    this(connection, DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates a new watcher.
+   *
+   * @param connection
+   *          a connected world model client connection.
+   * @param numWorkers
+   *          the number of threads running handlers.
+   * @param queueCapacity
+   *          the number of updates queued per subscription.
+   */
+  public MultiplexedWatcher(final ClientWorldConnection connection,
+      final int numWorkers, final int queueCapacity) {
+    if (numWorkers < 1) {
+      throw new IllegalArgumentException("At least one worker is required.");
+    }
+    this.connection = connection;
+    this.queueCapacity = queueCapacity;
+    this.workers = Executors.newFixedThreadPool(numWorkers,
+        new DaemonThreadFactory("Watcher worker"));
+  }
+
+  /**
+   * Requests streaming updates for an Identifier pattern and starts passing
+   * them to a handler.
+   *
+   * @param identifier
+   *          Identifier regular expression.
+   * @param handler
+   *          receives the updates.
+   * @param attributes
+   *          Attribute name regular expressions, or none for all Attributes.
+   * @return the new subscription.
+   */
+  public Subscription subscribe(final String identifier,
+      final WorldStateHandler handler, final String... attributes) {
+    final StepResponse response = this.connection.getStreamRequest(
+        identifier, System.currentTimeMillis(), 0l,
+        attributes.length == 0 ? new String[] { ".*" } : attributes);
+    final Subscription sub = new Subscription(identifier, response, handler);
+    this.subscriptions.add(sub);
+    sub.reader.start();
+    return sub;
+  }
+
+  /**
+   * @return the current subscriptions.
+   */
+  public List<Subscription> getSubscriptions() {
+    return this.subscriptions;
+  }
+
+  /**
+   * @return {@code true} if any subscription is still receiving updates.
+   */
+  public boolean isActive() {
+    for (Subscription sub : this.subscriptions) {
+      if (sub.isActive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Cancels every subscription and stops the worker threads, giving queued
+   * updates up to one second to be handled. Does not disconnect the
+   * connection.
+   */
+  public void shutdown() {
+    for (Subscription sub : this.subscriptions) {
+      sub.cancel();
+    }
+    this.workers.shutdown();
+    try {
+      this.workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * One streaming request and its handler.
+   */
+  public final class Subscription implements Runnable {
+
+    /**
+     * The requested Identifier pattern.
+     */
+    private final String identifier;
+
+    /**
+     * The streaming response.
+     */
+    private final StepResponse response;
+
+    /**
+     * Receives the updates.
+     */
+    private final WorldStateHandler handler;
+
+    /**
+     * Updates waiting for the handler.
+     */
+    private final BlockingQueue<WorldState> queue;
+
+    /**
+     * Set while this subscription is queued for or running on a worker.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Updates dropped because the handler fell behind.
+     */
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * Moves updates from the response to the queue.
+     */
+    private final Thread reader;
+
+    /**
+     * Cleared once the response ends or the subscription is cancelled.
+     */
+    private volatile boolean active = true;
+
+    /**
+     * Set by {@link #cancel()}.
+     */
+    private volatile boolean cancelled = false;
+
+    Subscription(final String identifier, final StepResponse response,
+        final WorldStateHandler handler) {
+      this.identifier = identifier;
+      this.response = response;
+      this.handler = handler;
+      this.queue = new ArrayBlockingQueue<WorldState>(
+          MultiplexedWatcher.this.queueCapacity);
+      this.reader = new Thread("Watcher reader \"" + identifier + "\"") {
+        @Override
+        public void run() {
+          Subscription.this.readLoop();
+        }
+      };
+      this.reader.setDaemon(true);
+    }
+
+    /**
+     * @return the requested Identifier pattern.
+     */
+    public String getIdentifier() {
+      return this.identifier;
+    }
+
+    /**
+     * @return the number of updates dropped because the handler fell behind.
+     */
+    public long getDropped() {
+      return this.dropped.get();
+    }
+
+    /**
+     * @return the number of updates waiting for the handler.
+     */
+    public int getQueueDepth() {
+      return this.queue.size();
+    }
+
+    /**
+     * @return {@code true} until the response ends or the subscription is
+     *         cancelled.
+     */
+    public boolean isActive() {
+      return this.active;
+    }
+
+    /**
+     * Cancels the streaming request. Updates already queued are still
+     * handled.
+     */
+    public void cancel() {
+      this.cancelled = true;
+      this.response.cancel();
+      this.reader.interrupt();
+    }
+
+    private void readLoop() {
+      while (!this.cancelled && !this.response.isComplete()
+          && !this.response.isError()) {
+        WorldState state;
+        try {
+          state = this.response.next();
+        } catch (Exception e) {
+          if (!this.cancelled) {
+            System.err.println("Unable to read updates for \""
+                + this.identifier + "\": " + e);
+          }
+          break;
+        }
+        if (state != null) {
+          this.enqueue(state);
+        }
+      }
+      if (this.response.isError()) {
+        System.err.println("Request for \"" + this.identifier + "\" failed: "
+            + this.response.getError());
+      }
+      this.active = false;
+    }
+
+    private void enqueue(final WorldState state) {
+      // Drop the oldest updates rather than block the reader
+      while (!this.queue.offer(state)) {
+        if (this.queue.poll() != null) {
+          this.dropped.incrementAndGet();
+        }
+      }
+      this.schedule();
+    }
+
+    private void schedule() {
+      if (this.scheduled.compareAndSet(false, true)) {
+        try {
+          MultiplexedWatcher.this.workers.execute(this);
+        } catch (RejectedExecutionException ree) {
+          // Shutting down
+          this.scheduled.set(false);
+        }
+      }
+    }
+
+    /**
+     * Handles a batch of queued updates on a worker thread.
+     */
+    @Override
+    public void run() {
+      WorldState state;
+      int handled = 0;
+      while (handled < MAX_BATCH && (state = this.queue.poll()) != null) {
+        try {
+          this.handler.handleState(state);
+        } catch (RuntimeException re) {
+          System.err.println("Handler for \"" + this.identifier
+              + "\" threw an exception: " + re);
+          re.printStackTrace(System.err);
+        }
+        ++handled;
+      }
+      this.scheduled.set(false);
+      // Give the worker back to other subscriptions, then come back for more
+      if (!this.queue.isEmpty()) {
+        this.schedule();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Subscription(\"" + this.identifier + "\")";
+    }
+  }
+
+  /**
+   * Parse command-line arguments (host, client port, Identifiers), request
+   * updates for each Identifier over one connection, and print.
+   *
+   * @param args
+   *          world model server hostname/IP, client port, one or more
+   *          Identifier regular expressions.
+   */
+  public static void main(String[] args) {
+
+    // Verify number of arguments
+    if (args.length < 3) {
+      System.out
+          .println("Invalid number of arguments.\nExpected: <WM Host> <WM Port> <Identifier> [<Identifier> ...]");
+      return;
+    }
+
+    // Get the port number
+    int port = -1;
+    try {
+      port = Integer.parseInt(args[1]);
+    } catch (NumberFormatException nfe) {
+      System.out.println(args[1] + " is not a valid port number.");
+      return;
+    }
+
+    if (port < 0) {
+      System.out.println("Invalid port number provided: " + port);
+      return;
+    }
+
+    // Create the connector
+    final ClientWorldConnection cwc = new ClientWorldConnection();
+    cwc.setHost(args[0]);
+    cwc.setPort(port);
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        cwc.disconnect();
+      }
+    });
+
+    // Try to connect, timeout after 10 seconds
+    if (!cwc.connect(10000l)) {
+      System.out.println("Unable to connect to " + cwc + " after 10 seconds.");
+      return;
+    }
+
+    // Updates from every subscription share one output thread
+    final AsyncOutputSink<WorldState> output = new AsyncOutputSink<WorldState>(
+        new AttributeUpdateFormatter());
+    final WorldStateHandler printer = new WorldStateHandler() {
+      @Override
+      public void handleState(WorldState state) {
+        output.print(state);
+      }
+    };
+
+    MultiplexedWatcher watcher = new MultiplexedWatcher(cwc);
+    for (int i = 2; i < args.length; ++i) {
+      System.out.println("Requesting updates for \"" + args[i] + "\".");
+      watcher.subscribe(args[i], printer);
+    }
+
+    // Wait until every request has completed or failed
+    while (watcher.isActive() && cwc.isConnected()) {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException ie) {
+        break;
+      }
+    }
+
+    watcher.shutdown();
+    for (Subscription sub : watcher.getSubscriptions()) {
+      if (sub.getDropped() > 0) {
+        System.out.println(sub + " dropped " + sub.getDropped()
+            + " updates.");
+      }
+    }
+    output.close();
+    System.out.println("Exiting.");
+    // Shut down the connection
+    cwc.disconnect();
+  }
+}
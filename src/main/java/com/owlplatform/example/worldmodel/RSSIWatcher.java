@@ -18,14 +18,14 @@
  */
 package com.owlplatform.example.worldmodel;
 
-import java.util.Date;
-
-import com.owlplatform.worldmodel.Attribute;
+import com.owlplatform.example.metrics.Counter;
+import com.owlplatform.example.metrics.Gauge;
+import com.owlplatform.example.metrics.MetricsRegistry;
+import com.owlplatform.example.util.AsyncOutputSink;
+import com.owlplatform.example.util.OverflowPolicy;
 import com.owlplatform.worldmodel.client.ClientWorldConnection;
 import com.owlplatform.worldmodel.client.StepResponse;
 import com.owlplatform.worldmodel.client.WorldState;
-import com.owlplatform.worldmodel.types.DataConverter;
-import com.owlplatform.worldmodel.types.DoubleConverter;
 
 /**
  * Connects to a world model server, and requests streaming updates for the
@@ -38,20 +38,27 @@ import com.owlplatform.worldmodel.types.DoubleConverter;
  */
 public class RSSIWatcher {
 
+  /**
+   * Name of the Attribute holding the average RSSI of a link.
+   */
+  static final String RSSI_ATTRIBUTE = "link average";
+
   /**
    * Parse command-line arguments (host, client port, Identifier), request
-   * updates, and print.
+   * updates, and print. The "-o" switch followed by an {@link OverflowPolicy}
+   * name sets what happens when updates arrive faster than they can be
+   * printed; by default the oldest waiting update is dropped.
    * 
    * @param args
-   *          world model server hostname/IP, client port, Identifier regular
-   *          expression.
+   *          world model server hostname/IP, client port, optional Identifier
+   *          regular expression, and optionally "-o" and an overflow policy.
    */
   public static void main(String[] args) {
 
     // Verify number of arguments
     if (args.length < 2) {
       System.out
-          .println("Invalid number of arguments.\nExpected: <WM Host> <WM Port> [Identifier]");
+          .println("Invalid number of arguments.\nExpected: <WM Host> <WM Port> [Identifier] [-o Policy]");
       return;
     }
 
@@ -88,37 +95,53 @@ public class RSSIWatcher {
     }
 
     String identifier = ".*";
-
-    if (args.length > 2) {
-      identifier = args[2];
+    // What to do when output falls behind
+    OverflowPolicy outputPolicy = OverflowPolicy.DROP_OLDEST;
+    for (int argc = 2; argc < args.length; ++argc) {
+      if ("-o".equals(args[argc]) && argc + 1 < args.length) {
+        outputPolicy = OverflowPolicy.parse(args[++argc]);
+      } else {
+        identifier = args[argc];
+      }
     }
 
     System.out.println("Requesting updates for \"" + identifier + "\".");
 
     // Send a streaming request, get back the response
     StepResponse resp = cwc.getStreamRequest(identifier,
-        System.currentTimeMillis(), 0l, "link average");
+        System.currentTimeMillis(), 0l, RSSI_ATTRIBUTE);
+
+    // Updates are formatted and printed on a separate thread
+    // Always a double, even if DataConverter doesn't know the name
+    final AttributeDecoder decoder = new AttributeDecoder();
+    decoder.register(RSSI_ATTRIBUTE, AttributeDecoder.Kind.DOUBLE);
+    final AsyncOutputSink<WorldState> output = new AsyncOutputSink<WorldState>(
+        new AttributeUpdateFormatter(decoder, true), System.out,
+        AsyncOutputSink.DEFAULT_CAPACITY, outputPolicy);
+
+    final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    metrics.expose("RSSIWatcher");
+    final Counter updates = metrics.counter("watcher.updates.in");
+    metrics.gauge("watcher.output.queue", new Gauge() {
+      @Override
+      public long getValue() {
+        return output.getQueueDepth();
+      }
+    });
+    metrics.gauge("watcher.output.dropped", new Gauge() {
+      @Override
+      public long getValue() {
+        return output.getDropped();
+      }
+    });
 
     // Keep going until the response is complete, has an error, or an exception
     // occurs.
     while (!resp.isComplete() && !resp.isError()) {
       try {
         // Get the next set of Attribute updates
-        WorldState state = resp.next();
-        for (String id : state.getIdentifiers()) {
-          for (Attribute att : state.getState(id)) {
-            if (att.getAttributeName() == null) {
-              System.out.println("Skipping unnamed attribute for " + id);
-              continue;
-            }
-            System.out.printf(
-                "[%s] %s/%s changed to %,.2f by %s\n",
-                new Date(att.getCreationDate()),
-                id,att.getAttributeName(),(att.getData() == null ? "" : DoubleConverter.get()
-                    .decode(att.getData())),att.getOriginName());
-          }
-
-        }
+        output.print(resp.next());
+        updates.increment();
       } catch (Exception e) {
         System.out.println("An exception has occurred: " + e.getMessage());
         e.printStackTrace(System.out);
@@ -126,6 +149,7 @@ public class RSSIWatcher {
       }
     }
 
+    output.close();
     System.out.println("Exiting.");
     // Shut down the connection
     cwc.disconnect();
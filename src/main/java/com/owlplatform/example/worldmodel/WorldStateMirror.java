@@ -0,0 +1,414 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.worldmodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import com.owlplatform.worldmodel.Attribute;
+import com.owlplatform.worldmodel.client.WorldState;
+
+/**
+ * <p>
+ * A local copy of the current world state, kept up to date by applying
+ * streaming updates as they arrive. Register it as the
+ * {@link WorldStateHandler} of a {@link MultiplexedWatcher} subscription (or
+ * call {@link #apply(WorldState)} with each result of
+ * {@code StepResponse.next()}) and then read current values without querying
+ * the world model again.
+ * </p>
+ *
+ * <p>
+ * Identifiers are kept in a sorted concurrent map, so point lookups and
+ * prefix lookups do not lock. Each Identifier's Attributes are held in an
+ * immutable {@link Entry} that is replaced, never modified, when an update
+ * arrives; Attribute and origin names are interned so that thousands of
+ * Identifiers share one copy of each. Each {@code WorldState} is applied
+ * atomically with respect to {@link #snapshot()}, which therefore never sees
+ * half of an update.
+ * </p>
+ *
+ * <p>
+ * Updates from several threads (such as several subscriptions sharing one
+ * mirror) are applied one at a time; reads may come from any thread.
+ * </p>
+ *
+ * @author Robert Moore
+ */
+public class WorldStateMirror implements WorldStateHandler {
+
+  /**
+   * Current state of each Identifier.
+   */
+  private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+
+  /**
+   * Canonical copies of Attribute and origin names.
+   */
+  private final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Held while applying an update, and by snapshots to exclude updates.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Decodes numeric values for {@link #getDouble(String, String)}.
+   */
+  private final AttributeDecoder decoder = new AttributeDecoder();
+
+  /**
+   * Number of updates applied.
+   */
+  private volatile long updates = 0;
+
+  /**
+   * Applies one set of updated Attributes. Attributes with an expiration date
+   * are removed from the mirror, and Identifiers left with no Attributes are
+   * removed entirely.
+   *
+   * @param state
+   *          the updated Attributes.
+   */
+  public void apply(final WorldState state) {
+    this.lock.writeLock().lock();
+    try {
+      for (String id : state.getIdentifiers()) {
+        final Entry current = this.entries.get(id);
+        final Entry next = this.merge(id, current, state.getState(id));
+        if (next == current) {
+          continue;
+        }
+        if (next == null) {
+          this.entries.remove(id);
+        } else {
+          this.entries.put(id, next);
+        }
+      }
+      ++this.updates;
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void handleState(final WorldState state) {
+    this.apply(state);
+  }
+
+  /**
+   * Returns the current state of an Identifier.
+   *
+   * @param identifier
+   *          the Identifier.
+   * @return its current Attributes, or {@code null} if it has none.
+   */
+  public Entry get(final String identifier) {
+    return this.entries.get(identifier);
+  }
+
+  /**
+   * Returns the current value of one Attribute.
+   *
+   * @param identifier
+   *          the Identifier.
+   * @param attributeName
+   *          the Attribute name.
+   * @return the value, or {@code null} if there is none.
+   */
+  public Value get(final String identifier, final String attributeName) {
+    final Entry entry = this.entries.get(identifier);
+    return entry == null ? null : entry.get(attributeName);
+  }
+
+  /**
+   * Returns the current value of a numeric Attribute.
+   *
+   * @param identifier
+   *          the Identifier.
+   * @param attributeName
+   *          the Attribute name.
+   * @return the value, or {@code Double.NaN} if there is none or it is not
+   *         numeric.
+   */
+  public double getDouble(final String identifier, final String attributeName) {
+    final Value value = this.get(identifier, attributeName);
+    return value == null ? Double.NaN : this.decoder.asDouble(value.name,
+        value.data);
+  }
+
+  /**
+   * Returns every Identifier starting with a prefix, in sorted order. Each
+   * entry is current as of the moment it is read.
+   *
+   * @param prefix
+   *          the Identifier prefix.
+   * @return the matching entries.
+   */
+  public List<Entry> findPrefix(final String prefix) {
+    return new ArrayList<Entry>(this.entries.subMap(prefix, true,
+        prefix + Character.MAX_VALUE, false).values());
+  }
+
+  /**
+   * Returns every Identifier matching a regular expression, in sorted order.
+   * Each entry is current as of the moment it is read.
+   *
+   * @param regex
+   *          the Identifier pattern.
+   * @return the matching entries.
+   */
+  public List<Entry> find(final Pattern regex) {
+    final List<Entry> matches = new ArrayList<Entry>();
+    for (Entry entry : this.entries.values()) {
+      if (regex.matcher(entry.identifier).matches()) {
+        matches.add(entry);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Returns a consistent copy of the whole mirror: every update is either
+   * fully included or not at all. Only references are copied, so this is
+   * cheap even for large mirrors, but it does hold off updates while the map
+   * is copied.
+   *
+   * @return an unmodifiable sorted map from Identifier to entry.
+   */
+  public SortedMap<String, Entry> snapshot() {
+    this.lock.readLock().lock();
+    try {
+      return Collections.unmodifiableSortedMap(new TreeMap<String, Entry>(
+          this.entries));
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of Identifiers with at least one Attribute.
+   */
+  public int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * @return the number of updates applied.
+   */
+  public long getUpdateCount() {
+    return this.updates;
+  }
+
+  private String intern(final String name) {
+    if (name == null) {
+      return null;
+    }
+    final String existing = this.names.putIfAbsent(name, name);
+    return existing == null ? name : existing;
+  }
+
+  /**
+   * Builds the new entry for an Identifier after an update.
+   *
+   * @return the new entry, {@code current} if nothing changed, or
+   *         {@code null} if no Attributes remain.
+   */
+  private Entry merge(final String identifier, final Entry current,
+      final Collection<Attribute> attributes) {
+    final List<Value> values = new ArrayList<Value>();
+    if (current != null) {
+      values.addAll(Arrays.asList(current.values));
+    }
+    boolean changed = false;
+    for (Attribute att : attributes) {
+      if (att.getAttributeName() == null) {
+        continue;
+      }
+      final String name = this.intern(att.getAttributeName());
+      int index = -1;
+      for (int i = 0; i < values.size(); ++i) {
+        if (values.get(i).name == name) {
+          index = i;
+          break;
+        }
+      }
+      if (att.getExpirationDate() != 0) {
+        if (index >= 0) {
+          values.remove(index);
+          changed = true;
+        }
+        continue;
+      }
+      if (index >= 0 && values.get(index).creation > att.getCreationDate()) {
+        // Older than what we already have
+        continue;
+      }
+      final Value value = new Value(name, att.getData(),
+          att.getCreationDate(), this.intern(att.getOriginName()));
+      if (index >= 0) {
+        values.set(index, value);
+      } else {
+        values.add(value);
+      }
+      changed = true;
+    }
+    if (!changed) {
+      return current;
+    }
+    if (values.isEmpty()) {
+      return null;
+    }
+    return new Entry(identifier, values.toArray(new Value[values.size()]));
+  }
+
+  /**
+   * The current Attributes of one Identifier. Immutable.
+   */
+  public static final class Entry {
+
+    /**
+     * The Identifier.
+     */
+    final String identifier;
+
+    /**
+     * Current Attribute values, in the order they were first seen.
+     */
+    final Value[] values;
+
+    Entry(final String identifier, final Value[] values) {
+      this.identifier = identifier;
+      this.values = values;
+    }
+
+    /**
+     * @return the Identifier.
+     */
+    public String getIdentifier() {
+      return this.identifier;
+    }
+
+    /**
+     * Returns the current value of an Attribute.
+     *
+     * @param attributeName
+     *          the Attribute name.
+     * @return the value, or {@code null} if there is none.
+     */
+    public Value get(final String attributeName) {
+      for (Value v : this.values) {
+        if (v.name.equals(attributeName)) {
+          return v;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the current values of every Attribute.
+     */
+    public List<Value> getValues() {
+      return Collections.unmodifiableList(Arrays.asList(this.values));
+    }
+
+    @Override
+    public String toString() {
+      return this.identifier + Arrays.toString(this.values);
+    }
+  }
+
+  /**
+   * The current value of one Attribute. Immutable.
+   */
+  public static final class Value {
+
+    /**
+     * Attribute name, interned.
+     */
+    final String name;
+
+    /**
+     * Encoded value, or {@code null}.
+     */
+    final byte[] data;
+
+    /**
+     * When the value was created, in milliseconds since the epoch.
+     */
+    final long creation;
+
+    /**
+     * Origin name, interned.
+     */
+    final String origin;
+
+    Value(final String name, final byte[] data, final long creation,
+        final String origin) {
+      this.name = name;
+      this.data = data;
+      this.creation = creation;
+      this.origin = origin;
+    }
+
+    /**
+     * @return the Attribute name.
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * @return the encoded value, which must not be modified, or {@code null}.
+     */
+    public byte[] getData() {
+      return this.data;
+    }
+
+    /**
+     * @return when the value was created, in milliseconds since the epoch.
+     */
+    public long getCreationDate() {
+      return this.creation;
+    }
+
+    /**
+     * @return the name of the solver or sensor that produced the value.
+     */
+    public String getOrigin() {
+      return this.origin;
+    }
+
+    @Override
+    public String toString() {
+      return this.name + "@" + this.creation + " from " + this.origin;
+    }
+  }
+}
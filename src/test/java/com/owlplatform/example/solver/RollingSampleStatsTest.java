@@ -0,0 +1,129 @@
+/*
+ * Owl Platform Example Code
+ * Copyright (C) 2012 Robert Moore and the Owl Platform
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.owlplatform.example.solver;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.owlplatform.example.solver.RollingSampleStats.Snapshot;
+
+/**
+ * Tests for {@link RollingSampleStats}.
+ *
+ * @author Robert Moore
+ */
+public class RollingSampleStatsTest {
+
+  /**
+   * One 1-second window of four 250 ms buckets.
+   */
+  private static RollingSampleStats newStats() {
+    return new RollingSampleStats(new long[] { 1000 }, 4);
+  }
+
+  /**
+   * Samples spread over several buckets of one window are summed.
+   */
+  @Test
+  public void testWindowSum() {
+    final RollingSampleStats stats = newStats();
+    stats.record(1, 10, -50f, TagTally.NO_TEMPERATURE, 0);
+    stats.record(1, 10, -60f, TagTally.NO_TEMPERATURE, 300);
+    stats.record(1, 20, -70f, 21.5f, 600);
+
+    final Snapshot snapshot = new Snapshot();
+    stats.snapshot(0, 700, snapshot);
+    final Snapshot.Devices transmitters = snapshot.getTransmitters();
+    assertEquals(1, transmitters.size());
+    assertEquals(1, transmitters.getId(0));
+    assertEquals(3, transmitters.getCount(0));
+    assertEquals(-60f, transmitters.getMeanRssi(0), 0.001f);
+    assertEquals(-70f, transmitters.getMinRssi(0), 0.001f);
+    assertEquals(-50f, transmitters.getMaxRssi(0), 0.001f);
+    assertEquals(21.5f, transmitters.getTemperature(0), 0.001f);
+
+    final Snapshot.Devices receivers = snapshot.getReceivers();
+    assertEquals(2, receivers.size());
+    assertEquals(10, receivers.getId(0));
+    assertEquals(2, receivers.getCount(0));
+    assertEquals(20, receivers.getId(1));
+    assertEquals(1, receivers.getCount(1));
+  }
+
+  /**
+   * Buckets that have rolled out of the window are no longer counted, and a
+   * reused bucket starts again from zero.
+   */
+  @Test
+  public void testBucketRollover() {
+    final RollingSampleStats stats = newStats();
+    stats.record(1, 10, -50f, TagTally.NO_TEMPERATURE, 0);
+    stats.record(1, 10, -50f, TagTally.NO_TEMPERATURE, 100);
+    // Same ring slot as the first two samples, one turn later
+    stats.record(1, 10, -80f, TagTally.NO_TEMPERATURE, 1000);
+
+    final Snapshot snapshot = new Snapshot();
+    stats.snapshot(0, 1100, snapshot);
+    final Snapshot.Devices transmitters = snapshot.getTransmitters();
+    assertEquals(1, transmitters.size());
+    assertEquals(1, transmitters.getCount(0));
+    assertEquals(-80f, transmitters.getMeanRssi(0), 0.001f);
+
+    stats.snapshot(0, 5000, snapshot);
+    assertEquals(0, snapshot.getTransmitters().size());
+  }
+
+  /**
+   * Devices whose only samples are outside the window, and slots never
+   * written, are left out of the snapshot.
+   */
+  @Test
+  public void testUnusedSlots() {
+    final RollingSampleStats stats = newStats();
+    final Snapshot snapshot = new Snapshot();
+    stats.snapshot(0, 0, snapshot);
+    assertEquals(0, snapshot.getTransmitters().size());
+    assertEquals(0, snapshot.getSpanMillis());
+
+    stats.record(2, 10, -50f, TagTally.NO_TEMPERATURE, 0);
+    stats.record(1, 10, -50f, TagTally.NO_TEMPERATURE, 2000);
+    stats.snapshot(0, 2000, snapshot);
+    final Snapshot.Devices transmitters = snapshot.getTransmitters();
+    assertEquals(1, transmitters.size());
+    assertEquals(1, transmitters.getId(0));
+    assertEquals(1, transmitters.getCount(0));
+  }
+
+  /**
+   * A clock stepped backwards records into the newest bucket instead of an
+   * older (or negative) one.
+   */
+  @Test
+  public void testClockStepBack() {
+    final RollingSampleStats stats = newStats();
+    stats.record(1, 10, -50f, TagTally.NO_TEMPERATURE, 10000);
+    stats.record(1, 10, -50f, TagTally.NO_TEMPERATURE, 9000);
+    stats.record(1, 10, -50f, TagTally.NO_TEMPERATURE, 10100);
+
+    final Snapshot snapshot = new Snapshot();
+    stats.snapshot(0, 10100, snapshot);
+    assertEquals(3, snapshot.getTransmitters().getCount(0));
+  }
+}